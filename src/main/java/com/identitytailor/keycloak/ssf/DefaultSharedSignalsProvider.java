@@ -9,6 +9,8 @@ import com.identitytailor.keycloak.ssf.event.parser.SecurityEventParser;
 import com.identitytailor.keycloak.ssf.event.processor.DefaultSecurityEventProcessor;
 import com.identitytailor.keycloak.ssf.event.processor.SecurityEventProcessingContext;
 import com.identitytailor.keycloak.ssf.event.processor.SecurityEventProcessor;
+import com.identitytailor.keycloak.ssf.keys.ReceiverKeyCache;
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
 import com.identitytailor.keycloak.ssf.receiver.SharedSignalsReceiver;
 import com.identitytailor.keycloak.ssf.receiver.delivery.poll.DefaultSharedSignalsStreamPoller;
 import com.identitytailor.keycloak.ssf.receiver.delivery.poll.SharedSignalsStreamPoller;
@@ -22,40 +24,83 @@ import com.identitytailor.keycloak.ssf.receiver.transmitterclient.DefaultTransmi
 import com.identitytailor.keycloak.ssf.receiver.transmitterclient.TransmitterClient;
 import com.identitytailor.keycloak.ssf.receiver.verification.DefaultSecurityEventsVerificationClient;
 import com.identitytailor.keycloak.ssf.receiver.verification.SecurityEventsVerificationClient;
+import com.identitytailor.keycloak.ssf.receiver.verification.VerificationLatencyTracker;
 import com.identitytailor.keycloak.ssf.storage.DefaultSharedSignalsStorage;
 import com.identitytailor.keycloak.ssf.storage.VerificationStore;
+import com.identitytailor.keycloak.ssf.storage.jpa.JpaReceiverAckLedger;
 import com.identitytailor.keycloak.ssf.streams.model.DeliveryMethod;
 import com.identitytailor.keycloak.ssf.transmitter.delivery.SecurityEventTokenDeliveryService;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.StreamRoutingIndex;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.StreamSubjectIndex;
 import com.identitytailor.keycloak.ssf.transmitter.delivery.polling.PollDeliveryService;
 import com.identitytailor.keycloak.ssf.transmitter.delivery.polling.PollEndpoint;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.polling.PollEventNotifier;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushCircuitBreaker;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushCircuitBreakerRegistry;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushDeliveryDispatcher;
 import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushDeliveryService;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushHttpTransport;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushOutboxService;
 import com.identitytailor.keycloak.ssf.transmitter.event.SecurityEventTokenEncoder;
+import com.identitytailor.keycloak.ssf.transmitter.event.SecurityEventTokenEncodingCache;
 import com.identitytailor.keycloak.ssf.transmitter.event.SecurityEventTokenMapper;
+import com.identitytailor.keycloak.ssf.transmitter.event.SsfEventListener;
 import com.identitytailor.keycloak.ssf.transmitter.metadata.TransmitterConfigurationEndpoint;
+import com.identitytailor.keycloak.ssf.transmitter.metadata.TransmitterMetadataCache;
 import com.identitytailor.keycloak.ssf.transmitter.metadata.TransmitterService;
+import com.identitytailor.keycloak.ssf.transmitter.storage.CachingStreamStore;
 import com.identitytailor.keycloak.ssf.transmitter.storage.SsfEventStore;
 import com.identitytailor.keycloak.ssf.transmitter.storage.SsfStreamStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfSubjectStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.StreamConfigurationCache;
+import com.identitytailor.keycloak.ssf.transmitter.storage.infinispan.InfinispanEventStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.jpa.JpaEventStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.jpa.JpaPushOutboxStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.jpa.JpaStreamStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.jpa.JpaSubjectStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.jpa.SsfEventPurgeScheduler;
+import com.identitytailor.keycloak.ssf.transmitter.storage.memory.EventEvictionPolicy;
+import com.identitytailor.keycloak.ssf.transmitter.storage.memory.InMemoryEventLog;
 import com.identitytailor.keycloak.ssf.transmitter.storage.memory.InMemoryEventStore;
 import com.identitytailor.keycloak.ssf.transmitter.storage.memory.InMemoryStreamStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.memory.InMemorySubjectStore;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamChangeNotifier;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfiguration;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfigurationVersion;
 import com.identitytailor.keycloak.ssf.transmitter.streams.StreamManagementEndpoint;
 import com.identitytailor.keycloak.ssf.transmitter.streams.StreamService;
 import com.identitytailor.keycloak.ssf.transmitter.streams.StreamStatusEndpoint;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamSubjectService;
 import com.identitytailor.keycloak.ssf.transmitter.verification.VerificationEndpoint;
 import com.identitytailor.keycloak.ssf.transmitter.verification.VerificationService;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.Query;
+import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.Config;
+import org.keycloak.connections.httpclient.ProxyMappings;
+import org.infinispan.Cache;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.events.EventListenerProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 
+import javax.net.ssl.SSLContext;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+@JBossLog
 public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected final KeycloakSession session;
 
+    protected final Factory factory;
+
     protected SecurityEventParser securityEventParser;
 
     protected SecurityEventProcessor securityEventProcessor;
@@ -94,11 +139,17 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected PushDeliveryService pushDeliveryService;
 
+    protected PushOutboxService pushOutboxService;
+
     protected StreamService streamService;
 
+    protected StreamSubjectService streamSubjectService;
+
+    protected SsfSubjectStore subjectStore;
+
     protected SsfEventStore eventStore;
 
-    protected SsfStreamStore streamStore;;
+    protected SsfStreamStore streamStore;
 
     protected TransmitterService transmitterService;
 
@@ -108,13 +159,14 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected SecurityEventTokenDeliveryService securityEventTokenDeliveryService;
 
-    public DefaultSharedSignalsProvider(KeycloakSession session) {
+    public DefaultSharedSignalsProvider(KeycloakSession session, Factory factory) {
         this.session = session;
+        this.factory = factory;
     }
 
     protected SecurityEventParser getSecurityEventParser() {
         if (securityEventParser == null) {
-            securityEventParser = new DefaultSecurityEventParser(session);
+            securityEventParser = new DefaultSecurityEventParser(session, factory.getReceiverKeyCache());
         }
         return securityEventParser;
     }
@@ -124,7 +176,8 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
             securityEventProcessor = new DefaultSecurityEventProcessor(
                     this,
                     getSecurityEventListener(),
-                    getSharedSignalsStore()
+                    getSharedSignalsStore(),
+                    factory.getVerificationLatencyTracker()
             );
         }
         return securityEventProcessor;
@@ -146,7 +199,7 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected ReceiverManager getReceiverManager() {
         if (receiverManager == null) {
-            receiverManager = new ReceiverManager(session);
+            receiverManager = new ReceiverManager(session, factory.getReceiverKeyCache());
         }
         return receiverManager;
     }
@@ -267,6 +320,25 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
         return realmIds;
     }
 
+    @Override
+    public Map<String, Set<String>> getPollReceiverIdsByRealm() {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        List<Object[]> rows = em.createQuery("select c.realm.id, c.id from ComponentEntity c " +
+                                             "inner join ComponentConfigEntity cc " +
+                                             "on c = cc.component and cc.name = :configName and cc.value = :configValue " +
+                                             "where c.providerType = :providerType", Object[].class)
+                .setParameter("configName", "deliveryMethod")
+                .setParameter("configValue", DeliveryMethod.POLL.name())
+                .setParameter("providerType", SharedSignalsReceiver.class.getName())
+                .getResultList();
+
+        Map<String, Set<String>> receiverIdsByRealm = new HashMap<>();
+        for (Object[] row : rows) {
+            receiverIdsByRealm.computeIfAbsent((String) row[0], realmId -> new HashSet<>()).add((String) row[1]);
+        }
+        return receiverIdsByRealm;
+    }
+
     @Override
     public SecurityEventProcessingContext createSecurityEventProcessingContext(SecurityEventToken securityEventToken, String receiverAlias) {
         SecurityEventProcessingContext context = new SecurityEventProcessingContext();
@@ -284,7 +356,7 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected PollEndpoint getPollEndpoint() {
         if (pollEndpoint == null) {
-            pollEndpoint = new PollEndpoint(session, pollDeliveryService());
+            pollEndpoint = new PollEndpoint(session, pollDeliveryService(), getStreamService());
         }
         return pollEndpoint;
     }
@@ -297,7 +369,7 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
     protected StreamManagementEndpoint getStreamManagementEndpoint() {
 
         if (streamManagementEndpoint == null) {
-            streamManagementEndpoint = new StreamManagementEndpoint(streamService());
+            streamManagementEndpoint = new StreamManagementEndpoint(streamService(), streamSubjectService());
         }
         return streamManagementEndpoint;
     }
@@ -322,7 +394,7 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected TransmitterConfigurationEndpoint getTransmitterConfigurationEndpoint() {
         if (transmitterConfigurationEndpoint == null) {
-            transmitterConfigurationEndpoint = new TransmitterConfigurationEndpoint(session, transmitterService());
+            transmitterConfigurationEndpoint = new TransmitterConfigurationEndpoint(session, transmitterService(), factory.getTransmitterMetadataMaxAgeSeconds());
         }
         return transmitterConfigurationEndpoint;
     }
@@ -351,7 +423,11 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected SsfEventStore getEventStore() {
         if (eventStore == null) {
-            eventStore = new InMemoryEventStore(session);
+            eventStore = switch (factory.getEventStoreType()) {
+                case INFINISPAN -> factory.createInfinispanEventStore();
+                case JPA -> new JpaEventStore(session, factory.getPollLeaseMillis(), factory.isEventStoreEncodedEvents(), factory.isEventStoreAuditEventData());
+                default -> new InMemoryEventStore(session, factory.getInMemoryEventLog());
+            };
         }
         return eventStore;
     }
@@ -363,14 +439,20 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected SsfStreamStore getStreamStore() {
         if (streamStore == null) {
-            streamStore = new InMemoryStreamStore();
+            if (factory.getStreamStoreType() == StreamStoreType.JPA) {
+                SsfStreamStore jpaStreamStore = new JpaStreamStore(session);
+                StreamConfigurationCache streamConfigurationCache = factory.getStreamConfigurationCache();
+                streamStore = streamConfigurationCache == null ? jpaStreamStore : new CachingStreamStore(session, jpaStreamStore, streamConfigurationCache);
+            } else {
+                streamStore = new InMemoryStreamStore();
+            }
         }
         return streamStore;
     }
 
     protected VerificationService getVerificationService() {
         if (verificationService == null) {
-            verificationService = new VerificationService(streamStore(), new SecurityEventTokenMapper(transmitterService()), securityEventTokenDeliveryService());
+            verificationService = new VerificationService(session, streamStore(), new SecurityEventTokenMapper(transmitterService()), securityEventTokenDeliveryService());
         }
         return verificationService;
     }
@@ -382,7 +464,7 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected TransmitterService getTransmitterService() {
         if (transmitterService == null) {
-            transmitterService = new TransmitterService(session);
+            transmitterService = new TransmitterService(session, factory.getDefaultSubjects(), factory.getTransmitterMetadataCache());
         }
         return transmitterService;
     }
@@ -394,7 +476,7 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected PollDeliveryService getPollDeliveryService() {
         if (pollDeliveryService == null) {
-            pollDeliveryService = new PollDeliveryService(session, getSecurityEventTokenEncoder(), new InMemoryEventStore(session));
+            pollDeliveryService = new PollDeliveryService(session, getSecurityEventTokenEncoder(), eventStore(), factory.getPollEventNotifier());
         }
         return pollDeliveryService;
     }
@@ -405,19 +487,59 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected PushDeliveryService getPushDeliveryService() {
         if (pushDeliveryService == null) {
-            pushDeliveryService = new PushDeliveryService(session);
+            pushDeliveryService = new PushDeliveryService(session, factory.getPushHttpTransport(), factory.getPushCircuitBreakers());
         }
         return pushDeliveryService;
     }
 
+    @Override
+    public PushOutboxService pushOutboxService() {
+        return getPushOutboxService();
+    }
+
+    protected PushOutboxService getPushOutboxService() {
+        if (pushOutboxService == null) {
+            SsfEventListener.Factory ssfEventListenerFactory = getSsfEventListenerFactory();
+            if (ssfEventListenerFactory == null || !ssfEventListenerFactory.isPushOutboxEnabled()) {
+                return null;
+            }
+            pushOutboxService = new PushOutboxService(new JpaPushOutboxStore(session), streamStore(), ssfEventListenerFactory.getPushRetryPolicy(), ssfEventListenerFactory.getPushOutboxClaimTimeoutMillis());
+        }
+        return pushOutboxService;
+    }
+
     @Override
     public StreamService streamService() {
         return getStreamService();
     }
 
+    @Override
+    public StreamSubjectService streamSubjectService() {
+        return getStreamSubjectService();
+    }
+
+    protected StreamSubjectService getStreamSubjectService() {
+        if (streamSubjectService == null) {
+            streamSubjectService = new StreamSubjectService(session, streamStore(), subjectStore(), factory.getStreamSubjectIndex(), factory.getStreamChangeNotifier(), transmitterService(), factory.getDefaultSubjects());
+        }
+        return streamSubjectService;
+    }
+
+    @Override
+    public SsfSubjectStore subjectStore() {
+        return getSubjectStore();
+    }
+
+    protected SsfSubjectStore getSubjectStore() {
+        if (subjectStore == null) {
+            subjectStore = factory.getStreamStoreType() == StreamStoreType.JPA ? new JpaSubjectStore(session) : new InMemorySubjectStore();
+        }
+        return subjectStore;
+    }
+
     protected StreamService getStreamService() {
         if (streamService == null) {
-            streamService = new StreamService(session, streamStore(), transmitterService());
+            streamService = new StreamService(session, streamStore(), eventStore(), transmitterService(), factory.getStreamChangeNotifier(), factory.getPushCircuitBreakers(), subjectStore(), pushOutboxService());
         }
         return streamService;
     }
@@ -439,21 +561,143 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
     protected SecurityEventTokenDeliveryService getSecurityEventTokenDeliveryService() {
         if (securityEventTokenDeliveryService == null) {
-            securityEventTokenDeliveryService = new SecurityEventTokenDeliveryService(streamStore(), securityEventTokenEncoder(), pushDeliveryService(), pollDeliveryService());
+            securityEventTokenDeliveryService = new SecurityEventTokenDeliveryService(session, streamStore(), factory.getStreamRoutingIndex(), securityEventTokenEncoder(), pushDeliveryService(), getPushDeliveryDispatcher(), pushOutboxService(), pollDeliveryService(), streamSubjectService());
         }
         return securityEventTokenDeliveryService;
     }
 
+    protected PushDeliveryDispatcher getPushDeliveryDispatcher() {
+        SsfEventListener.Factory ssfEventListenerFactory = getSsfEventListenerFactory();
+        return ssfEventListenerFactory == null ? null : ssfEventListenerFactory.getPushDeliveryDispatcher();
+    }
+
+    protected SsfEventListener.Factory getSsfEventListenerFactory() {
+        var factory = session.getKeycloakSessionFactory().getProviderFactory(EventListenerProvider.class, SsfEventListener.Factory.ID);
+        if (factory instanceof SsfEventListener.Factory ssfEventListenerFactory) {
+            return ssfEventListenerFactory;
+        }
+        return null;
+    }
+
     protected SecurityEventTokenEncoder getSecurityEventTokenEncoder() {
         if (securityEventTokenEncoder == null) {
-            securityEventTokenEncoder = new SecurityEventTokenEncoder(session);
+            securityEventTokenEncoder = new SecurityEventTokenEncoder(session, factory.getEncodingCache());
         }
         return securityEventTokenEncoder;
     }
 
+    /**
+     * Storage for stream configurations.
+     */
+    public enum StreamStoreType {
+
+        /**
+         * Node local map, streams are only visible on the node which created them.
+         */
+        IN_MEMORY,
+
+        /**
+         * {@code SSF_STREAM} table, read through a node local cache.
+         */
+        JPA
+    }
+
+    /**
+     * Storage for events of POLL streams.
+     */
+    public enum EventStoreType {
+
+        /**
+         * Node local event log, events are only visible on the node which stored them.
+         */
+        IN_MEMORY,
+
+        /**
+         * Distributed Infinispan cache, events are visible on every node.
+         */
+        INFINISPAN,
+
+        /**
+         * Database table with a sequence per stream.
+         */
+        JPA
+    }
+
     @AutoService(SharedSignalsProviderFactory.class)
     public static class Factory implements SharedSignalsProviderFactory {
 
+        private SecurityEventTokenEncodingCache encodingCache;
+
+        private final StreamConfigurationVersion streamConfigurationVersion = new StreamConfigurationVersion();
+
+        private StreamChangeNotifier streamChangeNotifier;
+
+        private final StreamRoutingIndex streamRoutingIndex = new StreamRoutingIndex(streamConfigurationVersion);
+
+        private final VerificationLatencyTracker verificationLatencyTracker = new VerificationLatencyTracker();
+
+        private PushHttpTransport pushHttpTransport;
+
+        private boolean pushPooledTransportEnabled;
+
+        private int pushMaxConcurrentRequestsPerOrigin;
+
+        private boolean pushHttp2Enabled;
+
+        private long pushClientIdleTimeoutMillis;
+
+        private ProxyMappings pushProxyMappings;
+
+        private PushCircuitBreakerRegistry pushCircuitBreakers;
+
+        private PollEventNotifier pollEventNotifier;
+
+        private InMemoryEventLog inMemoryEventLog;
+
+        private long pollRedeliveryIntervalMillis;
+
+        private long pollLeaseMillis;
+
+        private InMemoryEventLog.Limits eventLogLimits;
+
+        private EventStoreType eventStoreType;
+
+        private int infinispanEventCacheOwners;
+
+        private Cache<String, Object> infinispanEventCache;
+
+        private boolean eventStoreEncodedEvents;
+
+        private boolean eventStoreAuditEventData;
+
+        private boolean eventPurgeEnabled;
+
+        private long eventPurgeIntervalMillis;
+
+        private long acknowledgedEventRetentionMillis;
+
+        private long failedEventRetentionMillis;
+
+        private int eventPurgeBatchSize;
+
+        private SsfEventPurgeScheduler eventPurgeScheduler;
+
+        private final SsfMetrics metrics = new SsfMetrics();
+
+        private StreamStoreType streamStoreType;
+
+        private StreamConfigurationCache streamConfigurationCache;
+
+        private StreamSubjectService.DefaultSubjects defaultSubjects;
+
+        private StreamSubjectIndex streamSubjectIndex;
+
+        private TransmitterMetadataCache transmitterMetadataCache;
+
+        private int transmitterMetadataMaxAgeSeconds;
+
+        private ReceiverKeyCache receiverKeyCache;
+
         @Override
         public String getId() {
             return "default";
@@ -461,21 +705,359 @@ public class DefaultSharedSignalsProvider implements SharedSignalsProvider {
 
         @Override
         public SharedSignalsProvider create(KeycloakSession keycloakSession) {
-            return new DefaultSharedSignalsProvider(keycloakSession);
+            return new DefaultSharedSignalsProvider(keycloakSession, this);
         }
 
         @Override
         public void init(Config.Scope scope) {
+            int encodingCacheMaxEntries = scope.getInt("encoding-cache-max-entries", SecurityEventTokenEncodingCache.DEFAULT_MAX_ENTRIES);
+            encodingCache = encodingCacheMaxEntries > 0 ? new SecurityEventTokenEncodingCache(encodingCacheMaxEntries) : null;
+
+            pushPooledTransportEnabled = scope.getBoolean("push-pooled-transport", true);
+            pushMaxConcurrentRequestsPerOrigin = scope.getInt("push-max-concurrent-requests-per-origin", PushHttpTransport.DEFAULT_MAX_CONCURRENT_REQUESTS_PER_ORIGIN);
+            pushHttp2Enabled = scope.getBoolean("push-http2", true);
+            pushClientIdleTimeoutMillis = scope.getLong("push-client-idle-timeout-millis", PushHttpTransport.DEFAULT_CLIENT_IDLE_TIMEOUT_MILLIS);
+            // reuse the proxy mappings of Keycloak's own outgoing HTTP client
+            String[] proxyMappings = Config.scope("connectionsHttpClient", "default").getArray("proxy-mappings");
+            pushProxyMappings = proxyMappings == null || proxyMappings.length == 0 ? null : ProxyMappings.valueOf(proxyMappings);
+
+            if (scope.getBoolean("push-circuit-breaker-enabled", true)) {
+                PushCircuitBreaker.Settings settings = new PushCircuitBreaker.Settings(
+                        scope.getInt("push-circuit-breaker-window-size", PushCircuitBreaker.Settings.DEFAULT_WINDOW_SIZE),
+                        scope.getInt("push-circuit-breaker-minimum-calls", PushCircuitBreaker.Settings.DEFAULT_MINIMUM_CALLS),
+                        Float.parseFloat(scope.get("push-circuit-breaker-failure-rate-threshold", String.valueOf(PushCircuitBreaker.Settings.DEFAULT_FAILURE_RATE_THRESHOLD))),
+                        scope.getLong("push-circuit-breaker-slow-call-threshold-millis", PushCircuitBreaker.Settings.DEFAULT_SLOW_CALL_THRESHOLD_MILLIS),
+                        scope.getLong("push-circuit-breaker-open-duration-millis", PushCircuitBreaker.Settings.DEFAULT_OPEN_DURATION_MILLIS));
+                boolean pauseStreams = scope.getBoolean("push-circuit-breaker-pause-streams", false);
+                long idleTimeoutMillis = scope.getLong("push-circuit-breaker-idle-timeout-millis", PushCircuitBreakerRegistry.DEFAULT_IDLE_TIMEOUT_MILLIS);
+                pushCircuitBreakers = new PushCircuitBreakerRegistry(settings, pauseStreams, idleTimeoutMillis);
+            }
+
+            long pollMaxWaitMillis = scope.getLong("poll-max-wait-millis", PollEventNotifier.DEFAULT_MAX_WAIT_MILLIS);
+            pollEventNotifier = pollMaxWaitMillis > 0 ? new PollEventNotifier(pollMaxWaitMillis) : null;
+
+            eventLogLimits = new InMemoryEventLog.Limits(
+                    scope.getInt("event-store-max-events-per-stream", InMemoryEventLog.Limits.DEFAULT_MAX_EVENTS_PER_STREAM),
+                    scope.getLong("event-store-max-bytes-per-stream", InMemoryEventLog.Limits.DEFAULT_MAX_BYTES_PER_STREAM),
+                    scope.getLong("event-store-max-event-age-millis", InMemoryEventLog.Limits.DEFAULT_MAX_EVENT_AGE_MILLIS),
+                    EventEvictionPolicy.valueOf(scope.get("event-store-eviction-policy", EventEvictionPolicy.DROP_OLDEST.name()).toUpperCase()));
+            pollLeaseMillis = scope.getLong("poll-lease-millis", InMemoryEventLog.DEFAULT_LEASE_MILLIS);
+            inMemoryEventLog = new InMemoryEventLog(pollLeaseMillis, eventLogLimits);
+
+            eventStoreType = EventStoreType.valueOf(scope.get("event-store", "in-memory").toUpperCase().replace('-', '_'));
+            infinispanEventCacheOwners = scope.getInt("event-store-infinispan-owners", InfinispanEventStore.DEFAULT_OWNERS);
+            eventStoreEncodedEvents = scope.getBoolean("event-store-signed-events", true);
+            eventStoreAuditEventData = scope.getBoolean("event-store-audit-event-data", false);
+            pollRedeliveryIntervalMillis = scope.getLong("poll-redelivery-interval-millis", InMemoryEventLog.DEFAULT_REDELIVERY_INTERVAL_MILLIS);
+
+            streamStoreType = StreamStoreType.valueOf(scope.get("stream-store", "in-memory").toUpperCase().replace('-', '_'));
+            if (streamStoreType == StreamStoreType.JPA && scope.getBoolean("stream-store-cache-enabled", true)) {
+                streamConfigurationCache = new StreamConfigurationCache(streamConfigurationVersion);
+            }
+
+            defaultSubjects = StreamSubjectService.DefaultSubjects.valueOf(scope.get("default-subjects", StreamSubjectService.DefaultSubjects.ALL.name()).toUpperCase());
+            streamSubjectIndex = new StreamSubjectIndex(streamConfigurationVersion,
+                    scope.getInt("subject-bloom-filter-min-subjects", StreamSubjectIndex.DEFAULT_BLOOM_FILTER_MIN_SUBJECTS),
+                    Double.parseDouble(scope.get("subject-bloom-filter-false-positive-rate", String.valueOf(StreamSubjectIndex.DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE))));
+            streamChangeNotifier = new StreamChangeNotifier(streamConfigurationVersion, streamSubjectIndex);
+
+            if (scope.getBoolean("transmitter-metadata-cache-enabled", true)) {
+                transmitterMetadataCache = new TransmitterMetadataCache(scope.getInt("transmitter-metadata-cache-max-base-uris", TransmitterMetadataCache.DEFAULT_MAX_BASE_URIS_PER_REALM));
+            }
+            transmitterMetadataMaxAgeSeconds = scope.getInt("transmitter-metadata-max-age-seconds", TransmitterConfigurationEndpoint.DEFAULT_MAX_AGE_SECONDS);
+
+            if (scope.getBoolean("receiver-key-cache-enabled", true)) {
+                receiverKeyCache = new ReceiverKeyCache(scope.getInt("receiver-key-cache-max-entries", ReceiverKeyCache.DEFAULT_MAX_ENTRIES));
+            }
+
+            eventPurgeEnabled = scope.getBoolean("event-purge-enabled", true);
+            eventPurgeIntervalMillis = scope.getLong("event-purge-interval-millis", SsfEventPurgeScheduler.DEFAULT_INTERVAL_MILLIS);
+            acknowledgedEventRetentionMillis = scope.getLong("event-retention-acknowledged-millis", SsfEventPurgeScheduler.DEFAULT_ACKNOWLEDGED_RETENTION_MILLIS);
+            failedEventRetentionMillis = scope.getLong("event-retention-failed-millis", SsfEventPurgeScheduler.DEFAULT_FAILED_RETENTION_MILLIS);
+            eventPurgeBatchSize = scope.getInt("event-purge-batch-size", SsfEventPurgeScheduler.DEFAULT_BATCH_SIZE);
         }
 
         @Override
         public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
 
+            streamChangeNotifier.start(keycloakSessionFactory);
+
+            if (pushCircuitBreakers != null) {
+                pushCircuitBreakers.start(keycloakSessionFactory);
+            }
+
+            if (pushPooledTransportEnabled) {
+                // the truststore provider is only available within a session
+                SSLContext sslContext = KeycloakModelUtils.runJobInTransactionWithResult(keycloakSessionFactory, PushHttpTransport::createSslContext);
+                pushHttpTransport = new PushHttpTransport(pushMaxConcurrentRequestsPerOrigin, pushHttp2Enabled,
+                        pushClientIdleTimeoutMillis, sslContext, pushProxyMappings);
+            }
+
+            if (eventStoreType == EventStoreType.INFINISPAN) {
+                KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+                    var cacheManager = session.getProvider(InfinispanConnectionProvider.class)
+                            .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME)
+                            .getCacheManager();
+                    infinispanEventCache = InfinispanEventStore.getOrCreateCache(cacheManager, infinispanEventCacheOwners);
+                });
+                log.debugf("Using Infinispan event store. owners=%s", infinispanEventCacheOwners);
+            }
+
+            if (pollEventNotifier != null) {
+                // events of the in-memory store are only visible on the node which stored them
+                pollEventNotifier.start(keycloakSessionFactory, eventStoreType != EventStoreType.IN_MEMORY);
+            }
+
+            inMemoryEventLog.startRedelivery(pollRedeliveryIntervalMillis, streamId -> {
+                if (pollEventNotifier != null) {
+                    pollEventNotifier.notifyEvents(streamId);
+                }
+            });
+
+            if (eventStoreType == EventStoreType.JPA && eventPurgeEnabled) {
+                eventPurgeScheduler = new SsfEventPurgeScheduler(keycloakSessionFactory, eventPurgeIntervalMillis,
+                        acknowledgedEventRetentionMillis, failedEventRetentionMillis, eventPurgeBatchSize);
+                eventPurgeScheduler.start();
+            }
+
+            registerMetrics();
+
+            keycloakSessionFactory.register(event -> {
+                if (event instanceof RealmModel.RealmRemovedEvent realmRemoved) {
+                    onRealmRemoved(realmRemoved.getKeycloakSession(), realmRemoved.getRealm());
+                }
+            });
+        }
+
+        protected void registerMetrics() {
+            inMemoryEventLog.registerMetrics(metrics);
+            verificationLatencyTracker.registerMetrics(metrics);
+            if (eventPurgeScheduler != null) {
+                eventPurgeScheduler.registerMetrics(metrics);
+            }
+            if (streamConfigurationCache != null) {
+                streamConfigurationCache.registerMetrics(metrics);
+            }
+            if (transmitterMetadataCache != null) {
+                transmitterMetadataCache.registerMetrics(metrics);
+            }
+            if (receiverKeyCache != null) {
+                receiverKeyCache.registerMetrics(metrics);
+            }
+            if (encodingCache != null) {
+                encodingCache.registerMetrics(metrics);
+            }
+        }
+
+        /**
+         * Removes the streams, events, pending PUSH deliveries and receiver acknowledgements of a removed realm.
+         *
+         * @param session
+         * @param realm
+         */
+        protected void onRealmRemoved(KeycloakSession session, RealmModel realm) {
+
+            SharedSignalsProvider provider = session.getProvider(SharedSignalsProvider.class);
+            SsfStreamStore streamStore = provider.streamStore();
+            SsfEventStore eventStore = provider.eventStore();
+
+            int removedStreams = 0;
+            for (StreamConfiguration stream : streamStore.getStreams(realm.getId())) {
+                if (realm.getId().equals(stream.getRealmId())) {
+                    eventStore.deleteEvents(stream.getStreamId());
+                    removedStreams++;
+                }
+            }
+            streamStore.deleteStreams(realm.getId());
+            provider.subjectStore().deleteRealmSubjects(realm.getId());
+            streamConfigurationVersion.remove(realm.getId());
+            streamSubjectIndex.remove(realm.getId());
+
+            int removedDeliveries = new JpaPushOutboxStore(session).removeRealm(realm.getId());
+            int removedAcks = new JpaReceiverAckLedger(session).removeRealm(realm.getId());
+            int removedEvents = eventStoreType == EventStoreType.JPA ? new JpaEventStore(session).deleteRealmEvents(realm.getId()) : 0;
+            streamRoutingIndex.remove(realm.getId());
+            if (streamConfigurationCache != null) {
+                streamConfigurationCache.remove(realm.getId());
+            }
+            if (transmitterMetadataCache != null) {
+                transmitterMetadataCache.remove(realm.getId());
+            }
+            if (receiverKeyCache != null) {
+                receiverKeyCache.removeRealm(realm.getId());
+            }
+
+            log.debugf("Removed SSF data of realm %s. streams=%s events=%s pushDeliveries=%s receiverAcks=%s", realm.getName(), removedStreams, removedEvents, removedDeliveries, removedAcks);
+        }
+
+        /**
+         * Shared cache for signed SETs, {@literal null} if disabled.
+         *
+         * @return
+         */
+        public SecurityEventTokenEncodingCache getEncodingCache() {
+            return encodingCache;
+        }
+
+        public StreamRoutingIndex getStreamRoutingIndex() {
+            return streamRoutingIndex;
+        }
+
+        public StreamChangeNotifier getStreamChangeNotifier() {
+            return streamChangeNotifier;
+        }
+
+        /**
+         * Round-trip latency of receiver stream verifications on this node.
+         *
+         * @return
+         */
+        public VerificationLatencyTracker getVerificationLatencyTracker() {
+            return verificationLatencyTracker;
+        }
+
+        /**
+         * Pooled HTTP transport for PUSH delivery, {@literal null} if the SimpleHttp client should be used.
+         *
+         * @return
+         */
+        public PushHttpTransport getPushHttpTransport() {
+            return pushHttpTransport;
+        }
+
+        /**
+         * Circuit breakers of the receiver endpoints, {@literal null} if disabled.
+         *
+         * @return
+         */
+        public PushCircuitBreakerRegistry getPushCircuitBreakers() {
+            return pushCircuitBreakers;
+        }
+
+        /**
+         * Signals for long polling receivers, {@literal null} if long polling is disabled.
+         *
+         * @return
+         */
+        public PollEventNotifier getPollEventNotifier() {
+            return pollEventNotifier;
+        }
+
+        public InMemoryEventLog getInMemoryEventLog() {
+            return inMemoryEventLog;
+        }
+
+        public long getPollLeaseMillis() {
+            return pollLeaseMillis;
+        }
+
+        public boolean isEventStoreEncodedEvents() {
+            return eventStoreEncodedEvents;
+        }
+
+        public boolean isEventStoreAuditEventData() {
+            return eventStoreAuditEventData;
+        }
+
+        /**
+         * Purge job for the JPA event store, {@literal null} if disabled or another event store is used.
+         *
+         * @return
+         */
+        public SsfEventPurgeScheduler getEventPurgeScheduler() {
+            return eventPurgeScheduler;
+        }
+
+        public StreamSubjectService.DefaultSubjects getDefaultSubjects() {
+            return defaultSubjects;
+        }
+
+        public StreamSubjectIndex getStreamSubjectIndex() {
+            return streamSubjectIndex;
+        }
+
+        /**
+         * Node local cache of the transmitter metadata, {@literal null} if disabled.
+         *
+         * @return
+         */
+        public TransmitterMetadataCache getTransmitterMetadataCache() {
+            return transmitterMetadataCache;
+        }
+
+        public int getTransmitterMetadataMaxAgeSeconds() {
+            return transmitterMetadataMaxAgeSeconds;
+        }
+
+        /**
+         * Node local cache of the decoded transmitter keys of the receivers, {@literal null} if disabled.
+         *
+         * @return
+         */
+        public ReceiverKeyCache getReceiverKeyCache() {
+            return receiverKeyCache;
+        }
+
+        public StreamStoreType getStreamStoreType() {
+            return streamStoreType;
+        }
+
+        /**
+         * Node local cache of the streams of the JPA stream store, {@literal null} if disabled.
+         *
+         * @return
+         */
+        public StreamConfigurationCache getStreamConfigurationCache() {
+            return streamConfigurationCache;
+        }
+
+        public EventStoreType getEventStoreType() {
+            return eventStoreType;
+        }
+
+        public InfinispanEventStore createInfinispanEventStore() {
+            return new InfinispanEventStore(infinispanEventCache, pollLeaseMillis, eventLogLimits.maxEventAgeMillis(), eventLogLimits.maxEventsPerStream(), eventLogLimits.evictionPolicy());
         }
 
         @Override
         public void close() {
-
+            metrics.close();
+            if (eventPurgeScheduler != null) {
+                log.debugf("Stopping event purge scheduler. %s", eventPurgeScheduler);
+                eventPurgeScheduler.stop();
+            }
+            streamChangeNotifier.stop();
+            streamRoutingIndex.clear();
+            streamSubjectIndex.clear();
+            log.debugf("Closing verification latency tracker. %s", verificationLatencyTracker);
+            verificationLatencyTracker.clear();
+            if (streamConfigurationCache != null) {
+                log.debugf("Closing stream configuration cache. %s", streamConfigurationCache);
+                streamConfigurationCache.clear();
+            }
+            if (transmitterMetadataCache != null) {
+                log.debugf("Closing transmitter metadata cache. %s", transmitterMetadataCache);
+                transmitterMetadataCache.clear();
+            }
+            if (receiverKeyCache != null) {
+                log.debugf("Closing receiver key cache. %s", receiverKeyCache);
+                receiverKeyCache.clear();
+            }
+            if (pushCircuitBreakers != null) {
+                pushCircuitBreakers.clear();
+            }
+            if (pollEventNotifier != null) {
+                pollEventNotifier.close();
+            }
+            log.debugf("Closing in-memory event log. %s", inMemoryEventLog);
+            inMemoryEventLog.close();
+            if (pushHttpTransport != null) {
+                pushHttpTransport.close();
+            }
+            if (encodingCache != null) {
+                log.debugf("Closing SET encoding cache. %s", encodingCache);
+                encodingCache.clear();
+            }
         }
     }
 }
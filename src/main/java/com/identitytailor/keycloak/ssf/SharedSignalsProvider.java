@@ -15,18 +15,22 @@ import com.identitytailor.keycloak.ssf.transmitter.delivery.SecurityEventTokenDe
 import com.identitytailor.keycloak.ssf.transmitter.delivery.polling.PollDeliveryService;
 import com.identitytailor.keycloak.ssf.transmitter.delivery.polling.PollEndpoint;
 import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushDeliveryService;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushOutboxService;
 import com.identitytailor.keycloak.ssf.transmitter.event.SecurityEventTokenEncoder;
 import com.identitytailor.keycloak.ssf.transmitter.metadata.TransmitterConfigurationEndpoint;
 import com.identitytailor.keycloak.ssf.transmitter.metadata.TransmitterService;
 import com.identitytailor.keycloak.ssf.transmitter.storage.SsfEventStore;
 import com.identitytailor.keycloak.ssf.transmitter.storage.SsfStreamStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfSubjectStore;
 import com.identitytailor.keycloak.ssf.transmitter.streams.StreamManagementEndpoint;
 import com.identitytailor.keycloak.ssf.transmitter.streams.StreamService;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamSubjectService;
 import com.identitytailor.keycloak.ssf.transmitter.streams.StreamStatusEndpoint;
 import com.identitytailor.keycloak.ssf.transmitter.verification.VerificationEndpoint;
 import com.identitytailor.keycloak.ssf.transmitter.verification.VerificationService;
 import org.keycloak.provider.Provider;
 
+import java.util.Map;
 import java.util.Set;
 
 import static org.keycloak.utils.KeycloakSessionUtil.getKeycloakSession;
@@ -75,10 +79,19 @@ public interface SharedSignalsProvider extends Provider {
 
     Set<String> getRealmIdsWithReceivers();
 
+    /**
+     * Returns the component ids of all poll receivers grouped by realm id.
+     *
+     * @return
+     */
+    Map<String, Set<String>> getPollReceiverIdsByRealm();
+
     PollDeliveryService pollDeliveryService();
 
     StreamService streamService();
 
+    StreamSubjectService streamSubjectService();
+
     TransmitterService transmitterService();
 
     VerificationService verificationService();
@@ -87,8 +100,17 @@ public interface SharedSignalsProvider extends Provider {
 
     SsfStreamStore streamStore();
 
+    SsfSubjectStore subjectStore();
+
     PushDeliveryService pushDeliveryService();
 
+    /**
+     * Durable outbox for PUSH deliveries, {@literal null} if the outbox is disabled.
+     *
+     * @return
+     */
+    PushOutboxService pushOutboxService();
+
     ReceiverManager receiverManager();
 
     SecurityEventTokenEncoder securityEventTokenEncoder();
@@ -1,6 +1,10 @@
 package com.identitytailor.keycloak.ssf;
 
 import com.google.auto.service.AutoService;
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
+import com.identitytailor.keycloak.ssf.receiver.delivery.poll.PollReceiverRegistry;
+import com.identitytailor.keycloak.ssf.receiver.delivery.poll.ReceiverPollOwnership;
+import com.identitytailor.keycloak.ssf.receiver.delivery.poll.ReceiverPollingState;
 import com.identitytailor.keycloak.ssf.receiver.delivery.poll.SharedSignalsStreamPollerBootstrap;
 import com.identitytailor.keycloak.ssf.receiver.delivery.push.PushEndpoint;
 import com.identitytailor.keycloak.ssf.receiver.management.ReceiverManagementEndpoint;
@@ -13,9 +17,14 @@ import jakarta.ws.rs.Path;
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response;
 import lombok.extern.jbosslog.JBossLog;
+import org.infinispan.manager.EmbeddedCacheManager;
 import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.services.managers.AppAuthManager;
 import org.keycloak.services.managers.AuthenticationManager;
@@ -113,6 +122,20 @@ public class SharedSignalsRealmResourceProvider implements RealmResourceProvider
 
         private static final SharedSignalsRealmResourceProvider INSTANCE = new SharedSignalsRealmResourceProvider();
 
+        private ReceiverPollingState.PollingSettings pollingSettings;
+
+        private Duration pollTimeout;
+
+        private PollReceiverRegistry pollReceiverRegistry;
+
+        private double pollJitterRatio;
+
+        private boolean pollClusterOwnership;
+
+        private SharedSignalsStreamPollerBootstrap streamPollerBootstrap;
+
+        private final SsfMetrics metrics = new SsfMetrics();
+
         /**
          * Exposes the SSF endpoints via $ISSUER/ssf
          * @return
@@ -129,6 +152,14 @@ public class SharedSignalsRealmResourceProvider implements RealmResourceProvider
 
         @Override
         public void init(Config.Scope scope) {
+            pollingSettings = new ReceiverPollingState.PollingSettings(
+                    Duration.ofMillis(scope.getLong("poll-min-interval-millis", ReceiverPollingState.PollingSettings.DEFAULT_MIN_INTERVAL.toMillis())),
+                    Duration.ofMillis(scope.getLong("poll-max-interval-millis", ReceiverPollingState.PollingSettings.DEFAULT_MAX_INTERVAL.toMillis())),
+                    scope.getInt("poll-max-catch-up-events", ReceiverPollingState.PollingSettings.DEFAULT_MAX_CATCH_UP_EVENTS));
+            pollTimeout = Duration.ofMillis(scope.getLong("poll-timeout-millis", SharedSignalsStreamPollerBootstrap.DEFAULT_POLL_TIMEOUT.toMillis()));
+            pollReceiverRegistry = new PollReceiverRegistry();
+            pollJitterRatio = Double.parseDouble(scope.get("poll-jitter-ratio", String.valueOf(SharedSignalsStreamPollerBootstrap.DEFAULT_JITTER_RATIO)));
+            pollClusterOwnership = scope.getBoolean("poll-cluster-ownership", true);
         }
 
         @Override
@@ -136,18 +167,64 @@ public class SharedSignalsRealmResourceProvider implements RealmResourceProvider
             keycloakSessionFactory.register(event -> {
                 if (event instanceof PostMigrationEvent) {
                     bootstrapPolling(keycloakSessionFactory);
+                } else if (event instanceof RealmModel.RealmRemovedEvent realmRemoved) {
+                    String realmId = realmRemoved.getRealm().getId();
+                    realmRemoved.getKeycloakSession().getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                        @Override
+                        protected void commitImpl() {
+                            pollReceiverRegistry.removeRealm(realmId);
+                        }
+
+                        @Override
+                        protected void rollbackImpl() {
+                            // NOOP
+                        }
+                    });
                 }
             });
         }
 
         @Override
         public void close() {
+            metrics.close();
+            if (streamPollerBootstrap != null) {
+                log.debugf("Stopping security event poller. %s", streamPollerBootstrap);
+                streamPollerBootstrap.stop();
+            }
+            pollReceiverRegistry.stop();
+        }
+
+        /**
+         * Poll receivers of all realms, kept up to date across the cluster.
+         *
+         * @return
+         */
+        public PollReceiverRegistry getPollReceiverRegistry() {
+            return pollReceiverRegistry;
+        }
+
+        /**
+         * Scheduler of the poll receivers on this node, {@literal null} until polling was bootstrapped.
+         *
+         * @return
+         */
+        public SharedSignalsStreamPollerBootstrap getStreamPollerBootstrap() {
+            return streamPollerBootstrap;
         }
 
         protected void bootstrapPolling(KeycloakSessionFactory keycloakSessionFactory) {
-            // TODO fetch pollingInterval from config
-            Duration pollingInterval = Duration.ofSeconds(5);
-            new SharedSignalsStreamPollerBootstrap(keycloakSessionFactory, pollingInterval).schedulePolling();
+            ReceiverPollOwnership pollOwnership = pollClusterOwnership ? createPollOwnership(keycloakSessionFactory) : null;
+            streamPollerBootstrap = new SharedSignalsStreamPollerBootstrap(keycloakSessionFactory, pollingSettings, pollTimeout, pollJitterRatio, pollOwnership, pollReceiverRegistry);
+            streamPollerBootstrap.registerMetrics(metrics);
+            streamPollerBootstrap.schedulePolling();
+        }
+
+        protected ReceiverPollOwnership createPollOwnership(KeycloakSessionFactory keycloakSessionFactory) {
+            EmbeddedCacheManager cacheManager = KeycloakModelUtils.runJobInTransactionWithResult(keycloakSessionFactory, session -> {
+                InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+                return infinispan == null ? null : infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME).getCacheManager();
+            });
+            return new ReceiverPollOwnership(cacheManager);
         }
     }
 }
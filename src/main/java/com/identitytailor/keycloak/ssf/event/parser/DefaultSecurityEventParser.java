@@ -1,10 +1,14 @@
 package com.identitytailor.keycloak.ssf.event.parser;
 
 import com.identitytailor.keycloak.ssf.event.SecurityEventToken;
+import com.identitytailor.keycloak.ssf.keys.ReceiverKeyCache;
+import com.identitytailor.keycloak.ssf.keys.TransmitterKeyManager;
+import com.identitytailor.keycloak.ssf.receiver.ReceiverKeyModel;
 import com.identitytailor.keycloak.ssf.receiver.SharedSignalsReceiver;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.crypto.SignatureProvider;
+import org.keycloak.crypto.SignatureVerifierContext;
 import org.keycloak.jose.jws.JWSHeader;
 import org.keycloak.jose.jws.JWSInput;
 import org.keycloak.models.KeycloakSession;
@@ -16,8 +20,19 @@ public class DefaultSecurityEventParser implements SecurityEventParser {
 
     protected final KeycloakSession session;
 
+    protected final ReceiverKeyCache keyCache;
+
     public DefaultSecurityEventParser(KeycloakSession session) {
+        this(session, null);
+    }
+
+    /**
+     * @param session
+     * @param keyCache cache of the decoded transmitter keys, {@literal null} to decode the keys for every SET
+     */
+    public DefaultSecurityEventParser(KeycloakSession session, ReceiverKeyCache keyCache) {
         this.session = session;
+        this.keyCache = keyCache;
     }
 
     @Override
@@ -44,26 +59,45 @@ public class DefaultSecurityEventParser implements SecurityEventParser {
             String kid = header.getKeyId();
             String alg = header.getRawAlgorithm();
 
-            KeyWrapper key = receiver.getKeys()
-                    .filter(kw -> kw.getKid().equals(kid) && kw.getAlgorithm().equals(alg))
+            ReceiverKeyModel keyModel = receiver.getKeyModels()
+                    .filter(km -> kid != null && kid.equals(km.getKid()) && alg.equals(km.getAlgorithm()))
                     .findFirst()
                     .orElse(null);
-            if (key == null) {
+            if (keyModel == null) {
                 throw new SharedSignalsParsingException("Could not find key with kid " + kid);
             }
 
-            SignatureProvider signatureProvider = session.getProvider(SignatureProvider.class, alg);
-            if (signatureProvider == null) {
-                throw new SharedSignalsParsingException("Could not find verifier for alg " + alg);
-            }
+            SignatureVerifierContext verifier = getVerifier(receiver, keyModel, alg);
 
             byte[] tokenBytes = jws.getEncodedSignatureInput().getBytes(StandardCharsets.UTF_8);
-            boolean valid = signatureProvider.verifier(key)
-                    .verify(tokenBytes, jws.getSignature());
+            boolean valid = verifier.verify(tokenBytes, jws.getSignature());
             return valid ? jws.readJsonContent(SecurityEventToken.class) : null;
         } catch (Exception e) {
             log.debug("Failed to decode token", e);
             return null;
         }
     }
+
+    protected SignatureVerifierContext getVerifier(SharedSignalsReceiver receiver, ReceiverKeyModel keyModel, String alg) {
+
+        SignatureProvider signatureProvider = session.getProvider(SignatureProvider.class, alg);
+        if (signatureProvider == null) {
+            throw new SharedSignalsParsingException("Could not find verifier for alg " + alg);
+        }
+
+        if (keyCache == null) {
+            return createVerifier(signatureProvider, TransmitterKeyManager.createKeyWrapper(keyModel));
+        }
+
+        String realmId = session.getContext().getRealm().getId();
+        return keyCache.getEntry(realmId, receiver.getReceiverModel().getId(), keyModel, key -> createVerifier(signatureProvider, key)).verifier();
+    }
+
+    protected SignatureVerifierContext createVerifier(SignatureProvider signatureProvider, KeyWrapper key) {
+        try {
+            return signatureProvider.verifier(key);
+        } catch (Exception e) {
+            throw new SharedSignalsParsingException("Could not create verifier for key with kid " + key.getKid(), e);
+        }
+    }
 }
@@ -13,9 +13,11 @@ import com.identitytailor.keycloak.ssf.event.types.StreamUpdatedEvent;
 import com.identitytailor.keycloak.ssf.event.types.VerificationEvent;
 import com.identitytailor.keycloak.ssf.receiver.ReceiverModel;
 import com.identitytailor.keycloak.ssf.receiver.verification.SharedSignalsStreamVerificationException;
+import com.identitytailor.keycloak.ssf.receiver.verification.VerificationLatencyTracker;
 import com.identitytailor.keycloak.ssf.receiver.verification.VerificationState;
 import com.identitytailor.keycloak.ssf.storage.VerificationStore;
 import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.common.util.Time;
 import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.RealmModel;
 
@@ -30,9 +32,12 @@ public class DefaultSecurityEventProcessor implements SecurityEventProcessor {
 
     protected final VerificationStore verificationStore;
 
-    public DefaultSecurityEventProcessor(SharedSignalsProvider sharedSignals, SecurityEventListener securityEventListener, VerificationStore verificationStore) {
+    protected final VerificationLatencyTracker verificationLatencyTracker;
+
+    public DefaultSecurityEventProcessor(SharedSignalsProvider sharedSignals, SecurityEventListener securityEventListener, VerificationStore verificationStore, VerificationLatencyTracker verificationLatencyTracker) {
         this.securityEventListener = securityEventListener;
         this.verificationStore = verificationStore;
+        this.verificationLatencyTracker = verificationLatencyTracker;
     }
 
     @Override
@@ -120,7 +125,11 @@ public class DefaultSecurityEventProcessor implements SecurityEventProcessor {
         String expectedState = verificationState == null ? null : verificationState.getState();
 
         if (givenState.equals(expectedState)) {
-            log.debugf("Verification successful!. jti=%s state=%s", jti, givenState);
+            long latencyMillis = Time.currentTimeMillis() - verificationState.getTimestamp();
+            log.debugf("Verification successful!. jti=%s state=%s latency=%sms", jti, givenState, latencyMillis);
+            if (verificationLatencyTracker != null) {
+                verificationLatencyTracker.record(receiverModel.getAlias(), latencyMillis);
+            }
             verificationStore.clearVerificationState(realm, receiverModel);
             return true;
         }
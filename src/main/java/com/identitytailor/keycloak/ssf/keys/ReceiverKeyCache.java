@@ -0,0 +1,130 @@
+package com.identitytailor.keycloak.ssf.keys;
+
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
+import com.identitytailor.keycloak.ssf.receiver.ReceiverKeyModel;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.crypto.SignatureVerifierContext;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Node local cache of the decoded transmitter keys and signature verifiers of the receivers.
+ * <p>
+ * Entries are indexed by receiver, kid and algorithm. Every entry remembers the key component and the encoded public key it
+ * was decoded from, and is decoded again once the component changed, e.g. after the keys were refreshed on another node.
+ * Verifying a SET with a cached entry therefore only costs the signature verification itself.
+ */
+@JBossLog
+public class ReceiverKeyCache {
+
+    /**
+     * Maximum number of cached keys, limits the cache if transmitters rotate their keys frequently.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private final int maxEntries;
+
+    private final ConcurrentMap<KeyId, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public ReceiverKeyCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the decoded key and verifier for the given key component of a receiver.
+     *
+     * @param realmId
+     * @param receiverId
+     * @param keyModel
+     * @param verifierFactory Creates the verifier for a decoded key
+     * @return
+     */
+    public Entry getEntry(String realmId, String receiverId, ReceiverKeyModel keyModel, Function<KeyWrapper, SignatureVerifierContext> verifierFactory) {
+
+        KeyId keyId = new KeyId(receiverId, keyModel.getKid(), keyModel.getAlgorithm());
+
+        Entry entry = entries.get(keyId);
+        if (entry != null && entry.componentId().equals(keyModel.getId()) && entry.encodedPublicKey().equals(keyModel.getPublicKey())) {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        misses.incrementAndGet();
+        KeyWrapper key = TransmitterKeyManager.createKeyWrapper(keyModel);
+        entry = new Entry(realmId, keyModel.getId(), keyModel.getPublicKey(), key, verifierFactory.apply(key));
+
+        if (entries.size() >= maxEntries && !entries.containsKey(keyId)) {
+            log.debugf("Too many cached receiver keys, dropping cached entries. entries=%s", entries.size());
+            entries.clear();
+        }
+        entries.put(keyId, entry);
+        return entry;
+    }
+
+    /**
+     * Drops the cached keys of the given receiver on this node.
+     *
+     * @param receiverId
+     */
+    public void remove(String receiverId) {
+        entries.keySet().removeIf(keyId -> keyId.receiverId().equals(receiverId));
+    }
+
+    /**
+     * Drops the cached keys of all receivers of the given realm on this node.
+     *
+     * @param realmId
+     */
+    public void removeRealm(String realmId) {
+        entries.values().removeIf(entry -> entry.realmId().equals(realmId));
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void registerMetrics(SsfMetrics metrics) {
+        metrics.counter("receiver.key.cache.hits", "Transmitter key lookups served from the receiver key cache", this, ReceiverKeyCache::getHits);
+        metrics.counter("receiver.key.cache.misses", "Transmitter key lookups which parsed the key and created a verifier", this, ReceiverKeyCache::getMisses);
+    }
+
+    @Override
+    public String toString() {
+        return "ReceiverKeyCache{" +
+               "entries=" + entries.size() +
+               ", hits=" + hits.get() +
+               ", misses=" + misses.get() +
+               '}';
+    }
+
+    protected record KeyId(String receiverId, String kid, String algorithm) {
+    }
+
+    /**
+     * Cached transmitter key.
+     *
+     * @param realmId          The realm of the receiver
+     * @param componentId      The id of the receiver key component
+     * @param encodedPublicKey The encoded public key the entry was decoded from
+     * @param key              The decoded key
+     * @param verifier         The signature verifier for the key, shared by all threads
+     */
+    public record Entry(String realmId, String componentId, String encodedPublicKey, KeyWrapper key, SignatureVerifierContext verifier) {
+    }
+}
@@ -1,6 +1,8 @@
 package com.identitytailor.keycloak.ssf.keys;
 
 import com.identitytailor.keycloak.ssf.event.parser.SharedSignalsParsingException;
+import com.identitytailor.keycloak.ssf.receiver.ReceiverKeyModel;
+import org.keycloak.crypto.KeyWrapper;
 
 import java.security.KeyFactory;
 import java.security.PublicKey;
@@ -9,6 +11,17 @@ import java.util.Base64;
 
 public class TransmitterKeyManager {
 
+    public static KeyWrapper createKeyWrapper(ReceiverKeyModel receiverKey) {
+        PublicKey publicKey = decodePublicKey(receiverKey.getPublicKey(), receiverKey.getType(), receiverKey.getAlgorithm());
+        KeyWrapper key = new KeyWrapper();
+        key.setKid(receiverKey.getKid());
+        key.setAlgorithm(receiverKey.getAlgorithm());
+        key.setUse(receiverKey.getKeyUse());
+        key.setType(receiverKey.getType());
+        key.setPublicKey(publicKey);
+        return key;
+    }
+
     public static PublicKey decodePublicKey(String key, String keyType, String alg){
         try{
             byte[] byteKey = Base64.getDecoder().decode(key);
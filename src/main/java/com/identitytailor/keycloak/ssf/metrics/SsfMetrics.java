@@ -0,0 +1,92 @@
+package com.identitytailor.keycloak.ssf.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Registers the node local statistics of the SSF components as Micrometer meters.
+ * <p>
+ * The meters read the statistics of the components on every scrape, so the components keep their own counters.
+ * They are exported via Keycloak's metrics endpoint if metrics are enabled. Every provider factory uses its own instance
+ * and removes its meters again on close.
+ */
+public class SsfMetrics {
+
+    public static final String PREFIX = "ssf.";
+
+    private final MeterRegistry registry;
+
+    private final List<Meter> meters = new CopyOnWriteArrayList<>();
+
+    public SsfMetrics() {
+        this(Metrics.globalRegistry);
+    }
+
+    public SsfMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Registers a monotonically increasing count.
+     *
+     * @param name        meter name without the {@link #PREFIX}
+     * @param description
+     * @param state       the component, only weakly referenced by the meter
+     * @param count
+     * @param <T>
+     */
+    public <T> void counter(String name, String description, T state, ToDoubleFunction<T> count) {
+        meters.add(FunctionCounter.builder(PREFIX + name, state, count)
+                .description(description)
+                .register(registry));
+    }
+
+    /**
+     * Registers a current value.
+     *
+     * @param name        meter name without the {@link #PREFIX}
+     * @param description
+     * @param state       the component, only weakly referenced by the meter
+     * @param value
+     * @param <T>
+     */
+    public <T> void gauge(String name, String description, T state, ToDoubleFunction<T> value) {
+        meters.add(Gauge.builder(PREFIX + name, state, value)
+                .description(description)
+                .register(registry));
+    }
+
+    /**
+     * Registers a count of operations together with their total duration in milliseconds.
+     *
+     * @param name              meter name without the {@link #PREFIX}
+     * @param description
+     * @param state             the component, only weakly referenced by the meter
+     * @param count
+     * @param totalTimeMillis
+     * @param <T>
+     */
+    public <T> void timer(String name, String description, T state, ToLongFunction<T> count, ToDoubleFunction<T> totalTimeMillis) {
+        meters.add(FunctionTimer.builder(PREFIX + name, state, count, totalTimeMillis, TimeUnit.MILLISECONDS)
+                .description(description)
+                .register(registry));
+    }
+
+    /**
+     * Removes all meters registered by this instance.
+     */
+    public void close() {
+        meters.forEach(registry::remove);
+        meters.clear();
+    }
+}
@@ -16,7 +16,6 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 
 import java.net.URI;
-import java.security.PublicKey;
 import java.util.Collection;
 import java.util.Set;
 import java.util.UUID;
@@ -58,20 +57,15 @@ public class DefaultSharedSignalsReceiver implements SharedSignalsReceiver {
 
     @Override
     public Stream<KeyWrapper> getKeys() {
+        return getKeyModels().map(TransmitterKeyManager::createKeyWrapper);
+    }
+
+    @Override
+    public Stream<ReceiverKeyModel> getKeyModels() {
 
         RealmModel realm = session.getContext().getRealm();
 
-        return realm.getComponentsStream(receiverModel.getId(), KeyProvider.class.getName()).map(ReceiverKeyModel::new).map(receiverKey -> {
-            String encodedPublicKey = receiverKey.getPublicKey();
-            PublicKey publicKey = TransmitterKeyManager.decodePublicKey(encodedPublicKey, receiverKey.getType(), receiverKey.getAlgorithm());
-            KeyWrapper key = new KeyWrapper();
-            key.setKid(receiverKey.getKid());
-            key.setAlgorithm(receiverKey.getAlgorithm());
-            key.setUse(receiverKey.getKeyUse());
-            key.setType(receiverKey.getType());
-            key.setPublicKey(publicKey);
-            return key;
-        });
+        return realm.getComponentsStream(receiverModel.getId(), KeyProvider.class.getName()).map(ReceiverKeyModel::new);
     }
 
     @Override
@@ -1,6 +1,8 @@
 package com.identitytailor.keycloak.ssf.receiver;
 
 import com.google.auto.service.AutoService;
+import com.identitytailor.keycloak.ssf.SharedSignalsRealmResourceProvider;
+import com.identitytailor.keycloak.ssf.storage.jpa.JpaReceiverAckLedger;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
@@ -9,6 +11,7 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.services.resource.RealmResourceProvider;
 
 import java.util.List;
 
@@ -44,6 +47,37 @@ public class DefaultSharedSignalsReceiverFactory implements SharedSignalsReceive
     @Override
     public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
         log.infof("Created default shared signals receiver for realm '%s'", realm.getId());
+        updatePollReceiverRegistry(session, realm, model, false);
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        updatePollReceiverRegistry(session, realm, newModel, false);
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        updatePollReceiverRegistry(session, realm, model, true);
+        new JpaReceiverAckLedger(session).removeReceiver(model.getId());
+    }
+
+    /**
+     * Starts or stops the polling of the given receiver on every node once the current transaction committed.
+     *
+     * @param session
+     * @param realm
+     * @param model
+     * @param removed
+     */
+    protected void updatePollReceiverRegistry(KeycloakSession session, RealmModel realm, ComponentModel model, boolean removed) {
+
+        var providerFactory = session.getKeycloakSessionFactory().getProviderFactory(RealmResourceProvider.class, "ssf");
+        if (!(providerFactory instanceof SharedSignalsRealmResourceProvider.Factory ssfFactory)) {
+            return;
+        }
+
+        boolean pollDelivery = !removed && new ReceiverModel(model).isPollDelivery();
+        ssfFactory.getPollReceiverRegistry().publishAfterCommit(session, realm.getId(), model.getId(), pollDelivery);
     }
 
     @Override
@@ -30,6 +30,10 @@ public class ReceiverConfig {
 
     protected int pollIntervalSeconds;
 
+    protected Integer maxPollIntervalSeconds;
+
+    protected Integer maxCatchUpEvents;
+
     protected Set<String> eventsRequested;
 
     protected String providerId;
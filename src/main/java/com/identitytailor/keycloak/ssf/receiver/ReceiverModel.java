@@ -49,6 +49,8 @@ public class ReceiverModel extends ComponentModel {
 
         model.setTransmitterPollUrl(config.getTransmitterPollUrl());
         model.setPollIntervalSeconds(config.getPollIntervalSeconds());
+        model.setMaxPollIntervalSeconds(config.getMaxPollIntervalSeconds());
+        model.setMaxCatchUpEvents(config.getMaxCatchUpEvents());
         model.setManagedStream(config.getManagedStream());
 
         if (config.getMaxEvents() != null) {
@@ -161,6 +163,46 @@ public class ReceiverModel extends ComponentModel {
         }
     }
 
+    /**
+     * Upper bound of the poll interval while the stream of the receiver stays empty.
+     *
+     * @return
+     */
+    public Integer getMaxPollIntervalSeconds() {
+        String maxPollIntervalSeconds = getConfig().getFirst("maxPollIntervalSeconds");
+        if (maxPollIntervalSeconds == null || maxPollIntervalSeconds.isEmpty()) {
+            return null;
+        }
+
+        return Integer.parseInt(maxPollIntervalSeconds);
+    }
+
+    public void setMaxPollIntervalSeconds(Integer maxPollIntervalSeconds) {
+        if (maxPollIntervalSeconds != null) {
+            getConfig().putSingle("maxPollIntervalSeconds", Integer.toString(maxPollIntervalSeconds));
+        }
+    }
+
+    /**
+     * Upper bound of the number of events requested per poll while draining a backlog.
+     *
+     * @return
+     */
+    public Integer getMaxCatchUpEvents() {
+        String maxCatchUpEvents = getConfig().getFirst("maxCatchUpEvents");
+        if (maxCatchUpEvents == null || maxCatchUpEvents.isEmpty()) {
+            return null;
+        }
+
+        return Integer.parseInt(maxCatchUpEvents);
+    }
+
+    public void setMaxCatchUpEvents(Integer maxCatchUpEvents) {
+        if (maxCatchUpEvents != null) {
+            getConfig().putSingle("maxCatchUpEvents", Integer.toString(maxCatchUpEvents));
+        }
+    }
+
     public String getTransmitterAccessToken() {
         return getConfig().getFirst("transmitterAccessToken");
     }
@@ -210,7 +252,7 @@ public class ReceiverModel extends ComponentModel {
     }
 
     public boolean isPollDelivery() {
-        return DeliveryMethod.POLL.equals(getDeliveryMethod());
+        return DeliveryMethod.POLL.name().equals(getConfig().getFirst("deliveryMethod"));
     }
 
     public void setAudience(Set<String> audience) {
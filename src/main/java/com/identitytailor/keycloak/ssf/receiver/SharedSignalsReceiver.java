@@ -14,6 +14,13 @@ public interface SharedSignalsReceiver extends Provider {
 
     Stream<KeyWrapper> getKeys();
 
+    /**
+     * Returns the key components of the receiver without decoding the public keys.
+     *
+     * @return
+     */
+    Stream<ReceiverKeyModel> getKeyModels();
+
     ReceiverModel getReceiverModel();
 
     ReceiverModel registerStream();
@@ -1,18 +1,24 @@
 package com.identitytailor.keycloak.ssf.receiver.delivery.poll;
 
+import com.identitytailor.keycloak.ssf.SharedSignalsFailureResponse;
 import com.identitytailor.keycloak.ssf.SharedSignalsProvider;
 import com.identitytailor.keycloak.ssf.event.ErrorSecurityEventToken;
 import com.identitytailor.keycloak.ssf.event.SecurityEventToken;
 import com.identitytailor.keycloak.ssf.event.processor.SecurityEventProcessingContext;
 import com.identitytailor.keycloak.ssf.receiver.ReceiverModel;
 import com.identitytailor.keycloak.ssf.receiver.verification.SharedSignalsStreamVerificationException;
+import com.identitytailor.keycloak.ssf.storage.jpa.JpaReceiverAckLedger;
+import com.identitytailor.keycloak.ssf.storage.jpa.SsfReceiverAckEntity;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.broker.provider.util.SimpleHttp;
-import org.keycloak.common.util.CollectionUtil;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -20,6 +26,11 @@ import java.util.Set;
  * RFC 8936 Poll-Based Security Event Token (SET) Delivery Using HTTP
  * <p>
  * https://www.rfc-editor.org/rfc/rfc8936.html
+ * <p>
+ * Processed SETs are recorded in the acknowledgement ledger of the receiver in the same transaction as their processing and
+ * acknowledged with the next poll request, or with an ack-only request right after that transaction committed. Ledger entries are
+ * only removed once the transmitter accepted the acknowledgement. SETs which are redelivered before their acknowledgement reached
+ * the transmitter, e.g. after a restart, are acknowledged again without being processed twice.
  */
 @JBossLog
 public class DefaultSharedSignalsStreamPoller implements SharedSignalsStreamPoller {
@@ -31,65 +42,195 @@ public class DefaultSharedSignalsStreamPoller implements SharedSignalsStreamPoll
     }
 
     @Override
-    public void pollEvents(SecurityEventPollingContext pollingContext, RealmModel realm, ReceiverModel receiverModel) {
+    public SecurityEventPollingResult pollEvents(SecurityEventPollingContext pollingContext, RealmModel realm, ReceiverModel receiverModel, int maxEvents) {
 
         SharedSignalsProvider sharedSignals = session.getProvider(SharedSignalsProvider.class);
+        JpaReceiverAckLedger ackLedger = createAckLedger();
+
+        if (!pollingContext.isLoaded()) {
+            loadPendingAcknowledgements(pollingContext, ackLedger, receiverModel);
+        }
 
-        SecurityEventPollingRequest pollingRequest = createPollingRequest(pollingContext, receiverModel);
+        SecurityEventPollingRequest pollingRequest = createPollingRequest(pollingContext, receiverModel, maxEvents);
 
         log.tracef("Sending polling request. %s", pollingRequest);
         SimpleHttp pollingHttp = preparePollingHttpClient(pollingRequest, receiverModel);
 
+        SecurityEventPollingResult result;
         try (var response = pollingHttp.asResponse()) {
             log.tracef("Received polling response. status=%s", response.getStatus());
             if (response.getStatus() == 200) {
-                pollingContext.markSecurityEventAsAcknowledged(pollingRequest.getAck());
+                markSecurityEventsAsReported(pollingContext, ackLedger, pollingRequest, receiverModel);
             }
             SecurityEventPollingResponse pollingResponse = response.asJson(SecurityEventPollingResponse.class);
             if (pollingResponse != null) {
                 processPollingResponse(realm, pollingContext, pollingRequest, pollingResponse, sharedSignals, receiverModel);
             }
+            result = createPollingResult(response.getStatus(), pollingResponse);
         } catch (IOException e) {
             log.warnf(e, "Failed to fetch events from polling endpoint. %s", pollingRequest);
+            result = SecurityEventPollingResult.FAILED;
+        }
+
+        saveAcknowledgements(pollingContext, ackLedger, realm, receiverModel);
+
+        if (receiverModel.isAcknowledgeImmediately()) {
+            sendAcknowledgementsAfterCommit(pollingContext, receiverModel);
         }
 
-        if (!receiverModel.isAcknowledgeImmediately()) {
+        return result;
+    }
+
+    protected JpaReceiverAckLedger createAckLedger() {
+        return createAckLedger(session);
+    }
+
+    protected JpaReceiverAckLedger createAckLedger(KeycloakSession session) {
+        return new JpaReceiverAckLedger(session);
+    }
+
+    /**
+     * Loads the SETs which were processed but not yet acknowledged, e.g. before a restart, from the ledger.
+     *
+     * @param pollingContext
+     * @param ackLedger
+     * @param receiverModel
+     */
+    protected void loadPendingAcknowledgements(SecurityEventPollingContext pollingContext, JpaReceiverAckLedger ackLedger, ReceiverModel receiverModel) {
+
+        for (SsfReceiverAckEntity entry : ackLedger.getPendingAcknowledgements(receiverModel.getId())) {
+            SharedSignalsFailureResponse failureResponse = entry.getError() == null ? null : new SharedSignalsFailureResponse(entry.getError(), entry.getErrorDescription());
+            pollingContext.restore(entry.getJti(), failureResponse);
+        }
+        pollingContext.setLoaded(true);
+
+        log.debugf("Loaded pending acknowledgements. receiver=%s acks=%s errors=%s", receiverModel.getAlias(),
+                pollingContext.getSecurityEventIdsToAcknowledge().size(), pollingContext.getErrors().size());
+    }
+
+    /**
+     * Removes the acknowledgements and errors of the given request, which was accepted by the transmitter, from the context and the ledger.
+     *
+     * @param pollingContext
+     * @param ackLedger
+     * @param request
+     * @param receiverModel
+     */
+    protected void markSecurityEventsAsReported(SecurityEventPollingContext pollingContext, JpaReceiverAckLedger ackLedger, SecurityEventPollingRequest request, ReceiverModel receiverModel) {
+
+        Set<String> reported = new HashSet<>();
+        if (request.getAck() != null) {
+            reported.addAll(request.getAck());
+        }
+        if (request.getSetErrs() != null) {
+            reported.addAll(request.getSetErrs().keySet());
+        }
+        if (reported.isEmpty()) {
+            return;
+        }
+
+        Set<String> saved = pollingContext.markSecurityEventsAsReported(reported);
+        int removed = ackLedger.removeAcknowledgements(receiverModel.getId(), saved);
+        log.tracef("Reported security events to transmitter. receiver=%s reported=%s removedFromLedger=%s", receiverModel.getAlias(), reported.size(), removed);
+    }
+
+    /**
+     * Writes the acknowledgements and errors registered by this poll to the ledger in one batch, within the transaction which processed the SETs.
+     *
+     * @param pollingContext
+     * @param ackLedger
+     * @param realm
+     * @param receiverModel
+     */
+    protected void saveAcknowledgements(SecurityEventPollingContext pollingContext, JpaReceiverAckLedger ackLedger, RealmModel realm, ReceiverModel receiverModel) {
+
+        Set<String> acks = pollingContext.drainUnsavedAcknowledgements();
+        Map<String, SharedSignalsFailureResponse> errors = pollingContext.drainUnsavedErrors();
+        if (acks.isEmpty() && errors.isEmpty()) {
             return;
         }
 
-        sendAcknowledgements(pollingContext, pollingRequest, receiverModel);
+        ackLedger.addAcknowledgements(realm.getId(), receiverModel.getId(), acks);
+        ackLedger.addErrors(realm.getId(), receiverModel.getId(), errors);
+        log.tracef("Saved pending acknowledgements. receiver=%s acks=%s errors=%s", receiverModel.getAlias(), acks.size(), errors.size());
     }
 
-    private void sendAcknowledgements(SecurityEventPollingContext pollingContext, SecurityEventPollingRequest pollingRequest, ReceiverModel receiverModel) {
+    protected SecurityEventPollingResult createPollingResult(int status, SecurityEventPollingResponse pollingResponse) {
 
-        if (!pollingContext.hasSecurityEventsToAcknowledge()) {
+        if (status != 200) {
+            return SecurityEventPollingResult.FAILED;
+        }
+
+        if (pollingResponse == null) {
+            return new SecurityEventPollingResult(true, 0, false);
+        }
+
+        int receivedEvents = pollingResponse.getSets() == null ? 0 : pollingResponse.getSets().size();
+        // a transmitter which claims more events but returns none would otherwise be polled in a tight loop
+        boolean moreAvailable = pollingResponse.isMoreAvailable() && receivedEvents > 0;
+        return new SecurityEventPollingResult(true, receivedEvents, moreAvailable);
+    }
+
+    /**
+     * Acknowledges the processed SETs with an ack-only request once the transaction which processed them and recorded them in the
+     * ledger committed, so that the transmitter never drops SETs whose processing was rolled back.
+     *
+     * @param pollingContext
+     * @param receiverModel
+     */
+    protected void sendAcknowledgementsAfterCommit(SecurityEventPollingContext pollingContext, ReceiverModel receiverModel) {
+
+        if (!pollingContext.hasSecurityEventsToAcknowledge() && !pollingContext.hasErrors()) {
             return;
         }
 
-        log.tracef("Sending ack-only request. %s", pollingRequest);
-        SecurityEventPollingRequest ackOnlyRequest = createAckOnlyRequest(pollingContext.getSecurityEventIdsToAcknowledge());
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                sendAcknowledgements(pollingContext, receiverModel);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                // NOOP
+            }
+        });
+    }
+
+    protected void sendAcknowledgements(SecurityEventPollingContext pollingContext, ReceiverModel receiverModel) {
+
+        SecurityEventPollingRequest ackOnlyRequest = createAckOnlyRequest(new HashSet<>(pollingContext.getSecurityEventIdsToAcknowledge()));
+        ackOnlyRequest.setSetErrs(new HashMap<>(pollingContext.getErrors()));
+        log.tracef("Sending ack-only request. %s", ackOnlyRequest);
         SimpleHttp pollingHttp = preparePollingHttpClient(ackOnlyRequest, receiverModel);
 
         try (var response = pollingHttp.asResponse()) {
             log.tracef("Received acknowledge response. status=%s", response.getStatus());
-            SecurityEventPollingResponse pollingResponse = response.asJson(SecurityEventPollingResponse.class);
-            if (pollingResponse != null) {
-                processAcknowledgementResponse(pollingContext, pollingResponse, pollingRequest);
+            if (response.getStatus() == 200) {
+                processAcknowledgementResponse(pollingContext, ackOnlyRequest, receiverModel);
             }
-        } catch (IOException e) {
-            log.warnf(e, "Failed to acknowledge events from polling endpoint. %s", pollingRequest);
+        } catch (Exception e) {
+            log.warnf(e, "Failed to acknowledge events from polling endpoint. %s", ackOnlyRequest);
         }
     }
 
-    protected void processAcknowledgementResponse(SecurityEventPollingContext pollingContext, SecurityEventPollingResponse pollingResponse, SecurityEventPollingRequest pollingRequest) {
-        pollingContext.markSecurityEventAsAcknowledged();
+    /**
+     * Removes the acknowledged SETs from the ledger in a new transaction, the transaction of the poll already completed.
+     *
+     * @param pollingContext
+     * @param ackOnlyRequest
+     * @param receiverModel
+     */
+    protected void processAcknowledgementResponse(SecurityEventPollingContext pollingContext, SecurityEventPollingRequest ackOnlyRequest, ReceiverModel receiverModel) {
+        KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), ackSession ->
+                markSecurityEventsAsReported(pollingContext, createAckLedger(ackSession), ackOnlyRequest, receiverModel));
     }
 
-    protected SecurityEventPollingRequest createPollingRequest(SecurityEventPollingContext pollingContext, ReceiverModel receiverModel) {
-        if (pollingContext.hasSecurityEventsToAcknowledge()) {
-            return createPollAndAckRequest(pollingContext, receiverModel);
+    protected SecurityEventPollingRequest createPollingRequest(SecurityEventPollingContext pollingContext, ReceiverModel receiverModel, int maxEvents) {
+        if (pollingContext.hasSecurityEventsToAcknowledge() || pollingContext.hasErrors()) {
+            return createPollAndAckRequest(pollingContext, maxEvents);
         } else {
-            return createPollOnlyRequest(receiverModel);
+            return createPollOnlyRequest(maxEvents);
         }
     }
 
@@ -117,6 +258,12 @@ public class DefaultSharedSignalsStreamPoller implements SharedSignalsStreamPoll
         log.tracef("%s SETs found.", sets.size());
         for (var setEntry : sets.entrySet()) {
             String jti = setEntry.getKey();
+            if (pollingContext.isPending(jti)) {
+                // already processed, the acknowledgement did not reach the transmitter yet
+                log.tracef("Skipping redelivered SET. jti=%s", jti);
+                continue;
+            }
+
             String encodedSet = setEntry.getValue();
             SecurityEventToken securityEventToken = sharedSignals.parseSecurityEventToken(encodedSet, processingContext);
             securityEventToken.setId(jti);
@@ -124,10 +271,6 @@ public class DefaultSharedSignalsStreamPoller implements SharedSignalsStreamPoll
             processingContext.setSecurityEventToken(securityEventToken);
             processSecurityEventToken(pollingContext, sharedSignals, securityEventToken, processingContext);
         }
-
-        if (CollectionUtil.isNotEmpty(pollingRequest.getAck())) {
-            pollingContext.markSecurityEventAsAcknowledged();
-        }
     }
 
     protected void processSecurityEventToken(SecurityEventPollingContext pollingContext, SharedSignalsProvider
@@ -159,15 +302,18 @@ public class DefaultSharedSignalsStreamPoller implements SharedSignalsStreamPoll
         }
     }
 
-    protected SecurityEventPollingRequest createPollAndAckRequest(SecurityEventPollingContext pollingContext, ReceiverModel receiverModel) {
+    protected SecurityEventPollingRequest createPollAndAckRequest(SecurityEventPollingContext pollingContext, int maxEvents) {
 
-        Set<String> acks = pollingContext.getSecurityEventIdsToAcknowledge();
+        // copies, the context is modified while the response is processed
+        Set<String> acks = new HashSet<>(pollingContext.getSecurityEventIdsToAcknowledge());
+        Map<String, Object> setErrs = new HashMap<>(pollingContext.getErrors());
 
         var request = new SecurityEventPollingRequest();
         request.setPollingMode(PollingMode.POLL_AND_ACK);
         request.setReturnImmediately(true);
-        request.setMaxEvents(receiverModel.getMaxEvents());
+        request.setMaxEvents(maxEvents);
         request.setAck(acks);
+        request.setSetErrs(setErrs);
 
         return request;
     }
@@ -183,12 +329,12 @@ public class DefaultSharedSignalsStreamPoller implements SharedSignalsStreamPoll
         return request;
     }
 
-    protected SecurityEventPollingRequest createPollOnlyRequest(ReceiverModel receiverModel) {
+    protected SecurityEventPollingRequest createPollOnlyRequest(int maxEvents) {
 
         var request = new SecurityEventPollingRequest();
         request.setPollingMode(PollingMode.POLL_ONLY);
         request.setReturnImmediately(true);
-        request.setMaxEvents(receiverModel.getMaxEvents());
+        request.setMaxEvents(maxEvents);
 
         return request;
     }
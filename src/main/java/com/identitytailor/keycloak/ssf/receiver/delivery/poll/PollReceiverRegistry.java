@@ -0,0 +1,245 @@
+package com.identitytailor.keycloak.ssf.receiver.delivery.poll;
+
+import com.identitytailor.keycloak.ssf.SharedSignalsProvider;
+import lombok.extern.jbosslog.JBossLog;
+import org.infinispan.Cache;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Node local registry of the poll receivers of all realms.
+ * <p>
+ * The registry is loaded with a single query when polling starts and kept up to date incrementally afterward. Receiver changes
+ * are published as entries of the replicated work cache, whose cache listener applies them to the registry of every node in the
+ * cluster, so polling does not need to query the database to find receivers.
+ */
+@JBossLog
+public class PollReceiverRegistry {
+
+    public static final String CACHE_KEY_PREFIX = "ssf-poll-receiver::";
+
+    private final ConcurrentMap<String, String> realmIdByReceiverId = new ConcurrentHashMap<>();
+
+    private final List<RegistryListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final WorkCacheListener workCacheListener = new WorkCacheListener();
+
+    private Cache<String, Object> workCache;
+
+    /**
+     * Loads the poll receivers of all realms and subscribes to receiver changes of other nodes. Subsequent calls have no effect.
+     *
+     * @param keycloakSessionFactory
+     */
+    public void start(KeycloakSessionFactory keycloakSessionFactory) {
+
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+
+        KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+
+            Map<String, Set<String>> receiverIdsByRealm = session.getProvider(SharedSignalsProvider.class).getPollReceiverIdsByRealm();
+            receiverIdsByRealm.forEach((realmId, receiverIds) -> receiverIds.forEach(receiverId -> register(realmId, receiverId)));
+
+            InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+            if (infinispan != null) {
+                workCache = infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+                workCache.addListener(workCacheListener);
+            }
+        });
+
+        log.debugf("Started poll receiver registry. receivers=%s", realmIdByReceiverId.size());
+    }
+
+    public void stop() {
+        if (workCache != null) {
+            workCache.removeListener(workCacheListener);
+            workCache = null;
+        }
+        realmIdByReceiverId.clear();
+        started.set(false);
+    }
+
+    public void addListener(RegistryListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Registers or unregisters the given receiver on every node in the cluster.
+     *
+     * @param realmId
+     * @param receiverId
+     * @param pollDelivery whether the receiver uses poll delivery
+     */
+    public void publish(String realmId, String receiverId, boolean pollDelivery) {
+
+        if (pollDelivery) {
+            register(realmId, receiverId);
+        } else {
+            unregister(receiverId);
+        }
+
+        Cache<String, Object> cache = workCache;
+        if (cache == null) {
+            return;
+        }
+
+        try {
+            if (pollDelivery) {
+                cache.put(CACHE_KEY_PREFIX + receiverId, realmId);
+            } else {
+                cache.remove(CACHE_KEY_PREFIX + receiverId);
+            }
+        } catch (Exception e) {
+            log.warnf(e, "Could not publish poll receiver change. realmId=%s receiverId=%s", realmId, receiverId);
+        }
+    }
+
+    /**
+     * Registers or unregisters the given receiver on every node in the cluster once the transaction of the given session committed.
+     *
+     * @param session
+     * @param realmId
+     * @param receiverId
+     * @param pollDelivery whether the receiver uses poll delivery
+     */
+    public void publishAfterCommit(KeycloakSession session, String realmId, String receiverId, boolean pollDelivery) {
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                publish(realmId, receiverId, pollDelivery);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                // NOOP
+            }
+        });
+    }
+
+    /**
+     * Unregisters all receivers of the given realm on every node in the cluster.
+     *
+     * @param realmId
+     */
+    public void removeRealm(String realmId) {
+        for (Map.Entry<String, String> entry : realmIdByReceiverId.entrySet()) {
+            if (realmId.equals(entry.getValue())) {
+                publish(realmId, entry.getKey(), false);
+            }
+        }
+    }
+
+    /**
+     * Registers the given receiver on this node.
+     *
+     * @param realmId
+     * @param receiverId
+     */
+    public void register(String realmId, String receiverId) {
+        if (realmIdByReceiverId.put(receiverId, realmId) == null) {
+            log.debugf("Registered poll receiver. realmId=%s receiverId=%s", realmId, receiverId);
+            listeners.forEach(listener -> listener.onRegistered(realmId, receiverId));
+        }
+    }
+
+    /**
+     * Unregisters the given receiver on this node.
+     *
+     * @param receiverId
+     */
+    public void unregister(String receiverId) {
+        String realmId = realmIdByReceiverId.remove(receiverId);
+        if (realmId != null) {
+            log.debugf("Unregistered poll receiver. realmId=%s receiverId=%s", realmId, receiverId);
+            listeners.forEach(listener -> listener.onUnregistered(realmId, receiverId));
+        }
+    }
+
+    /**
+     * Returns the realm id of the given receiver, or {@literal null} if it is not a registered poll receiver.
+     *
+     * @param receiverId
+     * @return
+     */
+    public String getRealmId(String receiverId) {
+        return realmIdByReceiverId.get(receiverId);
+    }
+
+    public Map<String, Set<String>> getReceiverIdsByRealm() {
+        Map<String, Set<String>> receiverIdsByRealm = new HashMap<>();
+        realmIdByReceiverId.forEach((receiverId, realmId) -> receiverIdsByRealm.computeIfAbsent(realmId, id -> new HashSet<>()).add(receiverId));
+        return receiverIdsByRealm;
+    }
+
+    public int size() {
+        return realmIdByReceiverId.size();
+    }
+
+    @Override
+    public String toString() {
+        return "PollReceiverRegistry{" +
+               "receivers=" + realmIdByReceiverId.size() +
+               '}';
+    }
+
+    /**
+     * Notified about poll receivers which were registered or unregistered on this node.
+     */
+    public interface RegistryListener {
+
+        void onRegistered(String realmId, String receiverId);
+
+        void onUnregistered(String realmId, String receiverId);
+    }
+
+    /**
+     * Applies the receiver changes of all nodes, including this node, to the local registry.
+     */
+    @Listener
+    public class WorkCacheListener {
+
+        @CacheEntryCreated
+        @CacheEntryModified
+        public void onReceiverRegistered(CacheEntryEvent<String, Object> event) {
+            if (event.isPre() || !isReceiverKey(event.getKey()) || !(event.getValue() instanceof String realmId)) {
+                return;
+            }
+            register(realmId, event.getKey().substring(CACHE_KEY_PREFIX.length()));
+        }
+
+        @CacheEntryRemoved
+        public void onReceiverUnregistered(CacheEntryRemovedEvent<String, Object> event) {
+            if (event.isPre() || !isReceiverKey(event.getKey())) {
+                return;
+            }
+            unregister(event.getKey().substring(CACHE_KEY_PREFIX.length()));
+        }
+
+        protected boolean isReceiverKey(Object key) {
+            return key instanceof String string && string.startsWith(CACHE_KEY_PREFIX);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.identitytailor.keycloak.ssf.receiver.delivery.poll;
+
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.Address;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Assigns every poll receiver to exactly one node of the cluster.
+ * <p>
+ * The owner of a receiver is chosen by rendezvous hashing of the receiver id over the current members of the Infinispan cluster,
+ * which spreads the receivers evenly over all nodes. When a node leaves the cluster, only its receivers move to the remaining nodes,
+ * as soon as the new cluster view is installed. Without a clustered cache manager, this node owns every receiver.
+ */
+public class ReceiverPollOwnership {
+
+    private final EmbeddedCacheManager cacheManager;
+
+    public ReceiverPollOwnership(EmbeddedCacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * Whether this node is responsible for polling the given receiver in the current cluster view.
+     *
+     * @param receiverId
+     * @return
+     */
+    public boolean isOwner(String receiverId) {
+
+        if (cacheManager == null) {
+            return true;
+        }
+
+        List<Address> members = cacheManager.getMembers();
+        Address self = cacheManager.getAddress();
+        if (members == null || members.size() <= 1 || self == null) {
+            return true;
+        }
+
+        return self.equals(getOwner(members, receiverId));
+    }
+
+    protected Address getOwner(List<Address> members, String receiverId) {
+
+        long receiverHash = hash(receiverId);
+
+        Address owner = null;
+        long ownerWeight = 0;
+        for (Address member : members) {
+            long weight = mix(hash(member.toString()) ^ receiverHash);
+            // ties are broken by the address, so every node agrees on the owner
+            if (owner == null || Long.compareUnsigned(weight, ownerWeight) > 0
+                || (weight == ownerWeight && member.toString().compareTo(owner.toString()) > 0)) {
+                owner = member;
+                ownerWeight = weight;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the UTF-8 bytes of the value.
+     *
+     * @param value
+     * @return
+     */
+    protected static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads the combined hash over all bits.
+     *
+     * @param value
+     * @return
+     */
+    protected static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,167 @@
+package com.identitytailor.keycloak.ssf.receiver.delivery.poll;
+
+import com.identitytailor.keycloak.ssf.receiver.ReceiverModel;
+
+import java.time.Duration;
+
+/**
+ * Adaptive poll schedule of a single receiver.
+ * <p>
+ * While the transmitter reports {@code moreAvailable}, the receiver is polled again right away and the number of requested
+ * events doubles up to the catch-up limit, so backlogs are drained quickly. Once a poll returned events without more being
+ * available, the receiver returns to its minimum interval and configured batch size. Empty or failed polls double the
+ * interval up to the maximum interval.
+ */
+public class ReceiverPollingState {
+
+    private final String receiverId;
+
+    private long nextPollAt;
+
+    private Duration interval;
+
+    private int maxEvents;
+
+    private long polls;
+
+    private long drainPolls;
+
+    public ReceiverPollingState(String receiverId) {
+        this.receiverId = receiverId;
+    }
+
+    public String getReceiverId() {
+        return receiverId;
+    }
+
+    /**
+     * Whether the receiver should be polled at the given time.
+     *
+     * @param now time in millis
+     * @return
+     */
+    public synchronized boolean isDue(long now) {
+        return now >= nextPollAt;
+    }
+
+    public synchronized long getNextPollAt() {
+        return nextPollAt;
+    }
+
+    /**
+     * Number of events to request with the next poll.
+     *
+     * @param receiverModel
+     * @return
+     */
+    public synchronized int getMaxEvents(ReceiverModel receiverModel) {
+        int configuredMaxEvents = getConfiguredMaxEvents(receiverModel);
+        return maxEvents <= 0 ? configuredMaxEvents : Math.max(configuredMaxEvents, maxEvents);
+    }
+
+    /**
+     * Computes the next poll time of the receiver from the result of the last poll.
+     *
+     * @param receiverModel
+     * @param settings
+     * @param result
+     * @param now           time in millis
+     * @return the delay until the next poll
+     */
+    public synchronized Duration onPolled(ReceiverModel receiverModel, PollingSettings settings, SecurityEventPollingResult result, long now) {
+
+        polls++;
+
+        Duration minInterval = settings.getMinInterval(receiverModel);
+        Duration maxInterval = settings.getMaxInterval(receiverModel);
+        int configuredMaxEvents = getConfiguredMaxEvents(receiverModel);
+
+        Duration delay;
+        if (result.isSuccessful() && result.isMoreAvailable()) {
+            drainPolls++;
+            int maxCatchUpEvents = Math.max(configuredMaxEvents, settings.getMaxCatchUpEvents(receiverModel));
+            maxEvents = (int) Math.min((long) getMaxEvents(receiverModel) * 2, maxCatchUpEvents);
+            interval = minInterval;
+            delay = Duration.ZERO;
+        } else if (result.isSuccessful() && result.getReceivedEvents() > 0) {
+            maxEvents = configuredMaxEvents;
+            interval = minInterval;
+            delay = minInterval;
+        } else {
+            maxEvents = configuredMaxEvents;
+            interval = interval == null ? minInterval : interval.multipliedBy(2);
+            if (interval.compareTo(maxInterval) > 0) {
+                interval = maxInterval;
+            }
+            if (interval.compareTo(minInterval) < 0) {
+                interval = minInterval;
+            }
+            delay = interval;
+        }
+
+        nextPollAt = now + delay.toMillis();
+        return delay;
+    }
+
+    protected int getConfiguredMaxEvents(ReceiverModel receiverModel) {
+        int configuredMaxEvents = receiverModel.getMaxEvents();
+        return configuredMaxEvents > 0 ? configuredMaxEvents : ReceiverModel.DEFAULT_MAX_EVENTS;
+    }
+
+    public synchronized long getPolls() {
+        return polls;
+    }
+
+    /**
+     * Number of polls which were sent right away because the transmitter reported more available events.
+     *
+     * @return
+     */
+    public synchronized long getDrainPolls() {
+        return drainPolls;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReceiverPollingState{" +
+               "receiverId='" + receiverId + '\'' +
+               ", interval=" + interval +
+               ", maxEvents=" + maxEvents +
+               ", polls=" + polls +
+               ", drainPolls=" + drainPolls +
+               '}';
+    }
+
+    /**
+     * Default poll settings, which can be overridden per receiver.
+     *
+     * @param minInterval      Interval between polls of a receiver with events
+     * @param maxInterval      Upper bound of the interval of a receiver whose stream stays empty
+     * @param maxCatchUpEvents Upper bound of the requested events while draining a backlog
+     */
+    public record PollingSettings(Duration minInterval, Duration maxInterval, int maxCatchUpEvents) {
+
+        public static final Duration DEFAULT_MIN_INTERVAL = Duration.ofSeconds(5);
+
+        public static final Duration DEFAULT_MAX_INTERVAL = Duration.ofSeconds(60);
+
+        public static final int DEFAULT_MAX_CATCH_UP_EVENTS = 1024;
+
+        public Duration getMinInterval(ReceiverModel receiverModel) {
+            Integer pollIntervalSeconds = receiverModel.getPollIntervalSeconds();
+            return pollIntervalSeconds == null || pollIntervalSeconds <= 0 ? minInterval : Duration.ofSeconds(pollIntervalSeconds);
+        }
+
+        public Duration getMaxInterval(ReceiverModel receiverModel) {
+            Integer maxPollIntervalSeconds = receiverModel.getMaxPollIntervalSeconds();
+            Duration receiverMaxInterval = maxPollIntervalSeconds == null || maxPollIntervalSeconds <= 0 ? maxInterval : Duration.ofSeconds(maxPollIntervalSeconds);
+            Duration receiverMinInterval = getMinInterval(receiverModel);
+            return receiverMaxInterval.compareTo(receiverMinInterval) < 0 ? receiverMinInterval : receiverMaxInterval;
+        }
+
+        public int getMaxCatchUpEvents(ReceiverModel receiverModel) {
+            Integer receiverMaxCatchUpEvents = receiverModel.getMaxCatchUpEvents();
+            return receiverMaxCatchUpEvents == null || receiverMaxCatchUpEvents <= 0 ? maxCatchUpEvents : receiverMaxCatchUpEvents;
+        }
+    }
+}
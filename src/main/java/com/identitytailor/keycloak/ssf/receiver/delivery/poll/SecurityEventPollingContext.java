@@ -2,19 +2,34 @@ package com.identitytailor.keycloak.ssf.receiver.delivery.poll;
 
 import com.identitytailor.keycloak.ssf.SharedSignalsFailureResponse;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * Acknowledgements and errors of a single receiver which were not yet reported to the transmitter.
+ * <p>
+ * The context mirrors the durable acknowledgement ledger of the receiver. Entries registered since the last flush are tracked
+ * separately, so they can be written to the ledger in one batch.
+ */
 public class SecurityEventPollingContext {
 
     protected Set<String> securityEventIdsToAcknowledge = new HashSet<>();
 
     protected Map<String, Object> errors = new HashMap<>();
 
+    protected Set<String> unsavedAcknowledgements = new HashSet<>();
+
+    protected Map<String, SharedSignalsFailureResponse> unsavedErrors = new HashMap<>();
+
+    protected boolean loaded;
+
     public void registerSecurityEventForAcknowledgment(String jti) {
-        securityEventIdsToAcknowledge.add(jti);
+        if (securityEventIdsToAcknowledge.add(jti)) {
+            unsavedAcknowledgements.add(jti);
+        }
     }
 
     public Set<String> getSecurityEventIdsToAcknowledge() {
@@ -41,13 +56,26 @@ public class SecurityEventPollingContext {
         return !errors.isEmpty();
     }
 
+    /**
+     * Whether the given SET was already processed, but not yet acknowledged to the transmitter.
+     *
+     * @param jti
+     * @return
+     */
+    public boolean isPending(String jti) {
+        return securityEventIdsToAcknowledge.contains(jti) || errors.containsKey(jti);
+    }
+
     public void registerSecurityEventForError(String id, SharedSignalsFailureResponse failureResponse) {
         securityEventIdsToAcknowledge.remove(id);
+        unsavedAcknowledgements.remove(id);
         errors.put(id, failureResponse);
+        unsavedErrors.put(id, failureResponse);
     }
 
     public void markSecurityEventAsAcknowledged() {
         securityEventIdsToAcknowledge.clear();
+        unsavedAcknowledgements.clear();
     }
 
     public void markSecurityEventAsAcknowledged(Set<String> ack) {
@@ -55,5 +83,84 @@ public class SecurityEventPollingContext {
             return;
         }
         securityEventIdsToAcknowledge.removeAll(ack);
+        unsavedAcknowledgements.removeAll(ack);
+    }
+
+    /**
+     * Removes the given SETs, which were reported to the transmitter, from the context.
+     *
+     * @param jtis
+     * @return the SETs which were already written to the ledger
+     */
+    public Set<String> markSecurityEventsAsReported(Collection<String> jtis) {
+        Set<String> saved = new HashSet<>();
+        for (String jti : jtis) {
+            boolean pending = securityEventIdsToAcknowledge.remove(jti) | errors.remove(jti) != null;
+            boolean unsaved = unsavedAcknowledgements.remove(jti) | unsavedErrors.remove(jti) != null;
+            if (pending && !unsaved) {
+                saved.add(jti);
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Adds an entry of the ledger to the context.
+     *
+     * @param jti
+     * @param failureResponse the reported error, or {@literal null} for an acknowledgement
+     */
+    public void restore(String jti, SharedSignalsFailureResponse failureResponse) {
+        if (failureResponse == null) {
+            securityEventIdsToAcknowledge.add(jti);
+        } else {
+            errors.put(jti, failureResponse);
+        }
+    }
+
+    /**
+     * Returns and clears the acknowledgements registered since the last call.
+     *
+     * @return
+     */
+    public Set<String> drainUnsavedAcknowledgements() {
+        Set<String> drained = unsavedAcknowledgements;
+        unsavedAcknowledgements = new HashSet<>();
+        return drained;
+    }
+
+    /**
+     * Returns and clears the errors registered since the last call.
+     *
+     * @return
+     */
+    public Map<String, SharedSignalsFailureResponse> drainUnsavedErrors() {
+        Map<String, SharedSignalsFailureResponse> drained = unsavedErrors;
+        unsavedErrors = new HashMap<>();
+        return drained;
+    }
+
+    /**
+     * Whether the context was loaded from the ledger.
+     *
+     * @return
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void setLoaded(boolean loaded) {
+        this.loaded = loaded;
+    }
+
+    /**
+     * Drops all entries, the context is loaded from the ledger again with the next poll.
+     */
+    public void reset() {
+        securityEventIdsToAcknowledge.clear();
+        errors.clear();
+        unsavedAcknowledgements.clear();
+        unsavedErrors.clear();
+        loaded = false;
     }
 }
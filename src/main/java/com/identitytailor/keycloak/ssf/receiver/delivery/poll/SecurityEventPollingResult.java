@@ -1,4 +1,47 @@
 package com.identitytailor.keycloak.ssf.receiver.delivery.poll;
 
+/**
+ * Outcome of a single poll request, used to schedule the next poll of the receiver.
+ */
 public class SecurityEventPollingResult {
+
+    public static final SecurityEventPollingResult FAILED = new SecurityEventPollingResult(false, 0, false);
+
+    protected final boolean successful;
+
+    protected final int receivedEvents;
+
+    protected final boolean moreAvailable;
+
+    public SecurityEventPollingResult(boolean successful, int receivedEvents, boolean moreAvailable) {
+        this.successful = successful;
+        this.receivedEvents = receivedEvents;
+        this.moreAvailable = moreAvailable;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    public int getReceivedEvents() {
+        return receivedEvents;
+    }
+
+    /**
+     * Whether the transmitter signalled that more unacknowledged SETs are available.
+     *
+     * @return
+     */
+    public boolean isMoreAvailable() {
+        return moreAvailable;
+    }
+
+    @Override
+    public String toString() {
+        return "SecurityEventPollingResult{" +
+               "successful=" + successful +
+               ", receivedEvents=" + receivedEvents +
+               ", moreAvailable=" + moreAvailable +
+               '}';
+    }
 }
@@ -10,5 +10,18 @@ import org.keycloak.models.RealmModel;
  */
 public interface SharedSignalsStreamPoller {
 
-    void pollEvents(SecurityEventPollingContext pollingContext,RealmModel realm, ReceiverModel receiverModel);
+    /**
+     * Polls the next batch of events from the transmitter of the given receiver.
+     *
+     * @param pollingContext
+     * @param realm
+     * @param receiverModel
+     * @param maxEvents      Number of events to request
+     * @return the outcome of the poll
+     */
+    SecurityEventPollingResult pollEvents(SecurityEventPollingContext pollingContext, RealmModel realm, ReceiverModel receiverModel, int maxEvents);
+
+    default SecurityEventPollingResult pollEvents(SecurityEventPollingContext pollingContext, RealmModel realm, ReceiverModel receiverModel) {
+        return pollEvents(pollingContext, realm, receiverModel, receiverModel.getMaxEvents());
+    }
 }
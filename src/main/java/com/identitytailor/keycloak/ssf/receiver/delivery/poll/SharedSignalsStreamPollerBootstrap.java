@@ -1,109 +1,424 @@
 package com.identitytailor.keycloak.ssf.receiver.delivery.poll;
 
-import com.identitytailor.keycloak.ssf.SharedSignalsProvider;
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
 import com.identitytailor.keycloak.ssf.receiver.ReceiverModel;
-import com.identitytailor.keycloak.ssf.receiver.SharedSignalsReceiver;
 import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
 
 import java.time.Duration;
-import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Schedules the polling of every poll receiver on this node.
+ * <p>
+ * Each receiver has its own schedule and every poll runs on its own virtual thread with its own session and transaction,
+ * so a slow transmitter only delays its own receiver. The delay until the next poll is computed by the {@link ReceiverPollingState}
+ * of the receiver and spread with a random jitter. Receivers are scheduled and unscheduled by the {@link PollReceiverRegistry}, which
+ * tracks the poll receivers of all nodes without querying the database. Receivers which no longer exist or no longer use poll delivery
+ * are also unscheduled by their next poll. A watchdog interrupts polls which run longer than the poll timeout. The receiver is
+ * scheduled again once the interrupted poll returned, so two polls of the same receiver never run at the same time.
+ * <p>
+ * In a cluster, every receiver is polled only by the node which owns it according to the {@link ReceiverPollOwnership}. The other
+ * nodes check the ownership again after the minimum poll interval, so receivers of a node which left the cluster are taken over
+ * within one interval. Each poll additionally holds a cluster wide lease on the receiver via {@link ClusterProvider#executeIfNotExecuted},
+ * so polls of two nodes never overlap while the nodes disagree about the cluster view. The lease expires after the poll timeout
+ * plus the watchdog interval if a node dies while polling.
+ */
 @JBossLog
 public class SharedSignalsStreamPollerBootstrap {
 
+    public static final Duration DEFAULT_POLL_TIMEOUT = Duration.ofSeconds(60);
+
+    public static final double DEFAULT_JITTER_RATIO = 0.1d;
+
+    public static final String TASK_KEY_PREFIX = "ssf-receiver-poll::";
+
     private final KeycloakSessionFactory keycloakSessionFactory;
 
     protected Duration pollingInterval;
 
+    protected final ReceiverPollingState.PollingSettings pollingSettings;
+
+    protected final Duration pollTimeout;
+
+
+    protected final double jitterRatio;
+
+    protected final ReceiverPollOwnership pollOwnership;
+
+    protected final PollReceiverRegistry receiverRegistry;
+
+    protected final ConcurrentMap<String, ScheduledReceiver> scheduledReceivers = new ConcurrentHashMap<>();
+
+    private final AtomicLong hungPolls = new AtomicLong();
+
+    private final AtomicLong skippedPolls = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService pollExecutor;
+
     public SharedSignalsStreamPollerBootstrap(KeycloakSessionFactory keycloakSessionFactory, Duration pollingInterval) {
+        this(keycloakSessionFactory, new ReceiverPollingState.PollingSettings(pollingInterval,
+                        ReceiverPollingState.PollingSettings.DEFAULT_MAX_INTERVAL, ReceiverPollingState.PollingSettings.DEFAULT_MAX_CATCH_UP_EVENTS),
+                DEFAULT_POLL_TIMEOUT, DEFAULT_JITTER_RATIO, null, new PollReceiverRegistry());
+    }
+
+    /**
+     * @param keycloakSessionFactory
+     * @param pollingSettings
+     * @param pollTimeout       Time after which a running poll is abandoned, also the lifetime of the cluster wide poll lease
+     * @param jitterRatio
+     * @param pollOwnership     Assigns receivers to cluster nodes, {@literal null} to poll every receiver on this node
+     * @param receiverRegistry  The poll receivers to schedule
+     */
+    public SharedSignalsStreamPollerBootstrap(KeycloakSessionFactory keycloakSessionFactory, ReceiverPollingState.PollingSettings pollingSettings,
+                                              Duration pollTimeout, double jitterRatio, ReceiverPollOwnership pollOwnership, PollReceiverRegistry receiverRegistry) {
         this.keycloakSessionFactory = keycloakSessionFactory;
-        this.pollingInterval = pollingInterval;
+        this.pollingInterval = pollingSettings.minInterval();
+        this.pollingSettings = pollingSettings;
+        this.pollTimeout = pollTimeout;
+        this.jitterRatio = jitterRatio;
+        this.pollOwnership = pollOwnership;
+        this.receiverRegistry = receiverRegistry;
     }
 
     public void schedulePolling() {
-        log.debugf("Start security event poller");
+        log.debugf("Start security event poller. pollTimeout=%s jitterRatio=%s", pollTimeout, jitterRatio);
+
+        scheduler = createSharedSignalsStreamPollerScheduler();
+        pollExecutor = createSharedSignalsStreamPollerExecutor();
+
+        receiverRegistry.addListener(new PollReceiverRegistry.RegistryListener() {
+            @Override
+            public void onRegistered(String realmId, String receiverId) {
+                scheduleReceiver(realmId, receiverId);
+            }
+
+            @Override
+            public void onUnregistered(String realmId, String receiverId) {
+                unscheduleReceiver(receiverId);
+            }
+        });
+        receiverRegistry.start(keycloakSessionFactory);
+        receiverRegistry.getReceiverIdsByRealm().forEach((realmId, receiverIds) -> receiverIds.forEach(receiverId -> scheduleReceiver(realmId, receiverId)));
+
+        long watchdogIntervalMillis = getWatchdogInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::abandonHungPolls, watchdogIntervalMillis, watchdogIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    protected Duration getWatchdogInterval() {
+        return Duration.ofMillis(Math.max(1000, pollTimeout.toMillis() / 2));
+    }
 
-        // TODO revise receiver polling scheduling:
-        /*
-        0) Ensure polling is only run on one node in cluster (only on coordinator node ?)
-        1) Find all realms with receivers
-        2) Start a virtual thread per receiver
-        3) receivers can sleep a configured timeout and schedule new virtual threads to reschedule their run
+    /**
+     * Schedules the polling of the given receiver, if it is not already scheduled.
+     *
+     * @param realmId
+     * @param receiverId The component id of the receiver
+     */
+    public void scheduleReceiver(String realmId, String receiverId) {
 
-        Bookeeping about started receiver vthreads in "pollingContext".
-        How to detect crashed receivers?
-        How to detect hanging receivers?
-        How to securely propagate a session in a vt context? (maybe use session factory and create a session for ever vt run)
-         */
+        if (scheduler == null || scheduler.isShutdown()) {
+            return;
+        }
 
-        ExecutorService executorService = createSharedSignalsStreamPollerExecutor();
-        executorService.submit(() -> {
+        ScheduledReceiver scheduledReceiver = new ScheduledReceiver(realmId, receiverId, new ReceiverPollingState(receiverId));
+        if (scheduledReceivers.putIfAbsent(receiverId, scheduledReceiver) == null) {
+            log.debugf("Scheduled receiver polling. realmId=%s receiverId=%s", realmId, receiverId);
+            scheduleNextPoll(scheduledReceiver, Duration.ZERO);
+        }
+    }
 
-            Thread.currentThread().setUncaughtExceptionHandler((t, e) -> {
-                log.errorf(e, "Caught exception while processing polling in thread: %s", t.getName());
-            });
+    /**
+     * Stops the polling of the given receiver. A poll which is currently running is completed, but not scheduled again.
+     *
+     * @param receiverId The component id of the receiver
+     */
+    public void unscheduleReceiver(String receiverId) {
 
-            SecurityEventPollingContext pollingContext = new SecurityEventPollingContext();
+        ScheduledReceiver scheduledReceiver = scheduledReceivers.remove(receiverId);
+        if (scheduledReceiver == null) {
+            return;
+        }
 
-            while (!Thread.currentThread().isInterrupted()) {
+        ScheduledFuture<?> nextPoll = scheduledReceiver.nextPoll;
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+        }
+        log.debugf("Unscheduled receiver polling. realmId=%s receiverId=%s", scheduledReceiver.realmId, receiverId);
+    }
 
-                KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+    protected void scheduleNextPoll(ScheduledReceiver scheduledReceiver, Duration delay) {
 
-                    SharedSignalsProvider sharedSignals = session.getProvider(SharedSignalsProvider.class);
+        if (scheduledReceivers.get(scheduledReceiver.receiverId) != scheduledReceiver) {
+            // the receiver was unscheduled
+            return;
+        }
 
-                    Set<String> realmIdsWithReceivers = sharedSignals.getRealmIdsWithReceivers();
-                    for (String realmId : realmIdsWithReceivers) {
-                        RealmModel realm = session.realms().getRealm(realmId);
-                        session.getContext().setRealm(realm);
+        try {
+            scheduledReceiver.nextPoll = scheduler.schedule(() -> submitPoll(scheduledReceiver), addJitter(delay).toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.debugf(e, "Could not schedule receiver polling. receiverId=%s", scheduledReceiver.receiverId);
+        }
+    }
 
-                        pollEventsFromReceiversInRealm(session, realm, pollingContext);
-                    }
+    protected Duration addJitter(Duration delay) {
 
-                    log.tracef("Next poll in %s seconds", pollingInterval.toSeconds());
-                });
+        long delayMillis = delay.toMillis();
+        long maxJitterMillis = (long) (delayMillis * jitterRatio);
+        if (maxJitterMillis <= 0) {
+            return delay;
+        }
 
-                try {
-                    Thread.sleep(pollingInterval);
-                } catch (InterruptedException e) {
-                    log.debugf(e, "Interrupted while waiting for polling security events.");
-                }
-            }
-        });
+        return Duration.ofMillis(delayMillis + ThreadLocalRandom.current().nextLong(maxJitterMillis + 1));
     }
 
-    protected void pollEventsFromReceiversInRealm(KeycloakSession session, RealmModel realm, SecurityEventPollingContext pollingContext) {
+    protected void submitPoll(ScheduledReceiver scheduledReceiver) {
+        try {
+            scheduledReceiver.runningPoll = pollExecutor.submit(() -> runPoll(scheduledReceiver));
+        } catch (Exception e) {
+            log.debugf(e, "Could not submit receiver poll. receiverId=%s", scheduledReceiver.receiverId);
+        }
+    }
 
-        List<ReceiverModel> receivers = realm.getComponentsStream(realm.getId(), SharedSignalsReceiver.class.getName()) //
-                .map(ReceiverModel::new) //
-                .filter(ReceiverModel::isPollDelivery) //
-                .toList();
+    protected void runPoll(ScheduledReceiver scheduledReceiver) {
 
-        if (receivers.isEmpty()) {
+        if (pollOwnership != null && !pollOwnership.isOwner(scheduledReceiver.receiverId)) {
+            skippedPolls.incrementAndGet();
+            // the owner may acknowledge the pending SETs meanwhile, reload them from the ledger once this node polls again
+            scheduledReceiver.pollingContext.reset();
+            scheduleNextPoll(scheduledReceiver, pollingInterval);
             return;
         }
 
-        log.tracef("Found %d receivers in realm %s.", receivers.size(), realm.getName());
+        scheduledReceiver.pollStartedAt = System.currentTimeMillis();
 
-        for (ReceiverModel receiverModel : receivers) {
-            SharedSignalsStreamPoller poller = new DefaultSharedSignalsStreamPoller(session);
+        Duration delay;
+        try {
+            delay = KeycloakModelUtils.runJobInTransactionWithResult(keycloakSessionFactory, session -> pollEventsFromOwnedReceiver(session, scheduledReceiver));
+        } catch (Exception e) {
+            log.warnf(e, "Caught exception while polling events. realmId=%s receiverId=%s", scheduledReceiver.realmId, scheduledReceiver.receiverId);
+            // the transaction was rolled back, reload the pending acknowledgements from the ledger
+            scheduledReceiver.pollingContext.reset();
+            delay = pollingSettings.maxInterval();
+        } finally {
+            scheduledReceiver.pollStartedAt = 0;
+            scheduledReceiver.runningPoll = null;
+        }
 
-            log.tracef("Polling security events from receiver. realm=%s receiver=%s", realm.getName(), receiverModel.getAlias());
-            try {
-                poller.pollEvents(pollingContext, realm, receiverModel);
-            } catch (Exception e) {
-                log.debugf(e, "Caught exception while polling events. realm=%s receiver=%s", realm.getName(), receiverModel.getAlias());
+        if (scheduledReceiver.abandoned) {
+            // the result of an abandoned poll is discarded, its acknowledgements are reloaded from the ledger
+            scheduledReceiver.abandoned = false;
+            scheduledReceiver.pollingContext.reset();
+            log.debugf("Abandoned receiver poll returned. realmId=%s receiverId=%s", scheduledReceiver.realmId, scheduledReceiver.receiverId);
+            if (delay != null) {
+                delay = pollingSettings.maxInterval();
             }
         }
+
+        if (delay == null) {
+            // receiver was removed or no longer uses poll delivery
+            scheduledReceivers.remove(scheduledReceiver.receiverId, scheduledReceiver);
+            receiverRegistry.unregister(scheduledReceiver.receiverId);
+            log.debugf("Stopped polling of receiver. realmId=%s receiverId=%s", scheduledReceiver.realmId, scheduledReceiver.receiverId);
+            return;
+        }
+
+        scheduleNextPoll(scheduledReceiver, delay);
+    }
+
+    /**
+     * Polls the given receiver while holding the cluster wide lease of the receiver.
+     *
+     * @param session
+     * @param scheduledReceiver
+     * @return the delay until the next poll, or {@literal null} if the receiver should no longer be polled
+     */
+    protected Duration pollEventsFromOwnedReceiver(KeycloakSession session, ScheduledReceiver scheduledReceiver) {
+
+        if (pollOwnership == null) {
+            return pollEventsFromReceiver(session, scheduledReceiver);
+        }
+
+        // the lease outlives the watchdog, so a hung poll is interrupted before another node can take over the receiver
+        int leaseSeconds = (int) Math.max(1, pollTimeout.plus(getWatchdogInterval()).toSeconds());
+        ExecutionResult<Duration> result = session.getProvider(ClusterProvider.class)
+                .executeIfNotExecuted(TASK_KEY_PREFIX + scheduledReceiver.receiverId, leaseSeconds, () -> pollEventsFromReceiver(session, scheduledReceiver));
+        if (!result.isExecuted()) {
+            log.tracef("Receiver is polled by another node. realmId=%s receiverId=%s", scheduledReceiver.realmId, scheduledReceiver.receiverId);
+            skippedPolls.incrementAndGet();
+            scheduledReceiver.pollingContext.reset();
+            return pollingInterval;
+        }
+        return result.getResult();
+    }
+
+    /**
+     * Polls the given receiver.
+     *
+     * @param session
+     * @param scheduledReceiver
+     * @return the delay until the next poll, or {@literal null} if the receiver should no longer be polled
+     */
+    protected Duration pollEventsFromReceiver(KeycloakSession session, ScheduledReceiver scheduledReceiver) {
+
+        RealmModel realm = session.realms().getRealm(scheduledReceiver.realmId);
+        if (realm == null) {
+            return null;
+        }
+        session.getContext().setRealm(realm);
+
+        ComponentModel component = realm.getComponent(scheduledReceiver.receiverId);
+        if (component == null) {
+            return null;
+        }
+
+        ReceiverModel receiverModel = new ReceiverModel(component);
+        if (!receiverModel.isPollDelivery()) {
+            return null;
+        }
+
+        ReceiverPollingState pollingState = scheduledReceiver.pollingState;
+        SharedSignalsStreamPoller poller = new DefaultSharedSignalsStreamPoller(session);
+        int maxEvents = pollingState.getMaxEvents(receiverModel);
+
+        log.tracef("Polling security events from receiver. realm=%s receiver=%s maxEvents=%s", realm.getName(), receiverModel.getAlias(), maxEvents);
+        SecurityEventPollingResult result;
+        try {
+            result = poller.pollEvents(scheduledReceiver.pollingContext, realm, receiverModel, maxEvents);
+        } catch (Exception e) {
+            log.debugf(e, "Caught exception while polling events. realm=%s receiver=%s", realm.getName(), receiverModel.getAlias());
+            result = SecurityEventPollingResult.FAILED;
+        }
+
+        Duration delay = pollingState.onPolled(receiverModel, pollingSettings, result, System.currentTimeMillis());
+        log.tracef("Polled security events from receiver. realm=%s receiver=%s result=%s nextPollIn=%s", realm.getName(), receiverModel.getAlias(), result, delay);
+        return delay;
+    }
+
+    /**
+     * Abandons polls which run longer than the poll timeout. The hung thread is interrupted and the result of the poll is discarded.
+     * The receiver is not scheduled again before the abandoned poll returned, see {@link #runPoll(ScheduledReceiver)}, since both
+     * polls would share the polling context and state of the receiver.
+     */
+    protected void abandonHungPolls() {
+
+        long now = System.currentTimeMillis();
+        for (ScheduledReceiver scheduledReceiver : scheduledReceivers.values()) {
+
+            long pollStartedAt = scheduledReceiver.pollStartedAt;
+            if (pollStartedAt <= 0 || now - pollStartedAt < pollTimeout.toMillis() || scheduledReceiver.abandoned) {
+                continue;
+            }
+
+            log.warnf("Abandoning hung receiver poll. realmId=%s receiverId=%s runningFor=%sms", scheduledReceiver.realmId, scheduledReceiver.receiverId, now - pollStartedAt);
+            hungPolls.incrementAndGet();
+
+            scheduledReceiver.abandoned = true;
+            Future<?> runningPoll = scheduledReceiver.runningPoll;
+            if (runningPoll != null) {
+                runningPoll.cancel(true);
+            }
+        }
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (pollExecutor != null) {
+            pollExecutor.shutdownNow();
+        }
+        scheduledReceivers.clear();
+    }
+
+    public int getScheduledReceivers() {
+        return scheduledReceivers.size();
+    }
+
+    /**
+     * Number of polls which were abandoned by the watchdog.
+     *
+     * @return
+     */
+    public long getHungPolls() {
+        return hungPolls.get();
+    }
+
+    /**
+     * Number of polls which were skipped, because another node owns or currently polls the receiver.
+     *
+     * @return
+     */
+    public long getSkippedPolls() {
+        return skippedPolls.get();
+    }
+
+    public void registerMetrics(SsfMetrics metrics) {
+        metrics.gauge("receiver.poll.scheduled", "Receivers scheduled for polling on this node", this, SharedSignalsStreamPollerBootstrap::getScheduledReceivers);
+        metrics.counter("receiver.poll.hung", "Polls abandoned by the watchdog", this, SharedSignalsStreamPollerBootstrap::getHungPolls);
+        metrics.counter("receiver.poll.skipped", "Polls skipped because another node owns or polls the receiver", this, SharedSignalsStreamPollerBootstrap::getSkippedPolls);
+    }
+
+    @Override
+    public String toString() {
+        return "SharedSignalsStreamPollerBootstrap{" +
+               "scheduledReceivers=" + scheduledReceivers.size() +
+               ", hungPolls=" + hungPolls.get() +
+               ", skippedPolls=" + skippedPolls.get() +
+               '}';
+    }
+
+    protected ScheduledExecutorService createSharedSignalsStreamPollerScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("ssf-receiver-poll-scheduler").factory());
     }
 
     protected ExecutorService createSharedSignalsStreamPollerExecutor() {
-        return Executors.newSingleThreadExecutor(r -> new Thread(r, "SharedSignalsStreamPoller"));
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ssf-receiver-poll-", 0).factory());
+    }
+
+    /**
+     * Schedule of a single receiver. Every receiver has its own polling context, since its polls run concurrently with the
+     * polls of other receivers.
+     */
+    protected static class ScheduledReceiver {
+
+        protected final String realmId;
+
+        protected final String receiverId;
+
+        protected final ReceiverPollingState pollingState;
+
+        protected final SecurityEventPollingContext pollingContext = new SecurityEventPollingContext();
+
+        protected volatile ScheduledFuture<?> nextPoll;
+
+        protected volatile Future<?> runningPoll;
+
+        protected volatile long pollStartedAt;
+
+        protected volatile boolean abandoned;
+
+        protected ScheduledReceiver(String realmId, String receiverId, ReceiverPollingState pollingState) {
+            this.realmId = realmId;
+            this.receiverId = receiverId;
+            this.pollingState = pollingState;
+        }
     }
 }
@@ -119,6 +119,8 @@ public class ReceiverManagementEndpoint {
         rep.setManagedStream(model.getManagedStream());
         rep.setEventsDelivered(model.getEventsDelivered());
         rep.setPollIntervalSeconds(model.getPollIntervalSeconds());
+        rep.setMaxPollIntervalSeconds(model.getMaxPollIntervalSeconds());
+        rep.setMaxCatchUpEvents(model.getMaxCatchUpEvents());
         rep.setPushAuthorizationToken(model.getPushAuthorizationToken());
         rep.setTransmitterUrl(model.getTransmitterUrl());
         rep.setTransmitterPollUrl(model.getTransmitterPollUrl());
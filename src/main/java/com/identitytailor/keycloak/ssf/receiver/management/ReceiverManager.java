@@ -2,6 +2,7 @@ package com.identitytailor.keycloak.ssf.receiver.management;
 
 import com.identitytailor.keycloak.ssf.SharedSignalsException;
 import com.identitytailor.keycloak.ssf.SharedSignalsProvider;
+import com.identitytailor.keycloak.ssf.keys.ReceiverKeyCache;
 import com.identitytailor.keycloak.ssf.keys.TransmitterKeyProviderFactory;
 import com.identitytailor.keycloak.ssf.keys.TransmitterPublicKeyLoader;
 import com.identitytailor.keycloak.ssf.receiver.ReceiverConfig;
@@ -17,6 +18,7 @@ import org.keycloak.component.ComponentModel;
 import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.crypto.PublicKeysWrapper;
 import org.keycloak.keys.KeyProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
@@ -32,8 +34,15 @@ public class ReceiverManager {
 
     private final KeycloakSession session;
 
+    private final ReceiverKeyCache keyCache;
+
     public ReceiverManager(KeycloakSession session) {
+        this(session, null);
+    }
+
+    public ReceiverManager(KeycloakSession session, ReceiverKeyCache keyCache) {
         this.session = session;
+        this.keyCache = keyCache;
     }
 
     public ReceiverModel createOrUpdateReceiver(KeycloakContext context, String receiverAlias, ReceiverConfig receiverConfig) {
@@ -119,6 +128,7 @@ public class ReceiverManager {
             for (var key : keys) {
                 createOrUpdateReceiverKey(receiverModel, key, realm);
             }
+            removeCachedKeysAfterCommit(receiverModel);
         } catch (Exception e) {
             throw new SharedSignalsException("Failed to load public keys from transmitter JWKS endpoint", e);
         }
@@ -197,6 +207,33 @@ public class ReceiverManager {
             realm.removeComponent(receiverKeyModel);
             log.debugf("Removed %s receiver key component with id %s. realm=%s receiver=%s", receiverKeyModel.getName(), receiverKeyModel.getId(), realm.getName(), model.getAlias());
         }
+        removeCachedKeysAfterCommit(model);
+    }
+
+    /**
+     * Drops the decoded keys of the given receiver from the key cache of this node once the key components were changed.
+     * Other nodes decode the changed keys again, since cached keys are checked against their key components.
+     *
+     * @param receiverModel
+     */
+    protected void removeCachedKeysAfterCommit(ReceiverModel receiverModel) {
+
+        if (keyCache == null) {
+            return;
+        }
+
+        String receiverId = receiverModel.getId();
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                keyCache.remove(receiverId);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                // NOOP
+            }
+        });
     }
 
     public SharedSignalsReceiver lookupReceiver(KeycloakContext context, String receiverAlias) {
@@ -32,6 +32,10 @@ public class ReceiverRepresentation {
 
     protected Integer pollIntervalSeconds;
 
+    protected Integer maxPollIntervalSeconds;
+
+    protected Integer maxCatchUpEvents;
+
     protected String receiverPushUrl;
 
     protected String pushAuthorizationToken;
@@ -0,0 +1,75 @@
+package com.identitytailor.keycloak.ssf.receiver.verification;
+
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node local statistics of the round-trip latency between a verification request and the receipt of the matching verification event.
+ */
+public class VerificationLatencyTracker {
+
+    private final AtomicLong verifications = new AtomicLong();
+
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    private final Map<String, Long> lastLatencyMillisByReceiver = new ConcurrentHashMap<>();
+
+    /**
+     * Records a successful verification.
+     *
+     * @param receiverAlias
+     * @param latencyMillis Time between the verification request and the receipt of the verification event
+     */
+    public void record(String receiverAlias, long latencyMillis) {
+        verifications.incrementAndGet();
+        totalLatencyMillis.addAndGet(latencyMillis);
+        maxLatencyMillis.accumulateAndGet(latencyMillis, Math::max);
+        lastLatencyMillisByReceiver.put(receiverAlias, latencyMillis);
+    }
+
+    public long getVerifications() {
+        return verifications.get();
+    }
+
+    public long getAverageLatencyMillis() {
+        long count = verifications.get();
+        return count == 0 ? 0 : totalLatencyMillis.get() / count;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    public void registerMetrics(SsfMetrics metrics) {
+        metrics.timer("receiver.verification", "Successful stream verifications and their round-trip latency", this, VerificationLatencyTracker::getVerifications, tracker -> tracker.totalLatencyMillis.get());
+        metrics.gauge("receiver.verification.latency.max.millis", "Maximum round-trip latency of a stream verification", this, VerificationLatencyTracker::getMaxLatencyMillis);
+    }
+
+    /**
+     * Returns the latency of the last successful verification of the given receiver on this node.
+     *
+     * @param receiverAlias
+     * @return the latency in millis or {@literal null} if the receiver was not verified yet
+     */
+    public Long getLastLatencyMillis(String receiverAlias) {
+        return lastLatencyMillisByReceiver.get(receiverAlias);
+    }
+
+    public void clear() {
+        lastLatencyMillisByReceiver.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "VerificationLatencyTracker{" +
+               "verifications=" + verifications.get() +
+               ", averageLatencyMillis=" + getAverageLatencyMillis() +
+               ", maxLatencyMillis=" + maxLatencyMillis.get() +
+               '}';
+    }
+}
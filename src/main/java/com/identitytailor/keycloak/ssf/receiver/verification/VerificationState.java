@@ -6,6 +6,9 @@ public class VerificationState {
 
     protected String state;
 
+    /**
+     * Time in millis at which the verification was requested.
+     */
     protected long timestamp;
 
     public String getStreamId() {
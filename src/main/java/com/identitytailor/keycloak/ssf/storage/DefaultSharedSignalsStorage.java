@@ -25,7 +25,7 @@ public class DefaultSharedSignalsStorage implements VerificationStore {
 
         String key = createVerificationKey(model.getStreamId());
         int lifespanSeconds = 300;
-        Map<String, String> verificationData = Map.of("state", state, "timestamp", String.valueOf(Time.currentTime()));
+        Map<String, String> verificationData = Map.of("state", state, "timestamp", String.valueOf(Time.currentTimeMillis()));
         singleUseObject.put(key, lifespanSeconds, verificationData);
     }
 
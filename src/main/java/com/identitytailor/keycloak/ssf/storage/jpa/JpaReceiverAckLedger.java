@@ -0,0 +1,109 @@
+package com.identitytailor.keycloak.ssf.storage.jpa;
+
+import com.identitytailor.keycloak.ssf.SharedSignalsFailureResponse;
+import jakarta.persistence.EntityManager;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durable ledger of the SETs which a poll receiver processed, but did not yet acknowledge to the transmitter.
+ * <p>
+ * Entries are written in the transaction which processed the SETs, so a SET is either processed and recorded, or neither.
+ * After a restart, the recorded SETs are acknowledged with the next poll instead of being processed again.
+ */
+public class JpaReceiverAckLedger {
+
+    private final EntityManager em;
+
+    public JpaReceiverAckLedger(KeycloakSession session) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /**
+     * Records processed SETs of the given receiver. The entries are written in one batch when the transaction is flushed.
+     *
+     * @param realmId
+     * @param receiverId
+     * @param jtis
+     */
+    public void addAcknowledgements(String realmId, String receiverId, Collection<String> jtis) {
+        long now = System.currentTimeMillis();
+        for (String jti : jtis) {
+            em.persist(createEntity(realmId, receiverId, jti, now));
+        }
+    }
+
+    /**
+     * Records SETs of the given receiver which could not be processed.
+     *
+     * @param realmId
+     * @param receiverId
+     * @param errors     failure responses by jti
+     */
+    public void addErrors(String realmId, String receiverId, Map<String, SharedSignalsFailureResponse> errors) {
+        long now = System.currentTimeMillis();
+        errors.forEach((jti, failureResponse) -> {
+            SsfReceiverAckEntity entity = createEntity(realmId, receiverId, jti, now);
+            entity.setError(failureResponse.getError());
+            String description = failureResponse.getDescription();
+            entity.setErrorDescription(description == null || description.length() <= 1024 ? description : description.substring(0, 1024));
+            em.persist(entity);
+        });
+    }
+
+    protected SsfReceiverAckEntity createEntity(String realmId, String receiverId, String jti, long createdAt) {
+        SsfReceiverAckEntity entity = new SsfReceiverAckEntity();
+        entity.setId(KeycloakModelUtils.generateId());
+        entity.setRealmId(realmId);
+        entity.setReceiverId(receiverId);
+        entity.setJti(jti);
+        entity.setCreatedAt(createdAt);
+        return entity;
+    }
+
+    /**
+     * Returns the SETs of the given receiver which were not yet acknowledged, oldest first.
+     *
+     * @param receiverId
+     * @return
+     */
+    public List<SsfReceiverAckEntity> getPendingAcknowledgements(String receiverId) {
+        return em.createQuery("SELECT a FROM SsfReceiverAckEntity a WHERE a.receiverId = :receiverId ORDER BY a.createdAt ASC", SsfReceiverAckEntity.class)
+                .setParameter("receiverId", receiverId)
+                .getResultList();
+    }
+
+    /**
+     * Removes SETs which were acknowledged to the transmitter.
+     *
+     * @param receiverId
+     * @param jtis
+     * @return the number of removed entries
+     */
+    public int removeAcknowledgements(String receiverId, Collection<String> jtis) {
+        if (jtis.isEmpty()) {
+            return 0;
+        }
+        return em.createQuery("DELETE FROM SsfReceiverAckEntity a WHERE a.receiverId = :receiverId AND a.jti IN :jtis")
+                .setParameter("receiverId", receiverId)
+                .setParameter("jtis", jtis)
+                .executeUpdate();
+    }
+
+    public int removeReceiver(String receiverId) {
+        return em.createQuery("DELETE FROM SsfReceiverAckEntity a WHERE a.receiverId = :receiverId")
+                .setParameter("receiverId", receiverId)
+                .executeUpdate();
+    }
+
+    public int removeRealm(String realmId) {
+        return em.createQuery("DELETE FROM SsfReceiverAckEntity a WHERE a.realmId = :realmId")
+                .setParameter("realmId", realmId)
+                .executeUpdate();
+    }
+}
@@ -0,0 +1,44 @@
+package com.identitytailor.keycloak.ssf.storage.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import lombok.Data;
+
+/**
+ * JPA entity for a SET which was processed by a poll receiver but not yet acknowledged to the transmitter.
+ * Entries with an error are reported as {@code setErrs} instead of {@code ack}.
+ */
+@Entity
+@Table(name = "SSF_RECEIVER_ACK", uniqueConstraints = {
+        @UniqueConstraint(name = "UK_SSF_RECEIVER_ACK", columnNames = {"RECEIVER_ID", "JTI"})
+}, indexes = {
+        @Index(name = "IDX_SSF_RECEIVER_ACK_REALM", columnList = "REALM_ID, RECEIVER_ID")
+})
+@Data
+public class SsfReceiverAckEntity {
+
+    @Id
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "RECEIVER_ID", nullable = false)
+    private String receiverId;
+
+    @Column(name = "JTI", nullable = false)
+    private String jti;
+
+    @Column(name = "ERROR")
+    private String error;
+
+    @Column(name = "ERROR_DESCRIPTION", length = 1024)
+    private String errorDescription;
+
+    @Column(name = "CREATED_AT", nullable = false)
+    private Long createdAt;
+}
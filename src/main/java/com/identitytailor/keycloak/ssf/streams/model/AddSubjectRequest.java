@@ -1,7 +1,9 @@
 package com.identitytailor.keycloak.ssf.streams.model;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.identitytailor.keycloak.ssf.event.subjects.SubjectId;
+import com.identitytailor.keycloak.ssf.event.subjects.SubjectIdJsonDeserializer;
 
 public class AddSubjectRequest {
 
@@ -15,6 +17,7 @@ public class AddSubjectRequest {
      * REQUIRED. A Subject claim identifying the subject to be added.
      */
     @JsonProperty("subject")
+    @JsonDeserialize(using = SubjectIdJsonDeserializer.class)
     private SubjectId subject;
 
     /**
@@ -1,7 +1,9 @@
 package com.identitytailor.keycloak.ssf.streams.model;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.identitytailor.keycloak.ssf.event.subjects.SubjectId;
+import com.identitytailor.keycloak.ssf.event.subjects.SubjectIdJsonDeserializer;
 
 public class RemoveSubjectRequest {
         /**
@@ -14,6 +16,7 @@ public class RemoveSubjectRequest {
          * REQUIRED. A Subject claim identifying the subject to be added.
          */
         @JsonProperty("subject")
+        @JsonDeserialize(using = SubjectIdJsonDeserializer.class)
         private SubjectId subject;
 
         public String getStreamId() {
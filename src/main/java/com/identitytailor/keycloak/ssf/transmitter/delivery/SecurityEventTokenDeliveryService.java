@@ -3,31 +3,53 @@ package com.identitytailor.keycloak.ssf.transmitter.delivery;
 import com.identitytailor.keycloak.ssf.streams.model.DeliveryMethod;
 import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
 import com.identitytailor.keycloak.ssf.transmitter.delivery.polling.PollDeliveryService;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushDeliveryDispatcher;
 import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushDeliveryService;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushDeliveryTask;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushOutboxService;
 import com.identitytailor.keycloak.ssf.transmitter.event.SecurityEventTokenEncoder;
 import com.identitytailor.keycloak.ssf.transmitter.storage.SsfStreamStore;
 import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfiguration;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamSubjectService;
 import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
 
 import java.util.List;
-import java.util.Set;
 
 @JBossLog
 public class SecurityEventTokenDeliveryService {
 
+    private final KeycloakSession session;
     private final SsfStreamStore streamStore;
     private final SecurityEventTokenEncoder securityEventTokenEncoder;
     private final PushDeliveryService pushDeliveryService;
+    private final PushDeliveryDispatcher pushDeliveryDispatcher;
+    private final PushOutboxService pushOutboxService;
     private final PollDeliveryService pollDeliveryService;
+    private final StreamRoutingIndex streamRoutingIndex;
+    private final StreamSubjectService streamSubjectService;
 
-    public SecurityEventTokenDeliveryService(SsfStreamStore streamStore,
+    public SecurityEventTokenDeliveryService(KeycloakSession session,
+                                             SsfStreamStore streamStore,
+                                             StreamRoutingIndex streamRoutingIndex,
                                              SecurityEventTokenEncoder securityEventTokenEncoder,
                                              PushDeliveryService pushDeliveryService,
-                                             PollDeliveryService pollDeliveryService) {
+                                             PushDeliveryDispatcher pushDeliveryDispatcher,
+                                             PushOutboxService pushOutboxService,
+                                             PollDeliveryService pollDeliveryService,
+                                             StreamSubjectService streamSubjectService) {
+        this.session = session;
         this.streamStore = streamStore;
+        this.streamRoutingIndex = streamRoutingIndex;
         this.securityEventTokenEncoder = securityEventTokenEncoder;
         this.pushDeliveryService = pushDeliveryService;
+        this.pushDeliveryDispatcher = pushDeliveryDispatcher;
+        this.pushOutboxService = pushOutboxService;
         this.pollDeliveryService = pollDeliveryService;
+        this.streamSubjectService = streamSubjectService;
     }
 
     /**
@@ -50,54 +72,178 @@ public class SecurityEventTokenDeliveryService {
      */
     public void deliverEvent(SecurityEventToken event) {
 
-        List<StreamConfiguration> streams = streamStore.getAllStreams();
+        String eventType = getEventType(event);
+        List<StreamConfiguration> streams = filterBySubject(getStreams(eventType), event);
 
         if (streams.isEmpty()) {
-            log.warnf("No streams found. Discarding event %s", event.getJti());
+            log.debugf("No streams found for event type %s. Discarding event %s", eventType, event.getJti());
             return;
         }
 
         try {
+            // the same SET is pushed or stored for every interested stream, so it is signed at most once
+            String encodedEvent = null;
             for (StreamConfiguration stream : streams) {
-                // Skip disabled or paused streams
-                if (shouldSkipStream(stream)) {
-                    continue;
-                }
+                encodedEvent = deliverToStream(stream, event, encodedEvent);
+            }
+        } catch (Exception e) {
+            log.error("Error delivering event", e);
+        }
+    }
 
-                // Check if the stream is interested in this event type
-                String eventType = getEventType(event);
-                if (eventType != null && stream.getEventsRequested() != null &&
-                    !stream.getEventsRequested().contains(eventType)) {
-                    continue;
-                }
+    /**
+     * Delivers an event to a single stream of the current realm without consulting the stream routes, e.g. for verification events.
+     *
+     * @param streamId The stream ID
+     * @param event    The event to deliver
+     * @return true if the event was handed over for delivery, false if the stream was not found
+     */
+    public boolean deliverToStream(String streamId, SecurityEventToken event) {
+
+        RealmModel realm = session.getContext().getRealm();
+        StreamConfiguration stream = realm == null ? null : streamStore.getStream(realm.getId(), streamId);
+        if (stream == null) {
+            log.debugf("Stream %s not found. Discarding event %s", streamId, event.getJti());
+            return false;
+        }
+
+        deliverToStream(stream, event, null);
+        return true;
+    }
+
+    /**
+     * Delivers an event to the given stream based on its delivery method.
+     *
+     * @param stream
+     * @param event
+     * @param encodedEvent The already signed event, or {@literal null} if the event was not signed yet
+     * @return the signed event if it was signed for PUSH delivery or for storing, otherwise the given encoded event
+     */
+    protected String deliverToStream(StreamConfiguration stream, SecurityEventToken event, String encodedEvent) {
 
-                // Deliver the event based on the stream's delivery method
-                var delivery = stream.getDelivery();
-                String deliveryMethod = delivery.getMethod();
-
-                if (DeliveryMethod.PUSH.getSpecUrn().equals(deliveryMethod)) {
-                    // PUSH delivery
-                    try {
-                        String encodedEvent = securityEventTokenEncoder.encode(event);
-                        pushDeliveryService.deliverEvent(stream, encodedEvent);
-                    } catch (Exception e) {
-                        log.error("Error delivering event via PUSH to stream " + stream.getStreamId(), e);
-                    }
-                } else if (DeliveryMethod.POLL.getSpecUrn().equals(deliveryMethod)) {
-                    // POLL delivery
-                    try {
-                        pollDeliveryService.storeEvent(stream.getStreamId(), event);
-                    } catch (Exception e) {
-                        log.error("Error storing event for POLL delivery for stream " + stream.getStreamId(), e);
-                    }
+        var delivery = stream.getDelivery();
+        String deliveryMethod = delivery.getMethod();
+
+        if (DeliveryMethod.PUSH.getSpecUrn().equals(deliveryMethod)) {
+            // PUSH delivery
+            try {
+                if (encodedEvent == null) {
+                    encodedEvent = securityEventTokenEncoder.encode(event);
                 }
+                pushEvent(stream, event.getJti(), encodedEvent);
+            } catch (Exception e) {
+                log.error("Error delivering event via PUSH to stream " + stream.getStreamId(), e);
             }
-        } catch (Exception e) {
-            log.error("Error delivering event", e);
+        } else if (DeliveryMethod.POLL.getSpecUrn().equals(deliveryMethod)) {
+            // POLL delivery
+            try {
+                if (encodedEvent == null && pollDeliveryService.isStoringEncodedEvents()) {
+                    encodedEvent = securityEventTokenEncoder.encode(event);
+                }
+                pollDeliveryService.storeEvent(stream.getStreamId(), event, encodedEvent);
+            } catch (Exception e) {
+                log.error("Error storing event for POLL delivery for stream " + stream.getStreamId(), e);
+            }
+        }
+        return encodedEvent;
+    }
+
+    /**
+     * Removes the streams which are not interested in the subject of the given event.
+     *
+     * @param streams
+     * @param event
+     * @return
+     */
+    protected List<StreamConfiguration> filterBySubject(List<StreamConfiguration> streams, SecurityEventToken event) {
+
+        if (streamSubjectService == null || streams.isEmpty()) {
+            return streams;
+        }
+
+        String userId = StreamSubjectService.getUserId(event);
+        if (userId == null) {
+            return streams;
         }
+
+        RealmModel realm = session.getContext().getRealm();
+        return streams.stream()
+                .filter(stream -> streamSubjectService.isSubjectOfStream(realm, stream, userId))
+                .toList();
+    }
+
+    /**
+     * Checks whether the current realm has any active stream, so that events of realms without streams can be dropped early.
+     *
+     * @return
+     */
+    public boolean hasActiveStreams() {
+        return !getStreams(null).isEmpty();
+    }
+
+    /**
+     * Gets the active streams of the current realm which are interested in the given event type.
+     *
+     * @param eventType The event type, or null to match all active streams
+     * @return The matching streams
+     */
+    protected List<StreamConfiguration> getStreams(String eventType) {
+
+        RealmModel realm = session.getContext().getRealm();
+        if (realm == null) {
+            return List.of();
+        }
+
+        if (streamRoutingIndex != null) {
+            return streamRoutingIndex.getStreams(realm, eventType, () -> streamStore.getStreams(realm.getId()));
+        }
+
+        return streamStore.getStreams(realm.getId()).stream()
+                .filter(stream -> !shouldSkipStream(stream))
+                .filter(stream -> eventType == null || stream.getEventsRequested() == null || stream.getEventsRequested().contains(eventType))
+                .toList();
+    }
+
+    /**
+     * Hands the encoded event over to the push dispatcher, or delivers it directly if no dispatcher is available.
+     * <p>
+     * If the outbox is enabled, the event is recorded in the current transaction and only dispatched after the transaction committed,
+     * so that events of rolled back transactions are never pushed and pushed events are retried until the receiver accepted them.
+     *
+     * @param stream
+     * @param jti
+     * @param encodedEvent
+     */
+    protected void pushEvent(StreamConfiguration stream, String jti, String encodedEvent) {
+
+        if (pushDeliveryDispatcher == null) {
+            pushDeliveryService.deliverEvent(stream, encodedEvent);
+            return;
+        }
+
+        String realmId = session.getContext().getRealm().getId();
+        KeycloakTransactionManager transactionManager = session.getTransactionManager();
+        if (!transactionManager.isActive()) {
+            pushDeliveryDispatcher.dispatch(new PushDeliveryTask(realmId, stream, jti, encodedEvent));
+            return;
+        }
+
+        String outboxId = pushOutboxService == null ? null : pushOutboxService.add(realmId, stream, jti, encodedEvent);
+        PushDeliveryTask task = new PushDeliveryTask(realmId, stream, jti, encodedEvent, outboxId);
+        transactionManager.enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                pushDeliveryDispatcher.dispatch(task);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                log.debugf("Transaction rolled back. Discarding event %s for stream %s", jti, stream.getStreamId());
+            }
+        });
     }
 
     protected boolean shouldSkipStream(StreamConfiguration stream) {
-        return Set.of("paused", "disabled").contains(stream.getStatus());
+        return StreamRoutingIndex.INACTIVE_STREAM_STATUS.contains(stream.getStatus());
     }
 }
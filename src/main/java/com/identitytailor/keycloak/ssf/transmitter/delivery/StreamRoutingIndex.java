@@ -0,0 +1,123 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery;
+
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfiguration;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfigurationVersion;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.RealmModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Node local index of the active streams of a realm by requested event type.
+ * <p>
+ * The routes of a realm are built once from the stream store and reused until the {@link StreamConfigurationVersion}
+ * of the realm advances, which happens after every stream create, update, delete or status change on any node.
+ */
+@JBossLog
+public class StreamRoutingIndex {
+
+    public static final Set<String> INACTIVE_STREAM_STATUS = Set.of("paused", "disabled");
+
+    private final ConcurrentMap<String, RealmRoutes> routesByRealm = new ConcurrentHashMap<>();
+
+    private final StreamConfigurationVersion versions;
+
+    public StreamRoutingIndex(StreamConfigurationVersion versions) {
+        this.versions = versions;
+    }
+
+    /**
+     * Returns the active streams in the given realm which are interested in the given event type.
+     *
+     * @param realm
+     * @param eventType     The event type, or {@literal null} to match every active stream
+     * @param streamsLoader Loads the streams of the realm from the stream store if the routes of the realm need to be rebuilt
+     * @return
+     */
+    public List<StreamConfiguration> getStreams(RealmModel realm, String eventType, Supplier<List<StreamConfiguration>> streamsLoader) {
+
+        long version = versions.current(realm.getId());
+
+        RealmRoutes routes = routesByRealm.get(realm.getId());
+        if (routes == null || routes.version != version) {
+            routes = buildRoutes(realm, version, streamsLoader.get());
+            routesByRealm.put(realm.getId(), routes);
+        }
+
+        if (eventType == null) {
+            return routes.activeStreams;
+        }
+
+        return routes.streamsByEventType.getOrDefault(eventType, routes.streamsForAnyEventType);
+    }
+
+    protected RealmRoutes buildRoutes(RealmModel realm, long version, List<StreamConfiguration> streams) {
+
+        List<StreamConfiguration> activeStreams = new ArrayList<>();
+        List<StreamConfiguration> streamsForAnyEventType = new ArrayList<>();
+        Map<String, List<StreamConfiguration>> streamsByEventType = new HashMap<>();
+
+        for (StreamConfiguration stream : streams) {
+            if (!isRoutable(realm, stream)) {
+                continue;
+            }
+            activeStreams.add(stream);
+
+            if (stream.getEventsRequested() == null) {
+                streamsForAnyEventType.add(stream);
+                continue;
+            }
+
+            for (String eventType : stream.getEventsRequested()) {
+                streamsByEventType.computeIfAbsent(eventType, type -> new ArrayList<>()).add(stream);
+            }
+        }
+
+        // streams without requested events receive every event type
+        if (!streamsForAnyEventType.isEmpty()) {
+            streamsByEventType.values().forEach(eventTypeStreams -> eventTypeStreams.addAll(streamsForAnyEventType));
+        }
+
+        Map<String, List<StreamConfiguration>> immutableStreamsByEventType = new HashMap<>();
+        streamsByEventType.forEach((eventType, eventTypeStreams) -> immutableStreamsByEventType.put(eventType, List.copyOf(eventTypeStreams)));
+
+        log.debugf("Rebuilt stream routes. realm=%s version=%s streams=%s eventTypes=%s", realm.getName(), version, activeStreams.size(), immutableStreamsByEventType.keySet());
+
+        return new RealmRoutes(version, List.copyOf(activeStreams), List.copyOf(streamsForAnyEventType), Map.copyOf(immutableStreamsByEventType));
+    }
+
+    protected boolean isRoutable(RealmModel realm, StreamConfiguration stream) {
+
+        if (stream.getStatus() != null && INACTIVE_STREAM_STATUS.contains(stream.getStatus())) {
+            return false;
+        }
+
+        return realm.getId().equals(stream.getRealmId());
+    }
+
+    /**
+     * Drops the routes of the given realm on this node.
+     *
+     * @param realmId
+     */
+    public void remove(String realmId) {
+        routesByRealm.remove(realmId);
+    }
+
+    public void clear() {
+        routesByRealm.clear();
+    }
+
+    protected record RealmRoutes(long version,
+                                 List<StreamConfiguration> activeStreams,
+                                 List<StreamConfiguration> streamsForAnyEventType,
+                                 Map<String, List<StreamConfiguration>> streamsByEventType) {
+    }
+}
@@ -0,0 +1,182 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery;
+
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfigurationVersion;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.RealmModel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Node local index of the subjects which were added to the streams of a realm.
+ * <p>
+ * The subjects of a stream are loaded once from the subject store and reused until the subjects version of the stream
+ * advances, see {@link StreamConfigurationVersion#nextSubjects(String, String)}. Large subject sets can be guarded by a Bloom filter,
+ * so that events of users which are not part of a stream are mostly rejected without probing the subject set.
+ */
+@JBossLog
+public class StreamSubjectIndex {
+
+    public static final int DEFAULT_BLOOM_FILTER_MIN_SUBJECTS = 10_000;
+
+    public static final double DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, StreamSubjects>> subjectsByRealm = new ConcurrentHashMap<>();
+
+    private final StreamConfigurationVersion versions;
+
+    private final int bloomFilterMinSubjects;
+
+    private final double bloomFilterFalsePositiveRate;
+
+    /**
+     * @param versions
+     * @param bloomFilterMinSubjects       Minimum number of subjects of a stream for which a Bloom filter is built, {@code 0} disables Bloom filters
+     * @param bloomFilterFalsePositiveRate Target false positive rate of the Bloom filters
+     */
+    public StreamSubjectIndex(StreamConfigurationVersion versions, int bloomFilterMinSubjects, double bloomFilterFalsePositiveRate) {
+        this.versions = versions;
+        this.bloomFilterMinSubjects = bloomFilterMinSubjects;
+        this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+    }
+
+    /**
+     * Returns the subjects of the given stream.
+     *
+     * @param realm
+     * @param streamId
+     * @param subjectsLoader Loads the subjects of the stream from the subject store if they are not indexed yet
+     * @return
+     */
+    public StreamSubjects getSubjects(RealmModel realm, String streamId, Supplier<Set<String>> subjectsLoader) {
+
+        long version = versions.currentSubjects(realm.getId(), streamId);
+
+        ConcurrentMap<String, StreamSubjects> subjectsByStream = subjectsByRealm.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>());
+        StreamSubjects subjects = subjectsByStream.get(streamId);
+        if (subjects == null || subjects.version() != version) {
+            subjects = buildSubjects(version, subjectsLoader.get());
+            subjectsByStream.put(streamId, subjects);
+        }
+
+        return subjects;
+    }
+
+    protected StreamSubjects buildSubjects(long version, Set<String> userIds) {
+
+        BloomFilter bloomFilter = null;
+        if (bloomFilterMinSubjects > 0 && userIds.size() >= bloomFilterMinSubjects) {
+            bloomFilter = new BloomFilter(userIds.size(), bloomFilterFalsePositiveRate);
+            userIds.forEach(bloomFilter::add);
+        }
+
+        return new StreamSubjects(version, Set.copyOf(userIds), bloomFilter);
+    }
+
+    /**
+     * Drops the subjects of the given realm on this node.
+     *
+     * @param realmId
+     */
+    public void remove(String realmId) {
+        subjectsByRealm.remove(realmId);
+    }
+
+    /**
+     * Drops the subjects of the given stream on this node.
+     *
+     * @param realmId
+     * @param streamId
+     */
+    public void remove(String realmId, String streamId) {
+        subjectsByRealm.computeIfPresent(realmId, (id, subjectsByStream) -> {
+            subjectsByStream.remove(streamId);
+            return subjectsByStream.isEmpty() ? null : subjectsByStream;
+        });
+    }
+
+    public void clear() {
+        subjectsByRealm.clear();
+    }
+
+    /**
+     * The subjects of a stream.
+     *
+     * @param version     The subjects version of the stream the subjects were loaded for
+     * @param userIds     The IDs of the users which were added to the stream
+     * @param bloomFilter Prefilter for large subject sets, {@literal null} if the set is small
+     */
+    public record StreamSubjects(long version, Set<String> userIds, BloomFilter bloomFilter) {
+
+        public boolean isEmpty() {
+            return userIds.isEmpty();
+        }
+
+        public boolean contains(String userId) {
+            if (bloomFilter != null && !bloomFilter.mightContain(userId)) {
+                return false;
+            }
+            return userIds.contains(userId);
+        }
+    }
+
+    /**
+     * Minimal Bloom filter over strings using double hashing.
+     */
+    public static class BloomFilter {
+
+        private final BitSet bits;
+
+        private final int numBits;
+
+        private final int numHashes;
+
+        public BloomFilter(int expectedEntries, double falsePositiveRate) {
+            int entries = Math.max(1, expectedEntries);
+            this.numBits = (int) Math.max(64, Math.ceil(-entries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+            this.numHashes = Math.max(1, (int) Math.round((double) numBits / entries * Math.log(2)));
+            this.bits = new BitSet(numBits);
+        }
+
+        public void add(String value) {
+            long hash = hash(value);
+            int hash1 = (int) hash;
+            int hash2 = (int) (hash >>> 32);
+            for (int i = 1; i <= numHashes; i++) {
+                bits.set(index(hash1 + i * hash2));
+            }
+        }
+
+        public boolean mightContain(String value) {
+            long hash = hash(value);
+            int hash1 = (int) hash;
+            int hash2 = (int) (hash >>> 32);
+            for (int i = 1; i <= numHashes; i++) {
+                if (!bits.get(index(hash1 + i * hash2))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        protected int index(int combinedHash) {
+            return (combinedHash & Integer.MAX_VALUE) % numBits;
+        }
+
+        /**
+         * 64 bit FNV-1a hash of the UTF-8 bytes of the value.
+         */
+        protected static long hash(String value) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+}
@@ -1,15 +1,24 @@
 package com.identitytailor.keycloak.ssf.transmitter.delivery.polling;
 
+import com.identitytailor.keycloak.ssf.SharedSignalsProvider;
 import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
 import com.identitytailor.keycloak.ssf.transmitter.event.SecurityEventTokenEncoder;
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfEncodedEventStore;
 import com.identitytailor.keycloak.ssf.transmitter.storage.SsfEventStore;
 import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -21,39 +30,71 @@ public class PollDeliveryService {
     private final KeycloakSession session;
     private final SecurityEventTokenEncoder securityEventTokenEncoder;
     private final SsfEventStore eventStore;
+    private final PollEventNotifier pollEventNotifier;
 
-    public PollDeliveryService(KeycloakSession session, SecurityEventTokenEncoder securityEventTokenEncoder, SsfEventStore eventStore) {
+    public PollDeliveryService(KeycloakSession session, SecurityEventTokenEncoder securityEventTokenEncoder, SsfEventStore eventStore, PollEventNotifier pollEventNotifier) {
         this.session = session;
         this.securityEventTokenEncoder = securityEventTokenEncoder;
         this.eventStore = eventStore;
+        this.pollEventNotifier = pollEventNotifier;
+    }
+
+    /**
+     * Polls for events and waits up to the configured maximum wait time for new events if none are available (long polling).
+     * <p>
+     * The returned stage is completed on a virtual thread with a new {@link KeycloakSession}, the request thread is not blocked while waiting.
+     * Events stored on other cluster nodes wake up the request via a cluster event if the event store is shared.
+     *
+     * @param streamId
+     * @param maxEvents The maximum number of events to return
+     * @return The poll response containing events
+     */
+    public CompletionStage<PollResponse> awaitEvents(String streamId, int maxEvents) {
+
+        if (pollEventNotifier == null) {
+            return CompletableFuture.completedFuture(pollEvents(streamId, maxEvents));
+        }
+
+        // register before reading the store to not miss events stored in between
+        CompletableFuture<Void> signal = pollEventNotifier.awaitEvents(streamId);
+
+        PollResponse response;
+        try {
+            response = pollEvents(streamId, maxEvents);
+        } catch (RuntimeException e) {
+            pollEventNotifier.release(streamId, signal);
+            throw e;
+        }
+        if (!response.getSets().isEmpty()) {
+            pollEventNotifier.release(streamId, signal);
+            return CompletableFuture.completedFuture(response);
+        }
+
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = session.getContext().getRealm().getId();
+
+        return signal.copy()
+                .completeOnTimeout(null, pollEventNotifier.getMaxWaitMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((ignored, error) -> pollEventNotifier.release(streamId, signal))
+                .thenApplyAsync(ignored -> KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, pollSession -> {
+                    RealmModel realm = pollSession.realms().getRealm(realmId);
+                    pollSession.getContext().setRealm(realm);
+                    return pollSession.getProvider(SharedSignalsProvider.class).pollDeliveryService().pollEvents(streamId, maxEvents);
+                }), pollEventNotifier.getExecutor());
     }
 
     /**
      * Polls for events.
      *
      * @param streamId
-     * @param maxEvents         The maximum number of events to return
-     * @param returnImmediately Whether to return immediately or wait for events
+     * @param maxEvents The maximum number of events to return
      * @return The poll response containing events
      */
-    public PollResponse pollEvents(String streamId, int maxEvents, boolean returnImmediately) {
+    public PollResponse pollEvents(String streamId, int maxEvents) {
         try {
-            List<SecurityEventToken> events = eventStore.getEvents(streamId, maxEvents);
+            Map<String, String> setMap = getEncodedEvents(streamId, maxEvents);
 
-            if (events.isEmpty() && !returnImmediately) {
-                // wait
-                TimeUnit.SECONDS.sleep(1); // TODO make this configurable
-                // then check for new elements to arrive
-                events = eventStore.getEvents(streamId, maxEvents);
-            }
 
-            Map<String, String> setMap = new HashMap<>(events.size());
-            for (SecurityEventToken secEvent : events) {
-                String jti = secEvent.getJti();
-                String encodedEvent = securityEventTokenEncoder.encode(secEvent);
-                setMap.put(jti, encodedEvent);
-            }
-            
             PollResponse response = new PollResponse();
             response.setSets(setMap);
             response.setMoreAvailable(eventStore.hasMoreEvents(streamId));
@@ -62,12 +103,26 @@ public class PollDeliveryService {
         } catch (RuntimeException e) {
             log.error("Error polling events", e);
             throw e;
-        } catch (InterruptedException e) {
-            log.error("Error polling events", e);
-            throw new RuntimeException(e);
         }
     }
 
+    protected Map<String, String> getEncodedEvents(String streamId, int maxEvents) {
+
+        if (eventStore instanceof SsfEncodedEventStore encodedEventStore && encodedEventStore.isStoringEncodedEvents()) {
+            // signed SETs are returned as stored
+            return encodedEventStore.getEncodedEvents(streamId, maxEvents, securityEventTokenEncoder::encode);
+        }
+
+        List<SecurityEventToken> events = eventStore.getEvents(streamId, maxEvents);
+        Map<String, String> setMap = new HashMap<>(events.size());
+        for (SecurityEventToken secEvent : events) {
+            String jti = secEvent.getJti();
+            String encodedEvent = securityEventTokenEncoder.encode(secEvent);
+            setMap.put(jti, encodedEvent);
+        }
+        return setMap;
+    }
+
     /**
      * Acknowledges received events.
      *
@@ -77,10 +132,8 @@ public class PollDeliveryService {
      */
     public boolean handleEventAcks(String streamId, Set<String> eventIds) {
         try {
-            for (String eventId : eventIds) {
-                eventStore.acknowledgeEvent(streamId, eventId);
-                log.debugf("Acknowledged event for streamId '%s' with id '%s'", streamId, eventId);
-            }
+            eventStore.acknowledgeEvents(streamId, eventIds);
+            log.debugf("Acknowledged events for streamId '%s' with ids %s", streamId, eventIds);
             return true;
         } catch (Exception e) {
             log.error("Error acknowledging events", e);
@@ -96,9 +149,28 @@ public class PollDeliveryService {
      * @return true if the event was stored successfully, false otherwise
      */
     public boolean storeEvent(String streamId, SecurityEventToken event) {
+        return storeEvent(streamId, event, null);
+    }
+
+    /**
+     * Stores an event for later polling, reusing the given signed event if the event store stores signed events.
+     *
+     * @param streamId
+     * @param event        The event to store
+     * @param encodedEvent The already signed event, or {@literal null} if the event was not signed yet
+     * @return true if the event was stored successfully, false otherwise
+     */
+    public boolean storeEvent(String streamId, SecurityEventToken event, String encodedEvent) {
         try {
-            eventStore.storeEvent(streamId, event);
+            if (isStoringEncodedEvents()) {
+                // sign once at enqueue time instead of on every poll
+                String signedEvent = encodedEvent != null ? encodedEvent : securityEventTokenEncoder.encode(event);
+                ((SsfEncodedEventStore) eventStore).storeEncodedEvent(streamId, event, signedEvent);
+            } else {
+                eventStore.storeEvent(streamId, event);
+            }
             log.debugf("Stored event for streamId '%s' with id '%s'", streamId, event.getJti());
+            notifyPollers(streamId);
             return true;
         } catch (Exception e) {
             log.error("Error storing event", e);
@@ -106,12 +178,49 @@ public class PollDeliveryService {
         }
     }
 
+    /**
+     * Checks whether events are stored signed, so that callers can sign an event once for all streams.
+     *
+     * @return
+     */
+    public boolean isStoringEncodedEvents() {
+        return eventStore instanceof SsfEncodedEventStore encodedEventStore && encodedEventStore.isStoringEncodedEvents();
+    }
+
+    /**
+     * Wakes up the long polling requests of the given stream once the current transaction committed.
+     *
+     * @param streamId
+     */
+    protected void notifyPollers(String streamId) {
+
+        if (pollEventNotifier == null) {
+            return;
+        }
+
+        KeycloakTransactionManager transactionManager = session.getTransactionManager();
+        if (!transactionManager.isActive()) {
+            pollEventNotifier.notifyEvents(session, streamId);
+            return;
+        }
+
+        transactionManager.enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                pollEventNotifier.notifyEvents(session, streamId);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                // NOOP
+            }
+        });
+    }
+
     public boolean handleEventErrors(String streamId, Set<String> setErrs) {
         try {
-            for (String eventId : setErrs) {
-                eventStore.failedEvent(streamId, eventId);
-                log.debugf("Failed event for streamId '%s' with id '%s'", streamId, eventId);
-            }
+            eventStore.failEvents(streamId, setErrs);
+            log.debugf("Failed events for streamId '%s' with ids %s", streamId, setErrs);
             return true;
         } catch (Exception e) {
             log.error("Error acknowledging events", e);
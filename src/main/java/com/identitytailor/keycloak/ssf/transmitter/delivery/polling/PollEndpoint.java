@@ -1,5 +1,6 @@
 package com.identitytailor.keycloak.ssf.transmitter.delivery.polling;
 
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamService;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Produces;
@@ -13,6 +14,8 @@ import org.keycloak.models.KeycloakSession;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Endpoint for polling events from the SSF transmitter.
@@ -24,13 +27,18 @@ public class PollEndpoint {
 
     private final PollDeliveryService pollDeliveryService;
 
-    public PollEndpoint(KeycloakSession session, PollDeliveryService pollDeliveryService) {
+    private final StreamService streamService;
+
+    public PollEndpoint(KeycloakSession session, PollDeliveryService pollDeliveryService, StreamService streamService) {
         this.session = session;
         this.pollDeliveryService = pollDeliveryService;
+        this.streamService = streamService;
     }
 
     /**
      * Polls for events or acknowledges received events.
+     * <p>
+     * Requests with {@code returnImmediately=false} are suspended until an event for the stream arrives or the maximum wait time elapsed.
      *
      * @param pollRequest The poll request
      * @return The poll response containing events or acknowledgment status
@@ -39,26 +47,13 @@ public class PollEndpoint {
     @NoCache
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response pollEvents(@QueryParam("stream_id") String streamId, PollRequest pollRequest) {
+    public CompletionStage<Response> pollEvents(@QueryParam("stream_id") String streamId, PollRequest pollRequest) {
         try {
-            // Check if this is an acknowledgment request
-            if (!CollectionUtil.isEmpty(pollRequest.getAck())) {
-                boolean success = pollDeliveryService.handleEventAcks(streamId, Set.copyOf(pollRequest.getAck()));
-
-                if (pollRequest.getReturnImmediately() != null && pollRequest.getReturnImmediately() && pollRequest.getMaxEvents() == 0) {
-                    return Response.ok(Map.of("sets", Map.of())).build();
-                }
+            // only streams of the current realm can be polled
+            if (streamService.getStream(streamId) == null) {
+                return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND).build());
             }
 
-            if (!CollectionUtil.isEmpty(pollRequest.getSetErrs())) {
-                pollDeliveryService.handleEventErrors(streamId, Set.copyOf(pollRequest.getSetErrs()));
-
-                if (pollRequest.getReturnImmediately() != null && pollRequest.getReturnImmediately() && pollRequest.getMaxEvents() == 0) {
-                    return Response.ok(Map.of("sets", Map.of())).build();
-                }
-            }
-
-            // This is a poll request
             Integer maxEvents = pollRequest.getMaxEvents();
             Boolean returnImmediately = pollRequest.getReturnImmediately();
 
@@ -70,11 +65,39 @@ public class PollEndpoint {
                 returnImmediately = true; // Default value
             }
 
-            PollResponse response = pollDeliveryService.pollEvents(streamId, maxEvents, returnImmediately);
-            return Response.ok(response).build();
+            boolean acknowledgement = !CollectionUtil.isEmpty(pollRequest.getAck()) || !CollectionUtil.isEmpty(pollRequest.getSetErrs());
+
+            // Check if this is an acknowledgment request
+            if (!CollectionUtil.isEmpty(pollRequest.getAck())
+                && !pollDeliveryService.handleEventAcks(streamId, Set.copyOf(pollRequest.getAck()))) {
+                // the receiver must repeat the acknowledgements, otherwise the events are delivered again
+                return CompletableFuture.completedFuture(Response.serverError().build());
+            }
+
+            if (!CollectionUtil.isEmpty(pollRequest.getSetErrs())
+                && !pollDeliveryService.handleEventErrors(streamId, Set.copyOf(pollRequest.getSetErrs()))) {
+                return CompletableFuture.completedFuture(Response.serverError().build());
+            }
+
+            if (acknowledgement && returnImmediately && maxEvents == 0) {
+                return CompletableFuture.completedFuture(Response.ok(Map.of("sets", Map.of())).build());
+            }
+
+            // This is a poll request
+            if (returnImmediately) {
+                PollResponse response = pollDeliveryService.pollEvents(streamId, maxEvents);
+                return CompletableFuture.completedFuture(Response.ok(response).build());
+            }
+
+            return pollDeliveryService.awaitEvents(streamId, maxEvents)
+                    .thenApply(response -> Response.ok(response).build())
+                    .exceptionally(e -> {
+                        log.error("Error polling events", e);
+                        return Response.serverError().build();
+                    });
         } catch (Exception e) {
             log.error("Error polling events", e);
-            return Response.serverError().build();
+            return CompletableFuture.completedFuture(Response.serverError().build());
         }
     }
 }
@@ -0,0 +1,199 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery.polling;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.infinispan.Cache;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.event.CacheEntryCreatedEvent;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signals for long polling receivers.
+ * <p>
+ * Each stream has at most one pending signal generation which is shared by all waiting poll requests of the stream.
+ * The generation is completed and replaced as soon as a new event is stored for the stream, or once its last waiter left,
+ * so that timed out requests of idle streams do not pile up on a signal which is never completed.
+ * <p>
+ * If the event store is shared by the cluster, stored events also wake up the poll requests on the other nodes
+ * via a short-lived entry of the replicated work cache whose value is the stream id.
+ */
+@JBossLog
+public class PollEventNotifier {
+
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 10_000;
+
+    public static final String CACHE_KEY_PREFIX = "ssf-poll-events-stored::";
+
+    /**
+     * Lifespan of the work cache entries, which only need to live until they were replicated.
+     */
+    public static final long CACHE_ENTRY_LIFESPAN_MILLIS = 60_000;
+
+    private final ConcurrentMap<String, Signal> signals = new ConcurrentHashMap<>();
+
+    private final long maxWaitMillis;
+
+    private final ExecutorService executor;
+
+    private final WorkCacheListener workCacheListener = new WorkCacheListener();
+
+    private volatile Cache<String, Object> workCache;
+
+    public PollEventNotifier(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ssf-poll-", 0).factory());
+    }
+
+    /**
+     * Subscribes to the events stored on other nodes.
+     *
+     * @param keycloakSessionFactory
+     * @param clusterNotifications whether the event store is shared by the cluster, so that stored events are announced to the other nodes
+     */
+    public void start(KeycloakSessionFactory keycloakSessionFactory, boolean clusterNotifications) {
+
+        if (!clusterNotifications) {
+            return;
+        }
+
+        KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+            InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+            if (infinispan == null) {
+                return;
+            }
+            Cache<String, Object> cache = infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+            cache.addListener(workCacheListener);
+            workCache = cache;
+        });
+    }
+
+    /**
+     * Returns the signal which is completed on the next event for the given stream.
+     * The signal must be obtained before checking the event store, so that events stored in between are not missed,
+     * and must be released with {@link #release(String, CompletableFuture)} once the poll request stops waiting.
+     *
+     * @param streamId
+     * @return
+     */
+    public CompletableFuture<Void> awaitEvents(String streamId) {
+        return signals.compute(streamId, (id, signal) -> {
+            Signal current = signal == null ? new Signal() : signal;
+            current.waiters++;
+            return current;
+        }).future;
+    }
+
+    /**
+     * Removes a poll request from the waiters of the given signal. The last waiter completes the signal generation,
+     * which releases the dependents of all its waiters.
+     *
+     * @param streamId
+     * @param future the signal returned by {@link #awaitEvents(String)}
+     */
+    public void release(String streamId, CompletableFuture<Void> future) {
+        signals.computeIfPresent(streamId, (id, signal) -> {
+            if (signal.future != future || --signal.waiters > 0) {
+                // the generation of the waiter was already completed, or other requests are still waiting
+                return signal;
+            }
+            signal.future.complete(null);
+            return null;
+        });
+    }
+
+    /**
+     * Wakes up all poll requests waiting for events of the given stream on this node.
+     *
+     * @param streamId
+     */
+    public void notifyEvents(String streamId) {
+        Signal signal = signals.remove(streamId);
+        if (signal != null) {
+            signal.future.complete(null);
+        }
+    }
+
+    /**
+     * Wakes up all poll requests waiting for events of the given stream on this node and, if the event store is shared,
+     * on the other nodes.
+     *
+     * @param session
+     * @param streamId
+     */
+    public void notifyEvents(KeycloakSession session, String streamId) {
+
+        notifyEvents(streamId);
+
+        Cache<String, Object> cache = workCache;
+        if (cache == null) {
+            return;
+        }
+
+        try {
+            cache.put(CACHE_KEY_PREFIX + UUID.randomUUID(), streamId, CACHE_ENTRY_LIFESPAN_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warnf(e, "Could not notify other nodes about stored events. streamId=%s", streamId);
+        }
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Executor for resuming suspended poll requests, so that no request worker thread is blocked while waiting.
+     *
+     * @return
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void close() {
+        Cache<String, Object> cache = workCache;
+        if (cache != null) {
+            cache.removeListener(workCacheListener);
+            workCache = null;
+        }
+        signals.values().forEach(signal -> signal.future.complete(null));
+        signals.clear();
+        executor.shutdown();
+    }
+
+    /**
+     * A signal generation with the number of poll requests waiting for it.
+     */
+    protected static class Signal {
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private int waiters;
+    }
+
+    /**
+     * Wakes up the poll requests of this node for the events stored on other nodes.
+     */
+    @Listener
+    public class WorkCacheListener {
+
+        @CacheEntryCreated
+        public void onEventsStored(CacheEntryCreatedEvent<String, Object> event) {
+            if (event.isPre() || event.isOriginLocal() || !(event.getKey() instanceof String key) || !key.startsWith(CACHE_KEY_PREFIX)
+                || !(event.getValue() instanceof String streamId)) {
+                return;
+            }
+            notifyEvents(streamId);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery.push;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Arrays;
+
+/**
+ * Circuit breaker for the PUSH endpoint of a receiver.
+ * <p>
+ * The outcome of the last deliveries is tracked in a sliding window. Deliveries which fail or take longer than the slow call threshold
+ * count as failures. Once the failure rate exceeds the threshold the breaker opens and deliveries fail fast without a network call.
+ * After the open duration a single probe delivery is let through: the breaker closes if the probe succeeds and opens again otherwise.
+ */
+public class PushCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String endpointUrl;
+
+    private final Settings settings;
+
+    private final boolean[] failures;
+
+    private int windowPosition;
+
+    private int recordedCalls;
+
+    private int failedCalls;
+
+    private State state = State.CLOSED;
+
+    private long openedAt;
+
+    private boolean probeInFlight;
+
+    private long lastUsedAt = System.currentTimeMillis();
+
+    public PushCircuitBreaker(String endpointUrl, Settings settings) {
+        this.endpointUrl = endpointUrl;
+        this.settings = settings;
+        this.failures = new boolean[settings.windowSize()];
+    }
+
+    /**
+     * Checks if a delivery may be attempted. In the half-open state only a single probe is permitted at a time.
+     *
+     * @return true if the delivery may be attempted, false if it should fail fast
+     */
+    public synchronized boolean tryAcquirePermission() {
+        lastUsedAt = System.currentTimeMillis();
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> {
+                if (System.currentTimeMillis() - openedAt < settings.openDurationMillis()) {
+                    yield false;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                yield true;
+            }
+            case HALF_OPEN -> {
+                if (probeInFlight) {
+                    yield false;
+                }
+                probeInFlight = true;
+                yield true;
+            }
+        };
+    }
+
+    /**
+     * Records the outcome of a permitted delivery.
+     *
+     * @param delivered     whether the receiver accepted the SET
+     * @param latencyMillis duration of the delivery
+     * @return the state transition caused by this outcome, or {@literal null} if the state did not change
+     */
+    public synchronized State recordOutcome(boolean delivered, long latencyMillis) {
+
+        boolean failure = !delivered || latencyMillis > settings.slowCallThresholdMillis();
+        lastUsedAt = System.currentTimeMillis();
+
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+            if (failure) {
+                open();
+                return State.OPEN;
+            }
+            reset();
+            return State.CLOSED;
+        }
+
+        if (state == State.OPEN) {
+            // late outcome of a delivery that was permitted before the breaker opened
+            return null;
+        }
+
+        if (recordedCalls == failures.length) {
+            if (failures[windowPosition]) {
+                failedCalls--;
+            }
+        } else {
+            recordedCalls++;
+        }
+        failures[windowPosition] = failure;
+        if (failure) {
+            failedCalls++;
+        }
+        windowPosition = (windowPosition + 1) % failures.length;
+
+        if (recordedCalls >= settings.minimumCalls() && getFailureRate() >= settings.failureRateThreshold()) {
+            open();
+            return State.OPEN;
+        }
+        return null;
+    }
+
+    protected void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    protected void reset() {
+        state = State.CLOSED;
+        openedAt = 0;
+        recordedCalls = 0;
+        failedCalls = 0;
+        windowPosition = 0;
+        Arrays.fill(failures, false);
+    }
+
+    protected float getFailureRate() {
+        return recordedCalls == 0 ? 0 : failedCalls * 100f / recordedCalls;
+    }
+
+    /**
+     * Returns the time at which the breaker permits the next delivery. While a probe is in flight its outcome is only known
+     * after the probe returned, so the open duration is used as an estimate.
+     *
+     * @return time in millis
+     */
+    public synchronized long getPermittedAt() {
+        long now = System.currentTimeMillis();
+        return switch (state) {
+            case CLOSED -> now;
+            case OPEN -> Math.max(now, openedAt + settings.openDurationMillis());
+            case HALF_OPEN -> probeInFlight ? now + settings.openDurationMillis() : now;
+        };
+    }
+
+    /**
+     * Checks whether the breaker is closed and was not used since the given time, so that it can be dropped without losing an
+     * open state.
+     *
+     * @param idleSince time in millis
+     * @return
+     */
+    public synchronized boolean isIdle(long idleSince) {
+        return state == State.CLOSED && lastUsedAt < idleSince;
+    }
+
+    public String getEndpointUrl() {
+        return endpointUrl;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(state, getFailureRate(), recordedCalls, state == State.CLOSED ? null : openedAt);
+    }
+
+    /**
+     * Breaker state as exposed in the stream status.
+     *
+     * @param state
+     * @param failureRate percentage of failed deliveries in the current window
+     * @param calls       number of deliveries in the current window
+     * @param openedAt    time in millis the breaker opened, {@literal null} if closed
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record Snapshot(@JsonProperty("state") State state,
+                           @JsonProperty("failure_rate") float failureRate,
+                           @JsonProperty("calls") int calls,
+                           @JsonProperty("opened_at") Long openedAt) {
+    }
+
+    /**
+     * Circuit breaker settings.
+     *
+     * @param windowSize              Number of deliveries in the sliding window
+     * @param minimumCalls            Number of deliveries required before the failure rate is evaluated
+     * @param failureRateThreshold    Failure rate in percent at which the breaker opens
+     * @param slowCallThresholdMillis Duration after which a delivery counts as failed
+     * @param openDurationMillis      Time the breaker stays open before a probe is let through
+     */
+    public record Settings(int windowSize, int minimumCalls, float failureRateThreshold, long slowCallThresholdMillis, long openDurationMillis) {
+
+        public static final int DEFAULT_WINDOW_SIZE = 20;
+
+        public static final int DEFAULT_MINIMUM_CALLS = 10;
+
+        public static final float DEFAULT_FAILURE_RATE_THRESHOLD = 50f;
+
+        public static final long DEFAULT_SLOW_CALL_THRESHOLD_MILLIS = 2500;
+
+        public static final long DEFAULT_OPEN_DURATION_MILLIS = 30_000;
+    }
+}
@@ -0,0 +1,147 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery.push;
+
+import com.identitytailor.keycloak.ssf.SharedSignalsProvider;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node local circuit breakers by receiver endpoint URL.
+ * <p>
+ * If streams are paused while a breaker is open, no further events are sent which could probe the endpoint.
+ * The registry then schedules the probes itself, see {@link PushDeliveryService#probeEndpoint(String)}.
+ * <p>
+ * Closed breakers which were not used for the idle timeout are removed, so that breakers of endpoints which are no longer used
+ * by any stream do not pile up.
+ */
+@JBossLog
+public class PushCircuitBreakerRegistry {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 60 * 1000L;
+
+    private final PushCircuitBreaker.Settings settings;
+
+    private final boolean pauseStreams;
+
+    private final long idleTimeoutMillis;
+
+    private final ConcurrentMap<String, PushCircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final Set<ProbeKey> scheduledProbes = ConcurrentHashMap.newKeySet();
+
+    private KeycloakSessionFactory sessionFactory;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param settings
+     * @param pauseStreams      whether streams should be paused while the breaker of their endpoint is open
+     * @param idleTimeoutMillis time after which unused closed breakers are removed, {@code 0} keeps them
+     */
+    public PushCircuitBreakerRegistry(PushCircuitBreaker.Settings settings, boolean pauseStreams, long idleTimeoutMillis) {
+        this.settings = settings;
+        this.pauseStreams = pauseStreams;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void start(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        executor = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("ssf-push-circuit-breaker").factory());
+        if (idleTimeoutMillis > 0) {
+            executor.scheduleWithFixedDelay(this::removeIdleCircuitBreakers, idleTimeoutMillis, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public PushCircuitBreaker getCircuitBreaker(String endpointUrl) {
+        return breakers.computeIfAbsent(endpointUrl, url -> new PushCircuitBreaker(url, settings));
+    }
+
+    /**
+     * Returns the breaker of the given endpoint without creating it.
+     *
+     * @param endpointUrl
+     * @return the breaker or {@literal null} if no delivery to the endpoint was attempted yet
+     */
+    public PushCircuitBreaker findCircuitBreaker(String endpointUrl) {
+        return endpointUrl == null ? null : breakers.get(endpointUrl);
+    }
+
+    /**
+     * Removes the closed breakers which were not used for the idle timeout.
+     */
+    protected void removeIdleCircuitBreakers() {
+
+        long idleSince = System.currentTimeMillis() - idleTimeoutMillis;
+        int before = breakers.size();
+        for (String endpointUrl : breakers.keySet()) {
+            breakers.computeIfPresent(endpointUrl, (url, breaker) -> breaker.isIdle(idleSince) ? null : breaker);
+        }
+
+        int removed = before - breakers.size();
+        if (removed > 0) {
+            log.debugf("Removed %s idle circuit breakers", removed);
+        }
+    }
+
+    /**
+     * Schedules a probe of the given endpoint for the streams of the given realm, unless one is already scheduled.
+     *
+     * @param realmId
+     * @param endpointUrl
+     * @param delayMillis
+     */
+    public void scheduleProbe(String realmId, String endpointUrl, long delayMillis) {
+
+        if (!pauseStreams || executor == null || executor.isShutdown()) {
+            return;
+        }
+
+        ProbeKey probeKey = new ProbeKey(realmId, endpointUrl);
+        if (!scheduledProbes.add(probeKey)) {
+            return;
+        }
+
+        log.debugf("Scheduled probe of %s in %sms. realm=%s", endpointUrl, Math.max(0, delayMillis), realmId);
+        executor.schedule(() -> probe(probeKey), Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    protected void probe(ProbeKey probeKey) {
+        scheduledProbes.remove(probeKey);
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(probeKey.realmId());
+                if (realm == null) {
+                    return;
+                }
+                session.getContext().setRealm(realm);
+                session.getProvider(SharedSignalsProvider.class).pushDeliveryService().probeEndpoint(probeKey.endpointUrl());
+            });
+        } catch (Exception e) {
+            log.warnf(e, "Error probing endpoint %s. Retrying after the open duration", probeKey.endpointUrl());
+            scheduleProbe(probeKey.realmId(), probeKey.endpointUrl(), settings.openDurationMillis());
+        }
+    }
+
+    public boolean isPauseStreams() {
+        return pauseStreams;
+    }
+
+    public void clear() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        scheduledProbes.clear();
+        breakers.clear();
+    }
+
+    protected record ProbeKey(String realmId, String endpointUrl) {
+    }
+}
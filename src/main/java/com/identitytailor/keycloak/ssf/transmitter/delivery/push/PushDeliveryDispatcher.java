@@ -0,0 +1,364 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery.push;
+
+import com.identitytailor.keycloak.ssf.SharedSignalsProvider;
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Decouples PUSH delivery from the thread that produced the SET.
+ * <p>
+ * Every stream gets its own bounded queue which is drained in order by a virtual thread.
+ * The number of concurrently running HTTP deliveries across all streams is bounded by the configured number of workers.
+ */
+@JBossLog
+public class PushDeliveryDispatcher {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    public static final int DEFAULT_WORKERS = 32;
+
+    public static final PushDeliveryOverflowPolicy DEFAULT_OVERFLOW_POLICY = PushDeliveryOverflowPolicy.SPILL;
+
+    /**
+     * Kept short, since a full queue blocks the request thread which dispatches the SET.
+     */
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 50;
+
+    public static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 10_000;
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    private final int queueCapacity;
+
+    private final PushDeliveryOverflowPolicy overflowPolicy;
+
+    private final long blockTimeoutMillis;
+
+    private final long drainTimeoutMillis;
+
+    private final Semaphore workerPermits;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentMap<String, StreamQueue> streamQueues = new ConcurrentHashMap<>();
+
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    private volatile Consumer<PushDeliveryTask> spillHandler = this::reject;
+
+    private volatile boolean closed;
+
+    public PushDeliveryDispatcher(KeycloakSessionFactory sessionFactory,
+                                  int queueCapacity,
+                                  int workers,
+                                  PushDeliveryOverflowPolicy overflowPolicy,
+                                  long blockTimeoutMillis,
+                                  long drainTimeoutMillis) {
+        this.sessionFactory = sessionFactory;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.workerPermits = new Semaphore(workers);
+        this.executor = createExecutor();
+    }
+
+    protected ExecutorService createExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ssf-push-", 0).factory());
+    }
+
+    /**
+     * Sets the handler that receives SETs which did not fit into a full queue when the {@link PushDeliveryOverflowPolicy#SPILL} policy is used.
+     * The handler runs on the calling thread and must not deliver the SET itself. By default, spilled SETs are rejected.
+     * SETs which are backed by the {@link PushOutboxService} are never handed to the handler, they are left to the outbox retries,
+     * as are SETs which are dropped by the other policies.
+     *
+     * @param spillHandler
+     */
+    public void setSpillHandler(Consumer<PushDeliveryTask> spillHandler) {
+        this.spillHandler = spillHandler;
+    }
+
+    /**
+     * Queues the given SET for asynchronous delivery to the receiver of the stream.
+     *
+     * @param task
+     * @return true if the SET was accepted for delivery, false if it was dropped
+     */
+    public boolean dispatch(PushDeliveryTask task) {
+
+        if (closed) {
+            log.warnf("Push dispatcher is closed. Discarding event %s for stream %s", task.jti(), task.stream().getStreamId());
+            droppedEvents.incrementAndGet();
+            return false;
+        }
+
+        StreamQueue streamQueue = streamQueues.computeIfAbsent(task.stream().getStreamId(), StreamQueue::new);
+        if (!enqueue(streamQueue, task)) {
+            return false;
+        }
+
+        schedule(streamQueue);
+        return true;
+    }
+
+    protected boolean enqueue(StreamQueue streamQueue, PushDeliveryTask task) {
+
+        BlockingQueue<PushDeliveryTask> tasks = streamQueue.tasks;
+        if (tasks.offer(task)) {
+            return true;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK -> {
+                try {
+                    if (tasks.offer(task, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                log.warnf("Push queue for stream %s is full. Discarding event %s", streamQueue.streamId, task.jti());
+                droppedEvents.incrementAndGet();
+                return false;
+            }
+            case DROP_OLDEST -> {
+                while (!tasks.offer(task)) {
+                    PushDeliveryTask dropped = tasks.poll();
+                    if (dropped != null) {
+                        log.warnf("Push queue for stream %s is full. Discarding oldest event %s", streamQueue.streamId, dropped.jti());
+                        droppedEvents.incrementAndGet();
+                    }
+                }
+                return true;
+            }
+            case SPILL -> {
+                if (task.isOutboxBacked()) {
+                    log.debugf("Push queue for stream %s is full. Leaving event %s to the outbox", streamQueue.streamId, task.jti());
+                    return false;
+                }
+                log.debugf("Push queue for stream %s is full. Spilling event %s", streamQueue.streamId, task.jti());
+                spillHandler.accept(task);
+                return false;
+            }
+            default -> throw new IllegalStateException("Unsupported overflow policy: " + overflowPolicy);
+        }
+    }
+
+    protected void schedule(StreamQueue streamQueue) {
+
+        if (!streamQueue.scheduled.compareAndSet(false, true)) {
+            // a worker is already draining the queue
+            return;
+        }
+
+        try {
+            executor.execute(() -> drain(streamQueue));
+        } catch (RejectedExecutionException e) {
+            streamQueue.scheduled.set(false);
+            log.warnf("Could not schedule push delivery for stream %s. pending=%s", streamQueue.streamId, streamQueue.tasks.size());
+        }
+    }
+
+    protected void drain(StreamQueue streamQueue) {
+        try {
+            PushDeliveryTask task;
+            while ((task = streamQueue.tasks.poll()) != null) {
+                workerPermits.acquireUninterruptibly();
+                try {
+                    deliver(task);
+                } catch (Exception e) {
+                    log.errorf(e, "Error delivering event %s via PUSH to stream %s", task.jti(), streamQueue.streamId);
+                } finally {
+                    workerPermits.release();
+                }
+            }
+        } finally {
+            streamQueue.scheduled.set(false);
+        }
+
+        // a task might have been queued after the last poll but before the scheduled flag was reset
+        if (!streamQueue.tasks.isEmpty()) {
+            schedule(streamQueue);
+        }
+    }
+
+    /**
+     * Drops a spilled SET which cannot be retried.
+     *
+     * @param task
+     */
+    public void reject(PushDeliveryTask task) {
+        log.warnf("Push queue for stream %s is full. Rejecting event %s", task.stream().getStreamId(), task.jti());
+        droppedEvents.incrementAndGet();
+    }
+
+    /**
+     * Drops the queue of a deleted stream on this node, together with its undelivered SETs.
+     *
+     * @param streamId
+     */
+    public void removeStream(String streamId) {
+
+        StreamQueue streamQueue = streamQueues.remove(streamId);
+        if (streamQueue == null) {
+            return;
+        }
+
+        int discarded = streamQueue.tasks.size();
+        streamQueue.tasks.clear();
+        log.debugf("Removed push queue of deleted stream %s. discarded=%s", streamId, discarded);
+    }
+
+    /**
+     * Delivers the given SET with a dedicated {@link org.keycloak.models.KeycloakSession}.
+     *
+     * @param task
+     */
+    public void deliver(PushDeliveryTask task) {
+
+        String claimToken = null;
+        if (task.isOutboxBacked()) {
+            // the claim must be committed before the SET is sent, so that the retry scheduler does not hand it out concurrently
+            claimToken = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                PushOutboxService outboxService = session.getProvider(SharedSignalsProvider.class).pushOutboxService();
+                return outboxService == null ? null : outboxService.claim(task);
+            });
+            if (claimToken == null) {
+                log.debugf("Event %s for stream %s is delivered by another task. Skipping", task.jti(), task.stream().getStreamId());
+                return;
+            }
+        }
+
+        String outboxClaimToken = claimToken;
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            SharedSignalsProvider sharedSignals = session.getProvider(SharedSignalsProvider.class);
+            PushOutboxService outboxService = task.isOutboxBacked() ? sharedSignals.pushOutboxService() : null;
+
+            RealmModel realm = session.realms().getRealm(task.realmId());
+            if (realm == null) {
+                log.warnf("Realm %s not found. Discarding event %s for stream %s", task.realmId(), task.jti(), task.stream().getStreamId());
+                if (outboxService != null) {
+                    outboxService.discard(task);
+                }
+                return;
+            }
+            session.getContext().setRealm(realm);
+
+            PushDeliveryService pushDeliveryService = sharedSignals.pushDeliveryService();
+            PushDeliveryService.DeliveryResult result = pushDeliveryService.deliver(task.stream(), task.encodedEvent());
+            if (result == PushDeliveryService.DeliveryResult.DELIVERED) {
+                log.debugf("Delivered event %s via PUSH to stream %s", task.jti(), task.stream().getStreamId());
+            }
+
+            if (outboxService == null) {
+                return;
+            }
+            if (result == PushDeliveryService.DeliveryResult.REJECTED) {
+                // no request was sent, so the rejection does not use up a delivery attempt
+                outboxService.postpone(task, outboxClaimToken, pushDeliveryService.getCircuitBreakerRetryAt(task.stream()));
+            } else {
+                outboxService.onDeliveryAttempt(task, outboxClaimToken, result == PushDeliveryService.DeliveryResult.DELIVERED);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting new SETs and waits up to the configured drain timeout for the queued SETs to be delivered.
+     */
+    public void close() {
+
+        closed = true;
+
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        while (hasPendingDeliveries() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        executor.shutdown();
+        try {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            if (!executor.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        int undelivered = streamQueues.values().stream().mapToInt(streamQueue -> streamQueue.tasks.size()).sum();
+        if (undelivered > 0) {
+            log.warnf("Push dispatcher closed with %s undelivered events", undelivered);
+        } else {
+            log.debug("Push dispatcher closed");
+        }
+        streamQueues.clear();
+    }
+
+    protected boolean hasPendingDeliveries() {
+        for (StreamQueue streamQueue : streamQueues.values()) {
+            if (streamQueue.scheduled.get() || !streamQueue.tasks.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of SETs which were dropped by this dispatcher without being handed to the outbox.
+     *
+     * @return
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    public void registerMetrics(SsfMetrics metrics) {
+        metrics.counter("push.dropped", "PUSH deliveries dropped because the dispatcher was closed or a stream queue was full", this, PushDeliveryDispatcher::getDroppedEvents);
+    }
+
+    /**
+     * Returns the number of SETs waiting for delivery to the given stream.
+     *
+     * @param streamId
+     * @return
+     */
+    public int getPendingDeliveries(String streamId) {
+        StreamQueue streamQueue = streamQueues.get(streamId);
+        return streamQueue == null ? 0 : streamQueue.tasks.size();
+    }
+
+    protected class StreamQueue {
+
+        protected final String streamId;
+
+        protected final BlockingQueue<PushDeliveryTask> tasks = new LinkedBlockingQueue<>(queueCapacity);
+
+        protected final AtomicBoolean scheduled = new AtomicBoolean();
+
+        protected StreamQueue(String streamId) {
+            this.streamId = streamId;
+        }
+    }
+}
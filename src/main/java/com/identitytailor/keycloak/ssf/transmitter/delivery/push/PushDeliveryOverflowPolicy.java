@@ -0,0 +1,26 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery.push;
+
+/**
+ * Controls what the {@link PushDeliveryDispatcher} does when the queue of a stream is full.
+ */
+public enum PushDeliveryOverflowPolicy {
+
+    /**
+     * Blocks the caller until the queue has room again or the configured block timeout elapsed.
+     * The SET is dropped if the timeout elapsed.
+     * <p>
+     * SETs are dispatched on the request thread after the commit, so the request waits up to the block timeout per stream.
+     */
+    BLOCK,
+
+    /**
+     * Drops the oldest queued SET of the stream to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Hands the SET over to the spill handler of the dispatcher instead of queueing it. This is the default, since it never
+     * blocks the request thread.
+     */
+    SPILL
+}
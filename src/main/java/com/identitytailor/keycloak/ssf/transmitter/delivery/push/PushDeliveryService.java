@@ -1,7 +1,12 @@
 package com.identitytailor.keycloak.ssf.transmitter.delivery.push;
 
+import com.identitytailor.keycloak.ssf.SharedSignalsProvider;
 import com.identitytailor.keycloak.ssf.Ssf;
+import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
+import com.identitytailor.keycloak.ssf.transmitter.event.SecurityEventTokenMapper;
 import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfiguration;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamService;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamStatus;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
 import lombok.extern.jbosslog.JBossLog;
@@ -11,16 +16,46 @@ import org.keycloak.http.simple.SimpleHttp;
 import org.keycloak.http.simple.SimpleHttpRequest;
 import org.keycloak.models.KeycloakSession;
 
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Service for delivering events using the PUSH delivery method.
  */
 @JBossLog
 public class PushDeliveryService {
 
+    public static final String CIRCUIT_BREAKER_PAUSE_REASON = "Receiver endpoint unavailable";
+
+    /**
+     * Outcome of a delivery attempt.
+     */
+    public enum DeliveryResult {
+
+        DELIVERED,
+
+        FAILED,
+
+        /**
+         * The circuit breaker of the receiver endpoint did not permit the delivery, no request was sent.
+         */
+        REJECTED
+    }
+
     private final KeycloakSession session;
 
+    private final PushHttpTransport pushHttpTransport;
+
+    private final PushCircuitBreakerRegistry circuitBreakers;
+
     public PushDeliveryService(KeycloakSession session) {
+        this(session, null, null);
+    }
+
+    public PushDeliveryService(KeycloakSession session, PushHttpTransport pushHttpTransport, PushCircuitBreakerRegistry circuitBreakers) {
         this.session = session;
+        this.pushHttpTransport = pushHttpTransport;
+        this.circuitBreakers = circuitBreakers;
     }
 
     /**
@@ -31,9 +66,20 @@ public class PushDeliveryService {
      * @return true if the event was delivered successfully, false otherwise
      */
     public boolean deliverEvent(StreamConfiguration stream, String event) {
+        return deliver(stream, event) == DeliveryResult.DELIVERED;
+    }
+
+    /**
+     * Delivers an event to a receiver endpoint and tells failed deliveries apart from deliveries the circuit breaker rejected.
+     *
+     * @param stream The stream configuration
+     * @param event The event to deliver
+     * @return the outcome of the delivery
+     */
+    public DeliveryResult deliver(StreamConfiguration stream, String event) {
         if (stream == null || stream.getDelivery() == null) {
             log.warn("Invalid stream configuration for event delivery");
-            return false;
+            return DeliveryResult.FAILED;
         }
         
         String endpointUrl = stream.getDelivery().getEndpointUrl();
@@ -41,10 +87,187 @@ public class PushDeliveryService {
         
         if (endpointUrl == null || authorizationHeader == null) {
             log.warn("Missing endpoint URL or authorization header for stream " + stream.getStreamId());
-            return false;
+            return DeliveryResult.FAILED;
         }
         
-        return deliverEvent(endpointUrl, authorizationHeader, event);
+        PushCircuitBreaker circuitBreaker = circuitBreakers == null ? null : circuitBreakers.getCircuitBreaker(endpointUrl);
+        if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+            log.debugf("Circuit breaker for %s is open. Skipping delivery to stream %s", endpointUrl, stream.getStreamId());
+            return DeliveryResult.REJECTED;
+        }
+
+        long start = System.nanoTime();
+        boolean delivered;
+        if (pushHttpTransport != null) {
+            PushHttpTransport.Timeouts timeouts = PushHttpTransport.getTimeouts(stream.getDelivery().getAdditionalParameters());
+            delivered = deliverEvent(endpointUrl, authorizationHeader, event, timeouts);
+        } else {
+            delivered = deliverEvent(endpointUrl, authorizationHeader, event);
+        }
+
+        if (circuitBreaker != null) {
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            PushCircuitBreaker.State transition = circuitBreaker.recordOutcome(delivered, latencyMillis);
+            if (transition != null) {
+                onCircuitBreakerTransition(circuitBreaker, transition);
+            }
+        }
+
+        return delivered ? DeliveryResult.DELIVERED : DeliveryResult.FAILED;
+    }
+
+    /**
+     * Returns the time at which the circuit breaker of the endpoint of the given stream permits the next delivery.
+     *
+     * @param stream
+     * @return time in millis
+     */
+    public long getCircuitBreakerRetryAt(StreamConfiguration stream) {
+        PushCircuitBreaker circuitBreaker = circuitBreakers == null || stream.getDelivery() == null ? null : circuitBreakers.findCircuitBreaker(stream.getDelivery().getEndpointUrl());
+        return circuitBreaker == null ? System.currentTimeMillis() : circuitBreaker.getPermittedAt();
+    }
+
+    /**
+     * Pauses the streams of the current realm which deliver to the endpoint of an opened breaker, and enables them again once the breaker closed.
+     * Only streams which were paused by the breaker are enabled again. Paused streams receive no events which could probe the endpoint,
+     * so a probe is scheduled for every opening, see {@link #probeEndpoint(String)}.
+     *
+     * @param circuitBreaker
+     * @param state
+     */
+    protected void onCircuitBreakerTransition(PushCircuitBreaker circuitBreaker, PushCircuitBreaker.State state) {
+
+        log.infof("Circuit breaker for %s changed to %s", circuitBreaker.getEndpointUrl(), state);
+
+        if (!circuitBreakers.isPauseStreams() || session.getContext().getRealm() == null) {
+            return;
+        }
+
+        String realmId = session.getContext().getRealm().getId();
+        updatePausedStreams(circuitBreaker, state);
+
+        if (state == PushCircuitBreaker.State.OPEN) {
+            circuitBreakers.scheduleProbe(realmId, circuitBreaker.getEndpointUrl(), circuitBreaker.getPermittedAt() - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Pauses the enabled streams of the current realm which deliver to the endpoint of the given breaker if it opened,
+     * or enables the streams paused by the breaker if it closed.
+     *
+     * @param circuitBreaker
+     * @param state
+     */
+    protected void updatePausedStreams(PushCircuitBreaker circuitBreaker, PushCircuitBreaker.State state) {
+
+        String realmId = session.getContext().getRealm().getId();
+        StreamService streamService = session.getProvider(SharedSignalsProvider.class).streamService();
+        for (StreamConfiguration stream : streamService.getAllStreams()) {
+            if (!realmId.equals(stream.getRealmId())) {
+                continue;
+            }
+            if (stream.getDelivery() == null || !circuitBreaker.getEndpointUrl().equals(stream.getDelivery().getEndpointUrl())) {
+                continue;
+            }
+
+            StreamStatus streamStatus = new StreamStatus();
+            streamStatus.setStreamId(stream.getStreamId());
+            if (state == PushCircuitBreaker.State.OPEN && "enabled".equals(stream.getStatus())) {
+                streamStatus.setStatus("paused");
+                streamStatus.setReason(CIRCUIT_BREAKER_PAUSE_REASON);
+            } else if (state == PushCircuitBreaker.State.CLOSED && "paused".equals(stream.getStatus())
+                       && Objects.equals(CIRCUIT_BREAKER_PAUSE_REASON, stream.getStatusReason())) {
+                streamStatus.setStatus("enabled");
+            } else {
+                continue;
+            }
+
+            log.infof("Changing status of stream %s to %s. endpoint=%s", stream.getStreamId(), streamStatus.getStatus(), circuitBreaker.getEndpointUrl());
+            streamService.updateStreamStatus(streamStatus);
+        }
+    }
+
+    /**
+     * Sends a verification event to a stream of the current realm which the breaker of the given endpoint paused.
+     * The outcome closes the breaker and enables the streams again, or opens it again which schedules the next probe.
+     *
+     * @param endpointUrl
+     */
+    public void probeEndpoint(String endpointUrl) {
+
+        PushCircuitBreaker circuitBreaker = circuitBreakers == null ? null : circuitBreakers.findCircuitBreaker(endpointUrl);
+        if (circuitBreaker == null) {
+            return;
+        }
+
+        if (circuitBreaker.getState() == PushCircuitBreaker.State.CLOSED) {
+            // a delivery of another realm closed the breaker, which only enabled the streams of that realm
+            updatePausedStreams(circuitBreaker, PushCircuitBreaker.State.CLOSED);
+            return;
+        }
+
+        String realmId = session.getContext().getRealm().getId();
+        SharedSignalsProvider sharedSignals = session.getProvider(SharedSignalsProvider.class);
+        StreamConfiguration pausedStream = sharedSignals.streamService().getAllStreams().stream()
+                .filter(stream -> realmId.equals(stream.getRealmId()))
+                .filter(stream -> stream.getDelivery() != null && endpointUrl.equals(stream.getDelivery().getEndpointUrl()))
+                .filter(stream -> "paused".equals(stream.getStatus()) && Objects.equals(CIRCUIT_BREAKER_PAUSE_REASON, stream.getStatusReason()))
+                .findFirst()
+                .orElse(null);
+        if (pausedStream == null) {
+            log.debugf("No stream paused by the circuit breaker for %s. Skipping probe", endpointUrl);
+            return;
+        }
+
+        SecurityEventToken probeEvent = new SecurityEventTokenMapper(sharedSignals.transmitterService()).generateVerificationEvent(pausedStream, null);
+        String encodedProbeEvent = sharedSignals.securityEventTokenEncoder().encode(probeEvent);
+
+        log.debugf("Probing endpoint %s with a verification event for stream %s", endpointUrl, pausedStream.getStreamId());
+        if (deliver(pausedStream, encodedProbeEvent) == DeliveryResult.REJECTED) {
+            // another delivery is probing the endpoint, check again once its outcome is known
+            circuitBreakers.scheduleProbe(realmId, endpointUrl, circuitBreaker.getPermittedAt() - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Returns the breaker state of the endpoint of the given stream.
+     *
+     * @param stream
+     * @return the breaker state, or {@literal null} if there is no breaker for the stream endpoint
+     */
+    public PushCircuitBreaker.Snapshot getCircuitBreakerState(StreamConfiguration stream) {
+
+        if (circuitBreakers == null || stream.getDelivery() == null) {
+            return null;
+        }
+
+        PushCircuitBreaker circuitBreaker = circuitBreakers.findCircuitBreaker(stream.getDelivery().getEndpointUrl());
+        return circuitBreaker == null ? null : circuitBreaker.snapshot();
+    }
+
+    /**
+     * Delivers an event to a receiver endpoint with the pooled push transport.
+     *
+     * @param endpointUrl The endpoint URL to deliver the event to
+     * @param authorizationHeader The authorization header to use
+     * @param eventToken The event to deliver
+     * @param timeouts The timeouts of the stream
+     * @return true if the event was delivered successfully, false otherwise
+     */
+    protected boolean deliverEvent(String endpointUrl, String authorizationHeader, String eventToken, PushHttpTransport.Timeouts timeouts) {
+        try {
+            int status = pushHttpTransport.post(endpointUrl, authorizationHeader, eventToken, timeouts);
+
+            boolean success = isSuccess(status);
+            if (!success) {
+                log.warn("Failed to deliver event to " + endpointUrl + ": " + status);
+            }
+
+            return success;
+        } catch (Exception e) {
+            log.error("Error delivering event to " + endpointUrl, e);
+            return false;
+        }
     }
 
     /**
@@ -63,8 +286,7 @@ public class PushDeliveryService {
                     .entity(new StringEntity(eventToken))
                     .asResponse()) {
 
-                boolean success = response.getStatus() == Response.Status.OK.getStatusCode() ||
-                                  response.getStatus() == Response.Status.ACCEPTED.getStatusCode();
+                boolean success = isSuccess(response.getStatus());
 
                 if (!success) {
                     log.warn("Failed to deliver event to " + endpointUrl + ": " + response.getStatus());
@@ -78,6 +300,11 @@ public class PushDeliveryService {
         }
     }
 
+    protected boolean isSuccess(int status) {
+        return status == Response.Status.OK.getStatusCode() ||
+               status == Response.Status.ACCEPTED.getStatusCode();
+    }
+
     protected SimpleHttpRequest createSimpleHttp(String endpointUrl, String authorizationHeader) {
         RequestConfig requestConfig = RequestConfig.custom()
                 .setConnectionRequestTimeout(2000)
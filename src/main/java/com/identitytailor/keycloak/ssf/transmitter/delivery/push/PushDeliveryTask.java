@@ -0,0 +1,28 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery.push;
+
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfiguration;
+
+/**
+ * An encoded SET waiting to be pushed to the receiver of a stream.
+ *
+ * @param realmId      The id of the realm the stream belongs to
+ * @param stream       The target stream
+ * @param jti          The jti of the SET
+ * @param encodedEvent The signed SET
+ * @param outboxId     The id of the durable outbox entry, or {@literal null} if the SET is not backed by the outbox
+ * @param claimToken   The claim token of the outbox entry when the task was created, or {@literal null} if the entry was not claimed
+ */
+public record PushDeliveryTask(String realmId, StreamConfiguration stream, String jti, String encodedEvent, String outboxId, String claimToken) {
+
+    public PushDeliveryTask(String realmId, StreamConfiguration stream, String jti, String encodedEvent) {
+        this(realmId, stream, jti, encodedEvent, null, null);
+    }
+
+    public PushDeliveryTask(String realmId, StreamConfiguration stream, String jti, String encodedEvent, String outboxId) {
+        this(realmId, stream, jti, encodedEvent, outboxId, null);
+    }
+
+    public boolean isOutboxBacked() {
+        return outboxId != null;
+    }
+}
@@ -0,0 +1,340 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery.push;
+
+import com.identitytailor.keycloak.ssf.Ssf;
+import lombok.extern.jbosslog.JBossLog;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.keycloak.connections.httpclient.ProxyMappings;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.truststore.TruststoreProvider;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP transport for PUSH delivery with a dedicated connection pool per receiver origin.
+ * <p>
+ * Connections are kept alive between deliveries and HTTP/2 is negotiated via ALPN where the receiver supports it,
+ * so that deliveries to the same receiver are multiplexed over a single connection. All clients share one
+ * {@link SSLContext} built from Keycloak's truststore to allow TLS session resumption, and use the proxy which
+ * the Keycloak HTTP client proxy mappings configure for the receiver host.
+ * <p>
+ * The JDK client does not expose a connection limit, so the transport bounds the number of concurrent requests per
+ * origin instead. With HTTP/1.1 this also bounds the number of open connections, with HTTP/2 it bounds the number of
+ * concurrent streams on the shared connection. Clients of origins without deliveries for the idle timeout are closed.
+ */
+@JBossLog
+public class PushHttpTransport {
+
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS_PER_ORIGIN = 16;
+
+    public static final long DEFAULT_CLIENT_IDLE_TIMEOUT_MILLIS = 300_000;
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 3000;
+
+    /**
+     * Stream delivery parameter to override the connect timeout in milliseconds.
+     */
+    public static final String CONNECT_TIMEOUT_PARAMETER = "connect_timeout_ms";
+
+    /**
+     * Stream delivery parameter to override the request timeout in milliseconds.
+     */
+    public static final String REQUEST_TIMEOUT_PARAMETER = "request_timeout_ms";
+
+    private final int maxConcurrentRequestsPerOrigin;
+
+    private final boolean http2Enabled;
+
+    private final long clientIdleTimeoutMillis;
+
+    private final SSLContext sslContext;
+
+    private final ProxyMappings proxyMappings;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentMap<OriginKey, OriginClient> clients = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextIdleSweepAt = new AtomicLong();
+
+    /**
+     * @param maxConcurrentRequestsPerOrigin Maximum number of in-flight requests per receiver origin
+     * @param http2Enabled                   Negotiate HTTP/2 with receivers
+     * @param clientIdleTimeoutMillis        Time after which the client of an origin without deliveries is closed
+     * @param sslContext                     The TLS context shared by all clients, see {@link #createSslContext(KeycloakSession)}
+     * @param proxyMappings                  The Keycloak HTTP client proxy mappings, or {@literal null} to connect directly
+     */
+    public PushHttpTransport(int maxConcurrentRequestsPerOrigin, boolean http2Enabled, long clientIdleTimeoutMillis,
+                             SSLContext sslContext, ProxyMappings proxyMappings) {
+        this.maxConcurrentRequestsPerOrigin = maxConcurrentRequestsPerOrigin;
+        this.http2Enabled = http2Enabled;
+        this.clientIdleTimeoutMillis = clientIdleTimeoutMillis;
+        this.sslContext = sslContext;
+        this.proxyMappings = proxyMappings;
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ssf-push-http-", 0).factory());
+    }
+
+    /**
+     * Creates the TLS context for push deliveries which trusts the certificates of the Keycloak truststore.
+     * Falls back to the JVM default context if no truststore is configured.
+     *
+     * @param session
+     * @return
+     */
+    public static SSLContext createSslContext(KeycloakSession session) {
+        try {
+            TruststoreProvider truststoreProvider = session.getProvider(TruststoreProvider.class);
+            KeyStore truststore = truststoreProvider == null ? null : truststoreProvider.getTruststore();
+            if (truststore == null) {
+                return SSLContext.getDefault();
+            }
+
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(truststore);
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+            return sslContext;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not create SSL context for push delivery", e);
+        }
+    }
+
+    /**
+     * Posts the given SET to the receiver endpoint.
+     *
+     * @param endpointUrl         The receiver endpoint
+     * @param authorizationHeader The authorization header
+     * @param eventToken          The encoded SET
+     * @param timeouts            The stream specific timeouts
+     * @return the HTTP status code of the receiver response
+     * @throws IOException if the SET could not be sent
+     */
+    public int post(String endpointUrl, String authorizationHeader, String eventToken, Timeouts timeouts) throws IOException {
+
+        URI endpoint = URI.create(endpointUrl);
+
+        HttpRequest request = HttpRequest.newBuilder(endpoint)
+                .timeout(timeouts.requestTimeout())
+                .header("Authorization", authorizationHeader)
+                .header("Content-Type", Ssf.APPLICATION_SECEVENT_JWT_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofString(eventToken))
+                .build();
+
+        try {
+            OriginClient client = acquireClient(endpoint, timeouts);
+            try {
+                HttpResponse<Void> response = client.httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                return response.statusCode();
+            } finally {
+                client.lastUsedAt = System.currentTimeMillis();
+                client.permits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while delivering event to " + endpointUrl, e);
+        }
+    }
+
+    /**
+     * Acquires a request permit on the client of the origin of the given endpoint. Retries with a new client if the
+     * client was closed as idle in the meantime.
+     *
+     * @param endpoint
+     * @param timeouts
+     * @return the client, the caller must release the permit after the request
+     * @throws IOException if no permit could be acquired within the request timeout
+     * @throws InterruptedException
+     */
+    protected OriginClient acquireClient(URI endpoint, Timeouts timeouts) throws IOException, InterruptedException {
+
+        evictIdleClients();
+
+        OriginKey key = new OriginKey(endpoint.getScheme(), endpoint.getHost(), endpoint.getPort(), timeouts.connectTimeout());
+        while (true) {
+            OriginClient client = clients.computeIfAbsent(key, this::createClient);
+            if (!client.permits.tryAcquire(timeouts.requestTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new IOException("Too many concurrent requests to " + client.origin);
+            }
+            if (!client.closed) {
+                return client;
+            }
+            client.permits.release();
+        }
+    }
+
+    /**
+     * Closes the clients which had no request for the idle timeout. Runs at most once per half idle timeout.
+     * A client is only closed if all its permits could be taken, so no request is in flight.
+     */
+    protected void evictIdleClients() {
+
+        long now = System.currentTimeMillis();
+        long sweepAt = nextIdleSweepAt.get();
+        if (now < sweepAt || !nextIdleSweepAt.compareAndSet(sweepAt, now + clientIdleTimeoutMillis / 2)) {
+            return;
+        }
+
+        clients.forEach((key, client) -> {
+            if (now - client.lastUsedAt < clientIdleTimeoutMillis || !client.permits.tryAcquire(maxConcurrentRequestsPerOrigin)) {
+                return;
+            }
+            clients.remove(key, client);
+            client.closed = true;
+            // waiting requests see the closed flag and retry with a new client
+            client.permits.release(maxConcurrentRequestsPerOrigin);
+            client.httpClient.shutdown();
+            log.debugf("Closed idle push HTTP client. origin=%s", client.origin);
+        });
+    }
+
+    protected OriginClient createClient(OriginKey key) {
+
+        // HTTP/2 is only negotiated via ALPN, plain http origins would get an h2c upgrade request
+        boolean http2 = http2Enabled && "https".equals(key.scheme());
+        log.debugf("Creating push HTTP client. origin=%s http2=%s maxConcurrentRequests=%s", key.origin(), http2, maxConcurrentRequestsPerOrigin);
+
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(key.connectTimeout())
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .sslContext(sslContext)
+                .executor(executor);
+        configureProxy(builder, key);
+
+        return new OriginClient(key.origin(), builder.build(), new Semaphore(maxConcurrentRequestsPerOrigin));
+    }
+
+    /**
+     * Applies the proxy of the Keycloak HTTP client proxy mappings which matches the host of the given origin.
+     * <p>
+     * The proxy credentials are only returned for authentication requests of the proxy itself, never for the receiver endpoint.
+     *
+     * @param builder
+     * @param key
+     */
+    protected void configureProxy(HttpClient.Builder builder, OriginKey key) {
+
+        ProxyMappings.ProxyMapping proxyMapping = proxyMappings == null ? null : proxyMappings.getProxyFor(key.host());
+        HttpHost proxyHost = proxyMapping == null ? null : proxyMapping.getProxyHost();
+        if (proxyHost == null) {
+            return;
+        }
+
+        String proxyHostName = proxyHost.getHostName();
+        int proxyPort = proxyHost.getPort() != -1 ? proxyHost.getPort() : "https".equals(proxyHost.getSchemeName()) ? 443 : 80;
+        builder.proxy(ProxySelector.of(InetSocketAddress.createUnresolved(proxyHostName, proxyPort)));
+
+        UsernamePasswordCredentials credentials = proxyMapping.getProxyCredentials();
+        if (credentials != null) {
+            PasswordAuthentication passwordAuthentication = new PasswordAuthentication(credentials.getUserName(), credentials.getPassword().toCharArray());
+            builder.authenticator(new Authenticator() {
+                @Override
+                protected PasswordAuthentication getPasswordAuthentication() {
+                    boolean proxyChallenge = getRequestorType() == RequestorType.PROXY
+                                             && proxyHostName.equalsIgnoreCase(getRequestingHost())
+                                             && getRequestingPort() == proxyPort;
+                    return proxyChallenge ? passwordAuthentication : null;
+                }
+            });
+        }
+
+        log.debugf("Using proxy for push HTTP client. origin=%s proxy=%s", key.origin(), proxyHost);
+    }
+
+    /**
+     * Reads the timeouts for the given stream from its additional delivery parameters.
+     *
+     * @param additionalParameters
+     * @return
+     */
+    public static Timeouts getTimeouts(Map<String, Object> additionalParameters) {
+        long connectTimeout = getMillis(additionalParameters, CONNECT_TIMEOUT_PARAMETER, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+        long requestTimeout = getMillis(additionalParameters, REQUEST_TIMEOUT_PARAMETER, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        return new Timeouts(Duration.ofMillis(connectTimeout), Duration.ofMillis(requestTimeout));
+    }
+
+    protected static long getMillis(Map<String, Object> additionalParameters, String name, long defaultValue) {
+
+        if (additionalParameters == null) {
+            return defaultValue;
+        }
+
+        Object value = additionalParameters.get(name);
+        if (value instanceof Number number) {
+            return number.longValue();
+        }
+        if (value instanceof String string && !string.isBlank()) {
+            try {
+                return Long.parseLong(string.trim());
+            } catch (NumberFormatException e) {
+                log.warnf("Ignoring invalid push delivery parameter %s=%s", name, string);
+            }
+        }
+        return defaultValue;
+    }
+
+    public void close() {
+        clients.values().forEach(client -> client.httpClient.close());
+        clients.clear();
+        executor.shutdown();
+    }
+
+    /**
+     * Timeouts for a single push delivery.
+     *
+     * @param connectTimeout
+     * @param requestTimeout
+     */
+    public record Timeouts(Duration connectTimeout, Duration requestTimeout) {
+    }
+
+    protected record OriginKey(String scheme, String host, int port, Duration connectTimeout) {
+
+        String origin() {
+            return scheme + "://" + host + (port == -1 ? "" : ":" + port);
+        }
+    }
+
+    protected static class OriginClient {
+
+        private final String origin;
+
+        private final HttpClient httpClient;
+
+        private final Semaphore permits;
+
+        private volatile long lastUsedAt = System.currentTimeMillis();
+
+        private volatile boolean closed;
+
+        OriginClient(String origin, HttpClient httpClient, Semaphore permits) {
+            this.origin = origin;
+            this.httpClient = httpClient;
+            this.permits = permits;
+        }
+    }
+}
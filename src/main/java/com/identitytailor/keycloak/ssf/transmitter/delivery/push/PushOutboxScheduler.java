@@ -0,0 +1,114 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery.push;
+
+import com.identitytailor.keycloak.ssf.SharedSignalsProvider;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically claims due SETs from the {@link PushOutboxService} and hands them over to the {@link PushDeliveryDispatcher}.
+ * <p>
+ * Due SETs are claimed in batches in a single transaction, so retries do not need a thread or timer per SET
+ * and SETs recorded before a restart are picked up again. SETs which finally failed are removed after the failed retention.
+ */
+@JBossLog
+public class PushOutboxScheduler {
+
+    public static final long DEFAULT_POLL_INTERVAL_MILLIS = 5000;
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    public static final long DEFAULT_PURGE_INTERVAL_MILLIS = 900_000;
+
+    public static final long DEFAULT_FAILED_RETENTION_MILLIS = 604_800_000;
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    private final PushDeliveryDispatcher dispatcher;
+
+    private final long pollIntervalMillis;
+
+    private final int batchSize;
+
+    private final long purgeIntervalMillis;
+
+    private final long failedRetentionMillis;
+
+    private ScheduledExecutorService executor;
+
+    public PushOutboxScheduler(KeycloakSessionFactory sessionFactory, PushDeliveryDispatcher dispatcher, long pollIntervalMillis, int batchSize,
+                               long purgeIntervalMillis, long failedRetentionMillis) {
+        this.sessionFactory = sessionFactory;
+        this.dispatcher = dispatcher;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.batchSize = batchSize;
+        this.purgeIntervalMillis = purgeIntervalMillis;
+        this.failedRetentionMillis = failedRetentionMillis;
+    }
+
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("ssf-push-outbox").factory());
+        executor.scheduleWithFixedDelay(this::run, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        if (purgeIntervalMillis > 0) {
+            executor.scheduleWithFixedDelay(this::purgeFailedDeliveries, purgeIntervalMillis, purgeIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        log.debugf("Started push outbox scheduler. interval=%sms batchSize=%s purgeInterval=%sms failedRetention=%sms",
+                pollIntervalMillis, batchSize, purgeIntervalMillis, failedRetentionMillis);
+    }
+
+    protected void run() {
+        try {
+            List<PushDeliveryTask> tasks;
+            do {
+                tasks = claimDueDeliveries();
+                for (PushDeliveryTask task : tasks) {
+                    dispatcher.dispatch(task);
+                }
+                if (!tasks.isEmpty()) {
+                    log.debugf("Dispatched %s due push deliveries from outbox", tasks.size());
+                }
+            } while (tasks.size() == batchSize && !Thread.currentThread().isInterrupted());
+        } catch (Exception e) {
+            log.warn("Error processing push outbox", e);
+        }
+    }
+
+    protected List<PushDeliveryTask> claimDueDeliveries() {
+        // the claim must be committed before the SETs are dispatched to avoid duplicate deliveries
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            PushOutboxService outboxService = session.getProvider(SharedSignalsProvider.class).pushOutboxService();
+            return outboxService == null ? List.of() : outboxService.claimDueDeliveries(batchSize);
+        });
+    }
+
+    protected void purgeFailedDeliveries() {
+        try {
+            int purged;
+            int total = 0;
+            do {
+                purged = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                    PushOutboxService outboxService = session.getProvider(SharedSignalsProvider.class).pushOutboxService();
+                    return outboxService == null ? 0 : outboxService.purgeFailedDeliveries(failedRetentionMillis, batchSize);
+                });
+                total += purged;
+            } while (purged == batchSize && !Thread.currentThread().isInterrupted());
+            if (total > 0) {
+                log.debugf("Purged %s failed push deliveries from outbox", total);
+            }
+        } catch (Exception e) {
+            log.warn("Error purging failed push deliveries", e);
+        }
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery.push;
+
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfStreamStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.jpa.JpaPushOutboxStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.jpa.SsfPushOutboxEntity;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfiguration;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable outbox for PUSH deliveries.
+ * <p>
+ * SETs are recorded in the transaction of the Keycloak event that produced them and only removed after the receiver accepted them.
+ * SETs which could not be delivered are retried by the {@link PushOutboxScheduler} according to the {@link PushRetryPolicy}.
+ */
+@JBossLog
+public class PushOutboxService {
+
+    public static final long DEFAULT_CLAIM_TIMEOUT_MILLIS = 60_000;
+
+    private final JpaPushOutboxStore outboxStore;
+
+    private final SsfStreamStore streamStore;
+
+    private final PushRetryPolicy retryPolicy;
+
+    private final long claimTimeoutMillis;
+
+    public PushOutboxService(JpaPushOutboxStore outboxStore, SsfStreamStore streamStore, PushRetryPolicy retryPolicy, long claimTimeoutMillis) {
+        this.outboxStore = outboxStore;
+        this.streamStore = streamStore;
+        this.retryPolicy = retryPolicy;
+        this.claimTimeoutMillis = claimTimeoutMillis;
+    }
+
+    /**
+     * Records a SET for delivery to the given stream in the current transaction.
+     * The SET becomes visible to the retry scheduler once the claim timeout elapsed without a successful delivery.
+     *
+     * @param realmId
+     * @param stream
+     * @param jti
+     * @param encodedEvent
+     * @return the id of the outbox entry
+     */
+    public String add(String realmId, StreamConfiguration stream, String jti, String encodedEvent) {
+        return outboxStore.add(realmId, stream.getStreamId(), jti, encodedEvent, System.currentTimeMillis() + claimTimeoutMillis);
+    }
+
+    /**
+     * Records a SET which is due for delivery right away.
+     *
+     * @param realmId
+     * @param stream
+     * @param jti
+     * @param encodedEvent
+     * @return the id of the outbox entry
+     */
+    public String addDue(String realmId, StreamConfiguration stream, String jti, String encodedEvent) {
+        return outboxStore.add(realmId, stream.getStreamId(), jti, encodedEvent, System.currentTimeMillis());
+    }
+
+    /**
+     * Claims the outbox entry of a dequeued task right before its delivery, so that the retry scheduler does not hand it out
+     * again while the task is being delivered.
+     *
+     * @param task
+     * @return the claim token for recording the outcome, or {@literal null} if the entry is owned by another delivery or was
+     * completed already, in which case the task must not be delivered
+     */
+    public String claim(PushDeliveryTask task) {
+        return outboxStore.claim(task.outboxId(), task.claimToken(), System.currentTimeMillis() + claimTimeoutMillis);
+    }
+
+    /**
+     * Records the outcome of a delivery attempt of an outbox backed task.
+     * <p>
+     * A delivered SET is removed even if its claim was lost in the meantime, since the receiver has it already.
+     * A failed attempt is only recorded while the claim is still held.
+     *
+     * @param task
+     * @param claimToken the claim token returned by {@link #claim(PushDeliveryTask)}
+     * @param delivered
+     */
+    public void onDeliveryAttempt(PushDeliveryTask task, String claimToken, boolean delivered) {
+
+        if (delivered) {
+            outboxStore.remove(task.outboxId());
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int attempts = outboxStore.recordFailedAttempt(task.outboxId(), claimToken, retryPolicy.maxAttempts(), failedAttempts -> retryPolicy.nextAttemptAt(failedAttempts, now), "Delivery failed");
+        if (attempts >= retryPolicy.maxAttempts()) {
+            log.warnf("Giving up delivery of event %s to stream %s after %s attempts", task.jti(), task.stream().getStreamId(), attempts);
+        } else if (attempts > 0) {
+            log.debugf("Scheduled retry of event %s to stream %s. attempts=%s", task.jti(), task.stream().getStreamId(), attempts);
+        } else {
+            log.debugf("Outbox entry of event %s for stream %s is no longer claimed by this delivery", task.jti(), task.stream().getStreamId());
+        }
+    }
+
+    /**
+     * Releases the claim of a task which the circuit breaker of its endpoint rejected, without counting a delivery attempt.
+     *
+     * @param task
+     * @param claimToken    the claim token returned by {@link #claim(PushDeliveryTask)}
+     * @param nextAttemptAt time in millis at which the breaker permits deliveries again
+     */
+    public void postpone(PushDeliveryTask task, String claimToken, long nextAttemptAt) {
+        outboxStore.postpone(task.outboxId(), claimToken, nextAttemptAt);
+    }
+
+    /**
+     * Removes the outbox entry of a task that cannot be delivered anymore.
+     *
+     * @param task
+     */
+    public void discard(PushDeliveryTask task) {
+        outboxStore.remove(task.outboxId());
+    }
+
+    /**
+     * Removes the outbox entries of a deleted stream.
+     *
+     * @param streamId
+     * @return the number of removed entries
+     */
+    public int removeStream(String streamId) {
+        return outboxStore.removeStream(streamId);
+    }
+
+    /**
+     * Claims the SETs which are due for another delivery attempt, oldest deadline first.
+     *
+     * @param maxResults
+     * @return the claimed deliveries
+     */
+    public List<PushDeliveryTask> claimDueDeliveries(int maxResults) {
+
+        long now = System.currentTimeMillis();
+        List<SsfPushOutboxEntity> entries = outboxStore.claimDue(now, now + claimTimeoutMillis, maxResults);
+
+        List<PushDeliveryTask> tasks = new ArrayList<>(entries.size());
+        for (SsfPushOutboxEntity entry : entries) {
+            StreamConfiguration stream = streamStore.getStream(entry.getRealmId(), entry.getStreamId());
+            if (stream == null) {
+                // entries of deleted streams are removed together with the stream, so this entry can never be delivered
+                log.warnf("Stream %s not found. Discarding event %s", entry.getStreamId(), entry.getEventId());
+                outboxStore.remove(entry.getId());
+                continue;
+            }
+            tasks.add(new PushDeliveryTask(entry.getRealmId(), stream, entry.getEventId(), entry.getEncodedEvent(), entry.getId(), entry.getClaimToken()));
+        }
+        return tasks;
+    }
+
+    /**
+     * Removes failed entries which are older than the given retention.
+     *
+     * @param retentionMillis
+     * @param batchSize
+     * @return the number of removed entries
+     */
+    public int purgeFailedDeliveries(long retentionMillis, int batchSize) {
+        return outboxStore.purgeFailed(System.currentTimeMillis() - retentionMillis, batchSize);
+    }
+}
@@ -0,0 +1,34 @@
+package com.identitytailor.keycloak.ssf.transmitter.delivery.push;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter for failed PUSH deliveries.
+ *
+ * @param maxAttempts          Number of attempts after which a SET is given up
+ * @param initialBackoffMillis Delay before the first retry
+ * @param maxBackoffMillis     Upper bound for the delay between two attempts
+ */
+public record PushRetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 300_000;
+
+    /**
+     * Computes the time of the next attempt after the given number of failed attempts.
+     * Half of the delay is randomized, so that SETs which failed together are not retried together.
+     *
+     * @param failedAttempts
+     * @param now
+     * @return the time of the next attempt in millis
+     */
+    public long nextAttemptAt(int failedAttempts, long now) {
+        int exponent = Math.min(Math.max(failedAttempts - 1, 0), 30);
+        long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << exponent);
+        long half = Math.max(backoff / 2, 1);
+        return now + half + ThreadLocalRandom.current().nextLong(half);
+    }
+}
@@ -1,18 +1,28 @@
 package com.identitytailor.keycloak.ssf.transmitter.event;
 
 import com.identitytailor.keycloak.ssf.Ssf;
+import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
 import org.keycloak.Token;
 import org.keycloak.crypto.SignatureProvider;
 import org.keycloak.crypto.SignatureSignerContext;
 import org.keycloak.jose.jws.JWSBuilder;
 import org.keycloak.models.KeycloakSession;
 
+import java.util.Arrays;
+
 public class SecurityEventTokenEncoder {
 
     private final KeycloakSession session;
 
+    private final SecurityEventTokenEncodingCache encodingCache;
+
     public SecurityEventTokenEncoder(KeycloakSession session) {
+        this(session, null);
+    }
+
+    public SecurityEventTokenEncoder(KeycloakSession session, SecurityEventTokenEncodingCache encodingCache) {
         this.session = session;
+        this.encodingCache = encodingCache;
     }
 
     public String encode(Token token) {
@@ -23,10 +33,38 @@ public class SecurityEventTokenEncoder {
         SignatureProvider signatureProvider = session.getProvider(SignatureProvider.class, signatureAlgorithm);
         SignatureSignerContext signer = signatureProvider.signer();
 
-        String encodedToken = newJwsBuilder().jsonContent(token).sign(signer);
+        // SETs encoded outside a realm context, e.g. by background jobs without a realm, are not cached
+        if (encodingCache == null || !(token instanceof SecurityEventToken securityEventToken) || securityEventToken.getJti() == null
+            || session.getContext().getRealm() == null) {
+            return sign(token, signer);
+        }
+
+        // SETs are immutable once issued, so the jti and audience identify the signed payload
+        SecurityEventTokenEncodingCache.CacheKey cacheKey = createCacheKey(securityEventToken, signer);
+        String encodedToken = encodingCache.get(cacheKey);
+        if (encodedToken == null) {
+            encodedToken = sign(token, signer);
+            encodingCache.put(cacheKey, encodedToken);
+        }
         return encodedToken;
     }
 
+    protected String sign(Token token, SignatureSignerContext signer) {
+        return newJwsBuilder().jsonContent(token).sign(signer);
+    }
+
+    protected SecurityEventTokenEncodingCache.CacheKey createCacheKey(SecurityEventToken token, SignatureSignerContext signer) {
+
+        String[] audience = token.getAud();
+        if (audience != null) {
+            audience = audience.clone();
+            Arrays.sort(audience);
+        }
+
+        String realmId = session.getContext().getRealm().getId();
+        return new SecurityEventTokenEncodingCache.CacheKey(realmId, token.getJti(), audience, signer.getKid(), signer.getAlgorithm());
+    }
+
     protected JWSBuilder newJwsBuilder() {
         return new JWSBuilder().type(Ssf.SECEVENT_JWT_TYPE);
     }
@@ -0,0 +1,201 @@
+package com.identitytailor.keycloak.ssf.transmitter.event;
+
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache for signed SETs.
+ * <p>
+ * A SET is identified by its jti and audience, so the compact JWS for a given signing key can be reused for every stream
+ * and every poll request instead of signing the same payload again.
+ */
+@JBossLog
+public class SecurityEventTokenEncodingCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    /**
+     * Placeholder for signing keys without a kid, since the active key map does not allow null values.
+     */
+    protected static final String NO_KID = "";
+
+    private final Map<CacheKey, String> entries;
+
+    private final ConcurrentMap<String, String> activeKeyIdByRealm = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SecurityEventTokenEncodingCache(int maxEntries) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, String> eldest) {
+                boolean evict = size() > maxEntries;
+                if (evict) {
+                    evictions.incrementAndGet();
+                }
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached compact JWS for the given SET.
+     *
+     * @param key
+     * @return the encoded SET or {@literal null} if the SET was not signed with the given key yet
+     */
+    public String get(CacheKey key) {
+
+        onSigningKey(key.realmId(), key.kid());
+
+        String encoded;
+        synchronized (entries) {
+            encoded = entries.get(key);
+        }
+
+        if (encoded != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return encoded;
+    }
+
+    public void put(CacheKey key, String encoded) {
+        synchronized (entries) {
+            entries.put(key, encoded);
+        }
+    }
+
+    /**
+     * Drops all SETs of a realm that were signed with a different key than the currently active one.
+     *
+     * @param realmId
+     * @param kid
+     */
+    protected void onSigningKey(String realmId, String kid) {
+
+        String activeKid = kid == null ? NO_KID : kid;
+        String previousKid = activeKeyIdByRealm.put(realmId, activeKid);
+        if (previousKid == null || previousKid.equals(activeKid)) {
+            return;
+        }
+
+        int removed = invalidateRealm(realmId, NO_KID.equals(previousKid) ? null : previousKid);
+        log.debugf("Signing key rotated. Evicted %s cached SETs. realm=%s previousKid=%s kid=%s", removed, realmId, previousKid, kid);
+    }
+
+    protected int invalidateRealm(String realmId, String kid) {
+        int removed = 0;
+        synchronized (entries) {
+            var iterator = entries.keySet().iterator();
+            while (iterator.hasNext()) {
+                CacheKey key = iterator.next();
+                if (key.realmId().equals(realmId) && Objects.equals(key.kid(), kid)) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+        activeKeyIdByRealm.clear();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public void registerMetrics(SsfMetrics metrics) {
+        metrics.counter("set.encoding.cache.hits", "SETs served from the encoding cache without signing", this, SecurityEventTokenEncodingCache::getHits);
+        metrics.counter("set.encoding.cache.misses", "SETs which were signed", this, SecurityEventTokenEncodingCache::getMisses);
+        metrics.counter("set.encoding.cache.evictions", "Signed SETs evicted from the encoding cache", this, SecurityEventTokenEncodingCache::getEvictions);
+        metrics.gauge("set.encoding.cache.size", "Signed SETs in the encoding cache", this, SecurityEventTokenEncodingCache::size);
+    }
+
+    @Override
+    public String toString() {
+        return "SecurityEventTokenEncodingCache{" +
+               "size=" + size() +
+               ", hits=" + hits +
+               ", misses=" + misses +
+               ", evictions=" + evictions +
+               '}';
+    }
+
+    /**
+     * Identifies a signed SET.
+     *
+     * @param realmId
+     * @param jti
+     * @param audience
+     * @param kid
+     * @param algorithm
+     */
+    public record CacheKey(String realmId, String jti, String[] audience, String kid, String algorithm) {
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey that)) {
+                return false;
+            }
+            return Objects.equals(realmId, that.realmId)
+                   && Objects.equals(jti, that.jti)
+                   && Arrays.equals(audience, that.audience)
+                   && Objects.equals(kid, that.kid)
+                   && Objects.equals(algorithm, that.algorithm);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Objects.hash(realmId, jti, kid, algorithm);
+            result = 31 * result + Arrays.hashCode(audience);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheKey{" +
+                   "realmId='" + realmId + '\'' +
+                   ", jti='" + jti + '\'' +
+                   ", audience=" + Arrays.toString(audience) +
+                   ", kid='" + kid + '\'' +
+                   ", algorithm='" + algorithm + '\'' +
+                   '}';
+        }
+    }
+}
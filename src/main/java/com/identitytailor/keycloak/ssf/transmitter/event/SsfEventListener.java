@@ -1,9 +1,18 @@
 package com.identitytailor.keycloak.ssf.transmitter.event;
 
 import com.google.auto.service.AutoService;
+import com.identitytailor.keycloak.ssf.DefaultSharedSignalsProvider;
 import com.identitytailor.keycloak.ssf.SharedSignalsProvider;
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
 import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
 import com.identitytailor.keycloak.ssf.transmitter.delivery.SecurityEventTokenDeliveryService;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushDeliveryDispatcher;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushDeliveryOverflowPolicy;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushDeliveryTask;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushOutboxScheduler;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushOutboxService;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushRetryPolicy;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamChangedEvent;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.Config;
 import org.keycloak.events.Event;
@@ -12,6 +21,7 @@ import org.keycloak.events.EventListenerProviderFactory;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 
 /**
  * Keycloak event listener that maps Keycloak events to SSF events.
@@ -31,6 +41,11 @@ public class SsfEventListener implements EventListenerProvider {
     @Override
     public void onEvent(Event event) {
 
+        // realms without streams skip the mapping entirely
+        if (!securityEventTokenDeliveryService.hasActiveStreams()) {
+            return;
+        }
+
         SecurityEventToken securityEventToken = securityEventTokenMapper.toSecurityEvent(event);
         if (securityEventToken == null) {
             return;
@@ -57,7 +72,23 @@ public class SsfEventListener implements EventListenerProvider {
     @AutoService(EventListenerProviderFactory.class)
     public static class Factory implements EventListenerProviderFactory {
 
-        private static final String ID = "ssf-events";
+        public static final String ID = "ssf-events";
+
+        private Config.Scope config;
+
+        private PushDeliveryDispatcher pushDeliveryDispatcher;
+
+        private Boolean pushOutboxEnabledConfig;
+
+        private boolean pushOutboxEnabled;
+
+        private PushRetryPolicy pushRetryPolicy;
+
+        private long pushOutboxClaimTimeoutMillis;
+
+        private PushOutboxScheduler pushOutboxScheduler;
+
+        private final SsfMetrics metrics = new SsfMetrics();
 
         @Override
         public EventListenerProvider create(KeycloakSession session) {
@@ -74,17 +105,123 @@ public class SsfEventListener implements EventListenerProvider {
 
         @Override
         public void init(Config.Scope config) {
-            // No initialization needed
+            this.config = config;
+
+            pushOutboxEnabledConfig = config.getBoolean("push-outbox-enabled");
+            pushRetryPolicy = new PushRetryPolicy(
+                    config.getInt("push-retry-max-attempts", PushRetryPolicy.DEFAULT_MAX_ATTEMPTS),
+                    config.getLong("push-retry-initial-backoff-millis", PushRetryPolicy.DEFAULT_INITIAL_BACKOFF_MILLIS),
+                    config.getLong("push-retry-max-backoff-millis", PushRetryPolicy.DEFAULT_MAX_BACKOFF_MILLIS));
+            pushOutboxClaimTimeoutMillis = config.getLong("push-outbox-claim-timeout-millis", PushOutboxService.DEFAULT_CLAIM_TIMEOUT_MILLIS);
         }
 
         @Override
         public void postInit(KeycloakSessionFactory factory) {
-            // NOOP
+            pushOutboxEnabled = pushOutboxEnabledConfig != null ? pushOutboxEnabledConfig : isJpaStreamStore(factory);
+            pushDeliveryDispatcher = createPushDeliveryDispatcher(factory);
+            pushDeliveryDispatcher.registerMetrics(metrics);
+
+            if (pushOutboxEnabled) {
+                // SETs of the outbox are retried by the scheduler, so spilled SETs are handed over to it
+                pushDeliveryDispatcher.setSpillHandler(task -> spillToOutbox(factory, task));
+                pushOutboxScheduler = createPushOutboxScheduler(factory);
+                pushOutboxScheduler.start();
+            }
+
+            if (factory.getProviderFactory(SharedSignalsProvider.class) instanceof DefaultSharedSignalsProvider.Factory sharedSignalsFactory) {
+                sharedSignalsFactory.getStreamChangeNotifier().addListener(event -> {
+                    if (event.getType() == StreamChangedEvent.Type.STREAM_DELETED && pushDeliveryDispatcher != null) {
+                        pushDeliveryDispatcher.removeStream(event.getStreamId());
+                    }
+                });
+            }
+        }
+
+        /**
+         * Records a spilled SET which is not yet backed by the outbox, so that the outbox scheduler delivers it.
+         *
+         * @param factory
+         * @param task
+         */
+        protected void spillToOutbox(KeycloakSessionFactory factory, PushDeliveryTask task) {
+            try {
+                boolean spilled = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+                    PushOutboxService outboxService = session.getProvider(SharedSignalsProvider.class).pushOutboxService();
+                    if (outboxService == null) {
+                        return false;
+                    }
+                    outboxService.addDue(task.realmId(), task.stream(), task.jti(), task.encodedEvent());
+                    return true;
+                });
+                if (spilled) {
+                    return;
+                }
+            } catch (Exception e) {
+                log.warnf(e, "Could not spill event %s for stream %s to the outbox", task.jti(), task.stream().getStreamId());
+            }
+            pushDeliveryDispatcher.reject(task);
+        }
+
+        /**
+         * Outbox entries outlive a restart, so the outbox is only enabled by default if the streams they refer to do as well.
+         *
+         * @param factory
+         * @return
+         */
+        protected boolean isJpaStreamStore(KeycloakSessionFactory factory) {
+            return factory.getProviderFactory(SharedSignalsProvider.class) instanceof DefaultSharedSignalsProvider.Factory sharedSignalsFactory
+                   && sharedSignalsFactory.getStreamStoreType() == DefaultSharedSignalsProvider.StreamStoreType.JPA;
+        }
+
+        protected PushDeliveryDispatcher createPushDeliveryDispatcher(KeycloakSessionFactory factory) {
+
+            int queueCapacity = config.getInt("push-queue-capacity", PushDeliveryDispatcher.DEFAULT_QUEUE_CAPACITY);
+            int workers = config.getInt("push-workers", PushDeliveryDispatcher.DEFAULT_WORKERS);
+            PushDeliveryOverflowPolicy overflowPolicy = PushDeliveryOverflowPolicy.valueOf(config.get("push-overflow-policy", PushDeliveryDispatcher.DEFAULT_OVERFLOW_POLICY.name()).toUpperCase());
+            long blockTimeoutMillis = config.getLong("push-block-timeout-millis", PushDeliveryDispatcher.DEFAULT_BLOCK_TIMEOUT_MILLIS);
+            long drainTimeoutMillis = config.getLong("push-drain-timeout-millis", PushDeliveryDispatcher.DEFAULT_DRAIN_TIMEOUT_MILLIS);
+
+            log.debugf("Creating push delivery dispatcher. queueCapacity=%s workers=%s overflowPolicy=%s", queueCapacity, workers, overflowPolicy);
+            return new PushDeliveryDispatcher(factory, queueCapacity, workers, overflowPolicy, blockTimeoutMillis, drainTimeoutMillis);
+        }
+
+        protected PushOutboxScheduler createPushOutboxScheduler(KeycloakSessionFactory factory) {
+
+            long pollIntervalMillis = config.getLong("push-outbox-poll-interval-millis", PushOutboxScheduler.DEFAULT_POLL_INTERVAL_MILLIS);
+            int batchSize = config.getInt("push-outbox-batch-size", PushOutboxScheduler.DEFAULT_BATCH_SIZE);
+            long purgeIntervalMillis = config.getLong("push-outbox-purge-interval-millis", PushOutboxScheduler.DEFAULT_PURGE_INTERVAL_MILLIS);
+            long failedRetentionMillis = config.getLong("push-outbox-failed-retention-millis", PushOutboxScheduler.DEFAULT_FAILED_RETENTION_MILLIS);
+
+            return new PushOutboxScheduler(factory, pushDeliveryDispatcher, pollIntervalMillis, batchSize, purgeIntervalMillis, failedRetentionMillis);
+        }
+
+        public PushDeliveryDispatcher getPushDeliveryDispatcher() {
+            return pushDeliveryDispatcher;
+        }
+
+        public boolean isPushOutboxEnabled() {
+            return pushOutboxEnabled;
+        }
+
+        public PushRetryPolicy getPushRetryPolicy() {
+            return pushRetryPolicy;
+        }
+
+        public long getPushOutboxClaimTimeoutMillis() {
+            return pushOutboxClaimTimeoutMillis;
         }
 
         @Override
         public void close() {
-            // No resources to close
+            metrics.close();
+            if (pushOutboxScheduler != null) {
+                pushOutboxScheduler.stop();
+                pushOutboxScheduler = null;
+            }
+            if (pushDeliveryDispatcher != null) {
+                pushDeliveryDispatcher.close();
+                pushDeliveryDispatcher = null;
+            }
         }
 
         @Override
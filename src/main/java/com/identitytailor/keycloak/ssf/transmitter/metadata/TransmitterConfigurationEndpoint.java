@@ -1,28 +1,41 @@
 package com.identitytailor.keycloak.ssf.transmitter.metadata;
 
-import com.identitytailor.keycloak.ssf.transmitter.SharedSignalsTransmitterMetadata;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import lombok.extern.jbosslog.JBossLog;
-import org.jboss.resteasy.reactive.NoCache;
 import org.keycloak.models.KeycloakSession;
 
 /**
  * Endpoint that exposes the SSF transmitter configuration metadata.
  * This endpoint is accessible at /.well-known/ssf-configuration
+ * <p>
+ * Responses carry an entity tag, so receivers which refresh the metadata can send {@code If-None-Match} and get a
+ * {@code 304 Not Modified} as long as the metadata did not change.
  */
 @JBossLog
 public class TransmitterConfigurationEndpoint {
 
+    public static final int DEFAULT_MAX_AGE_SECONDS = 300;
+
     private final KeycloakSession session;
 
     private final TransmitterService transmitterService;
 
+    private final int maxAgeSeconds;
+
     public TransmitterConfigurationEndpoint(KeycloakSession session, TransmitterService transmitterService) {
+        this(session, transmitterService, DEFAULT_MAX_AGE_SECONDS);
+    }
+
+    public TransmitterConfigurationEndpoint(KeycloakSession session, TransmitterService transmitterService, int maxAgeSeconds) {
         this.session = session;
         this.transmitterService = transmitterService;
+        this.maxAgeSeconds = maxAgeSeconds;
     }
 
     /**
@@ -32,15 +45,58 @@ public class TransmitterConfigurationEndpoint {
      * @return The SSF transmitter configuration metadata
      */
     @GET
-    @NoCache
     @Produces(MediaType.APPLICATION_JSON)
     public Response getTransmitterMetadata() {
         try {
-            SharedSignalsTransmitterMetadata metadata = transmitterService.getTransmitterMetadata();
-            return Response.ok(metadata).build();
+            TransmitterMetadataCache.Entry metadata = transmitterService.getTransmitterMetadataEntry();
+            EntityTag entityTag = new EntityTag(metadata.entityTag());
+
+            CacheControl cacheControl = new CacheControl();
+            cacheControl.setMaxAge(maxAgeSeconds);
+
+            String ifNoneMatch = session.getContext().getRequestHeaders().getHeaderString(HttpHeaders.IF_NONE_MATCH);
+            if (matches(ifNoneMatch, metadata.entityTag())) {
+                return Response.notModified(entityTag).cacheControl(cacheControl).build();
+            }
+
+            return Response.ok(metadata.json(), MediaType.APPLICATION_JSON_TYPE)
+                    .tag(entityTag)
+                    .cacheControl(cacheControl)
+                    .build();
         } catch (Exception e) {
             log.error("Error retrieving transmitter metadata", e);
             return Response.serverError().build();
         }
     }
+
+    /**
+     * Checks whether the given {@code If-None-Match} header value matches the entity tag, using the weak comparison.
+     *
+     * @param ifNoneMatch
+     * @param entityTag
+     * @return
+     */
+    protected boolean matches(String ifNoneMatch, String entityTag) {
+
+        if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if ("*".equals(tag)) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+                tag = tag.substring(1, tag.length() - 1);
+            }
+            if (entityTag.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
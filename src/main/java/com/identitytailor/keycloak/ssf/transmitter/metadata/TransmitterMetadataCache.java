@@ -0,0 +1,139 @@
+package com.identitytailor.keycloak.ssf.transmitter.metadata;
+
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
+import com.identitytailor.keycloak.ssf.transmitter.SharedSignalsTransmitterMetadata;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.RealmModel;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Node local cache of the transmitter metadata of a realm.
+ * <p>
+ * The metadata only depends on the realm name and the base URI of the request, which covers the configured hostname
+ * and the frontend URL of the realm. Entries are kept per realm and base URI and rebuilt once the realm was renamed.
+ * Every entry carries the serialized metadata and its entity tag, so the configuration endpoint can answer conditional
+ * requests without serializing the metadata again.
+ */
+@JBossLog
+public class TransmitterMetadataCache {
+
+    /**
+     * Maximum number of base URIs cached per realm, limits the cache if the hostname is derived from request headers.
+     */
+    public static final int DEFAULT_MAX_BASE_URIS_PER_REALM = 8;
+
+    private final int maxBaseUrisPerRealm;
+
+    private final ConcurrentMap<String, ConcurrentMap<URI, Entry>> entriesByRealm = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public TransmitterMetadataCache(int maxBaseUrisPerRealm) {
+        this.maxBaseUrisPerRealm = maxBaseUrisPerRealm;
+    }
+
+    /**
+     * Returns the cached metadata of the given realm for the given base URI.
+     *
+     * @param realm
+     * @param baseUri
+     * @param metadataLoader Creates the metadata if there is no entry or the realm was renamed
+     * @return
+     */
+    public Entry getEntry(RealmModel realm, URI baseUri, Supplier<SharedSignalsTransmitterMetadata> metadataLoader) {
+
+        ConcurrentMap<URI, Entry> realmEntries = entriesByRealm.computeIfAbsent(realm.getId(), realmId -> new ConcurrentHashMap<>());
+
+        Entry entry = realmEntries.get(baseUri);
+        if (entry != null && entry.realmName().equals(realm.getName())) {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        misses.incrementAndGet();
+        entry = createEntry(realm.getName(), metadataLoader.get());
+
+        if (realmEntries.size() >= maxBaseUrisPerRealm && !realmEntries.containsKey(baseUri)) {
+            log.debugf("Too many base URIs for transmitter metadata of realm %s, dropping cached entries", realm.getName());
+            realmEntries.clear();
+        }
+        realmEntries.put(baseUri, entry);
+        return entry;
+    }
+
+    /**
+     * Serializes the given metadata and computes its entity tag.
+     *
+     * @param realmName
+     * @param metadata
+     * @return
+     */
+    public static Entry createEntry(String realmName, SharedSignalsTransmitterMetadata metadata) {
+        try {
+            byte[] json = JsonSerialization.writeValueAsBytes(metadata);
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(json);
+            String entityTag = Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+            return new Entry(realmName, metadata, json, entityTag);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Could not serialize transmitter metadata", e);
+        }
+    }
+
+    /**
+     * Drops the cached metadata of the given realm on this node.
+     *
+     * @param realmId
+     */
+    public void remove(String realmId) {
+        entriesByRealm.remove(realmId);
+    }
+
+    public void clear() {
+        entriesByRealm.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void registerMetrics(SsfMetrics metrics) {
+        metrics.counter("transmitter.metadata.cache.hits", "Transmitter metadata requests served from the metadata cache", this, TransmitterMetadataCache::getHits);
+        metrics.counter("transmitter.metadata.cache.misses", "Transmitter metadata requests which rebuilt the metadata", this, TransmitterMetadataCache::getMisses);
+    }
+
+    @Override
+    public String toString() {
+        return "TransmitterMetadataCache{" +
+               "realms=" + entriesByRealm.size() +
+               ", hits=" + hits.get() +
+               ", misses=" + misses.get() +
+               '}';
+    }
+
+    /**
+     * Cached transmitter metadata.
+     *
+     * @param realmName  The realm name the metadata was created for
+     * @param metadata   The shared metadata, must not be modified
+     * @param json       The serialized metadata
+     * @param entityTag  The opaque entity tag of the serialized metadata
+     */
+    public record Entry(String realmName, SharedSignalsTransmitterMetadata metadata, byte[] json, String entityTag) {
+    }
+}
@@ -3,13 +3,14 @@ package com.identitytailor.keycloak.ssf.transmitter.metadata;
 import com.identitytailor.keycloak.ssf.event.types.caep.CredentialChange;
 import com.identitytailor.keycloak.ssf.event.types.caep.SessionRevoked;
 import com.identitytailor.keycloak.ssf.transmitter.SharedSignalsTransmitterMetadata;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamSubjectService;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.net.URI;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -21,19 +22,50 @@ public class TransmitterService {
 
     private final KeycloakSession session;
 
-    public TransmitterService(KeycloakSession session) {
+    private final StreamSubjectService.DefaultSubjects defaultSubjects;
+
+    private final TransmitterMetadataCache metadataCache;
+
+    public TransmitterService(KeycloakSession session, StreamSubjectService.DefaultSubjects defaultSubjects) {
+        this(session, defaultSubjects, null);
+    }
+
+    public TransmitterService(KeycloakSession session, StreamSubjectService.DefaultSubjects defaultSubjects, TransmitterMetadataCache metadataCache) {
         this.session = session;
+        this.defaultSubjects = defaultSubjects;
+        this.metadataCache = metadataCache;
     }
 
     /**
      * Returns the SSF transmitter configuration metadata.
+     * <p>
+     * The returned metadata may be shared with other requests and must not be modified.
      *
      * @return The SSF transmitter configuration metadata
      */
     public SharedSignalsTransmitterMetadata getTransmitterMetadata() {
+        return getTransmitterMetadataEntry().metadata();
+    }
+
+    /**
+     * Returns the SSF transmitter configuration metadata together with its serialized form and entity tag.
+     *
+     * @return
+     */
+    public TransmitterMetadataCache.Entry getTransmitterMetadataEntry() {
         KeycloakContext context = session.getContext();
         RealmModel realm = context.getRealm();
-        String baseUrl = context.getUri().getBaseUri().toString() + "realms/" + realm.getName();
+        URI baseUri = context.getUri().getBaseUri();
+
+        if (metadataCache == null) {
+            return TransmitterMetadataCache.createEntry(realm.getName(), createTransmitterMetadata(realm, baseUri));
+        }
+
+        return metadataCache.getEntry(realm, baseUri, () -> createTransmitterMetadata(realm, baseUri));
+    }
+
+    protected SharedSignalsTransmitterMetadata createTransmitterMetadata(RealmModel realm, URI baseUri) {
+        String baseUrl = baseUri.toString() + "realms/" + realm.getName();
         if (baseUrl.endsWith("/")) {
             baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
         }
@@ -57,11 +89,12 @@ public class TransmitterService {
         metadata.setConfigurationEndpoint(ssfBasePath + "/streams");
         metadata.setStatusEndpoint(ssfBasePath + "/streams/status");
         metadata.setVerificationEndpoint(ssfBasePath + "/verify");
+        metadata.setAddSubjectEndpoint(ssfBasePath + "/streams/subjects:add");
+        metadata.setRemoveSubjectEndpoint(ssfBasePath + "/streams/subjects:remove");
+        metadata.setDefaultSubjects(defaultSubjects.name());
 
         // Set authorization schemes
-        Map<String, String> oauthScheme = new HashMap<>();
-        oauthScheme.put("spec_urn", "urn:ietf:rfc:6749");
-        metadata.setAuthorizationSchemes(Collections.singletonList(oauthScheme));
+        metadata.setAuthorizationSchemes(List.of(Map.of("spec_urn", "urn:ietf:rfc:6749")));
 
         return metadata;
     }
@@ -0,0 +1,95 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage;
+
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfiguration;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfigurationVersion;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamStatus;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.List;
+
+/**
+ * {@link SsfStreamStore} which serves reads for the current realm from a {@link StreamConfigurationCache}.
+ * <p>
+ * The cached streams are reloaded on every node once the {@link StreamConfigurationVersion} of the realm was advanced after
+ * the write committed. Until then, a session which wrote a stream reads from the delegate, so that it sees its own changes
+ * without caching them before they committed. Reads for another realm than the realm in the context go straight to the delegate.
+ */
+public class CachingStreamStore implements SsfStreamStore {
+
+    private final KeycloakSession session;
+
+    private final SsfStreamStore delegate;
+
+    private final StreamConfigurationCache cache;
+
+    private boolean written;
+
+    public CachingStreamStore(KeycloakSession session, SsfStreamStore delegate, StreamConfigurationCache cache) {
+        this.session = session;
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public void saveStream(StreamConfiguration streamConfiguration) {
+        delegate.saveStream(streamConfiguration);
+        onStreamChanged();
+    }
+
+    @Override
+    public StreamStatus updateStreamStatus(String realmId, String streamId, StreamStatus streamStatus) {
+        StreamStatus updatedStreamStatus = delegate.updateStreamStatus(realmId, streamId, streamStatus);
+        onStreamChanged();
+        return updatedStreamStatus;
+    }
+
+    @Override
+    public StreamStatus getStreamStatus(String realmId, String streamId) {
+        return delegate.getStreamStatus(realmId, streamId);
+    }
+
+    @Override
+    public StreamConfiguration getStream(String realmId, String streamId) {
+
+        RealmModel realm = session.getContext().getRealm();
+        if (written || realm == null || !realm.getId().equals(realmId)) {
+            return delegate.getStream(realmId, streamId);
+        }
+
+        // the cached streams are complete, a stream which is not cached does not belong to the realm
+        return cache.getStream(realm, streamId, () -> delegate.getStreams(realmId));
+    }
+
+    @Override
+    public List<StreamConfiguration> getAllStreams() {
+        return delegate.getAllStreams();
+    }
+
+    @Override
+    public List<StreamConfiguration> getStreams(String realmId) {
+
+        RealmModel realm = session.getContext().getRealm();
+        if (written || realm == null || !realm.getId().equals(realmId)) {
+            return delegate.getStreams(realmId);
+        }
+
+        return cache.getStreams(realm, () -> delegate.getStreams(realmId));
+    }
+
+    @Override
+    public void deleteStreams(String realmId) {
+        delegate.deleteStreams(realmId);
+        cache.remove(realmId);
+    }
+
+    @Override
+    public void deleteStream(String realmId, String streamId) {
+        delegate.deleteStream(realmId, streamId);
+        onStreamChanged();
+    }
+
+    protected void onStreamChanged() {
+        written = true;
+    }
+}
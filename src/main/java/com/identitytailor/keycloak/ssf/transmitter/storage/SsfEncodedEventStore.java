@@ -0,0 +1,38 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage;
+
+import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
+
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * An {@link SsfEventStore} which stores the signed SET, so that polls can return it without serializing or signing it again.
+ */
+public interface SsfEncodedEventStore extends SsfEventStore {
+
+    /**
+     * Whether events should be stored in their signed form.
+     *
+     * @return
+     */
+    boolean isStoringEncodedEvents();
+
+    /**
+     * Stores the signed form of an event for later polling.
+     *
+     * @param streamId
+     * @param event        The event to store
+     * @param encodedEvent The signed SET
+     */
+    void storeEncodedEvent(String streamId, SecurityEventToken event, String encodedEvent);
+
+    /**
+     * Gets the signed SETs for polling.
+     *
+     * @param streamId
+     * @param maxEvents The maximum number of events to return
+     * @param encoder   Signs events which were stored without their signed form
+     * @return The signed SETs by jti in delivery order
+     */
+    Map<String, String> getEncodedEvents(String streamId, int maxEvents, Function<SecurityEventToken, String> encoder);
+}
@@ -3,6 +3,7 @@ package com.identitytailor.keycloak.ssf.transmitter.storage;
 import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * Interface for storing and retrieving SSF events.
@@ -36,6 +37,37 @@ public interface SsfEventStore {
 
     void failedEvent(String streamId, String eventId);
 
+    /**
+     * Acknowledges multiple events of a stream at once.
+     *
+     * @param streamId
+     * @param eventIds The IDs of the events to acknowledge
+     */
+    default void acknowledgeEvents(String streamId, Set<String> eventIds) {
+        for (String eventId : eventIds) {
+            acknowledgeEvent(streamId, eventId);
+        }
+    }
+
+    /**
+     * Marks multiple events of a stream as failed at once.
+     *
+     * @param streamId
+     * @param eventIds The IDs of the failed events
+     */
+    default void failEvents(String streamId, Set<String> eventIds) {
+        for (String eventId : eventIds) {
+            failedEvent(streamId, eventId);
+        }
+    }
+
+    /**
+     * Removes all events of a stream, e.g. after the stream was deleted.
+     *
+     * @param streamId
+     */
+    void deleteEvents(String streamId);
+
     /**
      * Checks if there are more events available.
      *
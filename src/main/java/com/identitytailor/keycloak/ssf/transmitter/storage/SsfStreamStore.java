@@ -7,6 +7,9 @@ import java.util.List;
 
 /**
  * Interface for storing and retrieving SSF stream configurations.
+ * <p>
+ * Every stream belongs to a realm, so all operations on a single stream are scoped by the realm ID. A stream of another
+ * realm is treated like a missing stream.
  */
 public interface SsfStreamStore {
 
@@ -20,27 +23,30 @@ public interface SsfStreamStore {
     /**
      * Update the stream status
      *
+     * @param realmId
      * @param streamId
      * @param streamStatus
-     * @return
+     * @return the updated status, or null if the realm has no such stream
      */
-    StreamStatus updateStreamStatus(String streamId, StreamStatus streamStatus);
+    StreamStatus updateStreamStatus(String realmId, String streamId, StreamStatus streamStatus);
 
     /**
      * Get the stream status
      *
+     * @param realmId
      * @param streamId
-     * @return
+     * @return the status, or null if the realm has no such stream
      */
-    StreamStatus getStreamStatus(String streamId);
+    StreamStatus getStreamStatus(String realmId, String streamId);
 
     /**
-     * Gets a stream configuration by ID.
+     * Gets a stream configuration of a realm by ID.
      *
+     * @param realmId  The realm ID
      * @param streamId The stream ID
-     * @return The stream configuration, or null if not found
+     * @return The stream configuration, or null if the realm has no such stream
      */
-    StreamConfiguration getStream(String streamId);
+    StreamConfiguration getStream(String realmId, String streamId);
 
     /**
      * Gets all stream configurations.
@@ -50,9 +56,35 @@ public interface SsfStreamStore {
     List<StreamConfiguration> getAllStreams();
 
     /**
-     * Deletes a stream configuration.
+     * Gets the stream configurations of a realm.
      *
+     * @param realmId The realm ID
+     * @return A list of the stream configurations of the realm
+     */
+    default List<StreamConfiguration> getStreams(String realmId) {
+        return getAllStreams().stream()
+                .filter(stream -> realmId.equals(stream.getRealmId()))
+                .toList();
+    }
+
+    /**
+     * Deletes all stream configurations of a realm, e.g. after the realm was removed.
+     *
+     * @param realmId The realm ID
+     */
+    default void deleteStreams(String realmId) {
+        for (StreamConfiguration stream : getAllStreams()) {
+            if (realmId.equals(stream.getRealmId())) {
+                deleteStream(realmId, stream.getStreamId());
+            }
+        }
+    }
+
+    /**
+     * Deletes a stream configuration of a realm.
+     *
+     * @param realmId  The realm ID
      * @param streamId The stream ID
      */
-    void deleteStream(String streamId);
+    void deleteStream(String realmId, String streamId);
 }
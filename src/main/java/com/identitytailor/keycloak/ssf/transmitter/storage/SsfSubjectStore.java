@@ -0,0 +1,52 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage;
+
+import java.util.Set;
+
+/**
+ * Interface for storing the subjects which were explicitly added to SSF streams.
+ * <p>
+ * Subjects are stored as the ids of the Keycloak users they resolve to.
+ */
+public interface SsfSubjectStore {
+
+    /**
+     * Adds a subject to a stream.
+     *
+     * @param realmId
+     * @param streamId
+     * @param userId   The ID of the user the subject resolves to
+     * @return true if the subject was added, false if it was already part of the stream
+     */
+    boolean addSubject(String realmId, String streamId, String userId);
+
+    /**
+     * Removes a subject from a stream.
+     *
+     * @param streamId
+     * @param userId   The ID of the user the subject resolves to
+     * @return true if the subject was removed, false if it was not part of the stream
+     */
+    boolean removeSubject(String streamId, String userId);
+
+    /**
+     * Gets the subjects of a stream.
+     *
+     * @param streamId
+     * @return The IDs of the users which were added to the stream
+     */
+    Set<String> getSubjects(String streamId);
+
+    /**
+     * Removes all subjects of a stream, e.g. after the stream was deleted.
+     *
+     * @param streamId
+     */
+    void deleteSubjects(String streamId);
+
+    /**
+     * Removes all subjects of the streams in a realm, e.g. after the realm was removed.
+     *
+     * @param realmId
+     */
+    void deleteRealmSubjects(String realmId);
+}
@@ -0,0 +1,161 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage;
+
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfiguration;
+import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfigurationVersion;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.RealmModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Node local cache of the stream configurations of a realm.
+ * <p>
+ * The streams of a realm are loaded once and reused until the {@link StreamConfigurationVersion} of the realm advances,
+ * which happens after every stream create, update, delete or status change on any node.
+ * <p>
+ * The cache keeps private copies of the loaded streams and hands out copies, so that callers can modify the returned
+ * streams without affecting other sessions.
+ */
+@JBossLog
+public class StreamConfigurationCache {
+
+    private final ConcurrentMap<String, RealmStreams> streamsByRealm = new ConcurrentHashMap<>();
+
+    private final StreamConfigurationVersion versions;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    public StreamConfigurationCache(StreamConfigurationVersion versions) {
+        this.versions = versions;
+    }
+
+    /**
+     * Returns the streams of the given realm.
+     *
+     * @param realm
+     * @param streamsLoader Loads the streams of the realm from the stream store if the cached streams of the realm are stale
+     * @return
+     */
+    public List<StreamConfiguration> getStreams(RealmModel realm, Supplier<List<StreamConfiguration>> streamsLoader) {
+        List<StreamConfiguration> streams = getRealmStreams(realm, streamsLoader).streams();
+        List<StreamConfiguration> copies = new ArrayList<>(streams.size());
+        for (StreamConfiguration stream : streams) {
+            copies.add(stream.copy());
+        }
+        return copies;
+    }
+
+    /**
+     * Returns the stream with the given id from the cached streams of the given realm.
+     *
+     * @param realm
+     * @param streamId
+     * @param streamsLoader Loads the streams of the realm from the stream store if the cached streams of the realm are stale
+     * @return the stream or {@literal null} if the realm has no such stream
+     */
+    public StreamConfiguration getStream(RealmModel realm, String streamId, Supplier<List<StreamConfiguration>> streamsLoader) {
+        StreamConfiguration stream = getRealmStreams(realm, streamsLoader).streamsById().get(streamId);
+        return stream == null ? null : stream.copy();
+    }
+
+    protected RealmStreams getRealmStreams(RealmModel realm, Supplier<List<StreamConfiguration>> streamsLoader) {
+
+        long version = versions.current(realm.getId());
+
+        RealmStreams realmStreams = streamsByRealm.get(realm.getId());
+        if (realmStreams != null && realmStreams.version() == version) {
+            hits.incrementAndGet();
+            return realmStreams;
+        }
+
+        misses.incrementAndGet();
+        realmStreams = load(realm, version, streamsLoader.get());
+        streamsByRealm.put(realm.getId(), realmStreams);
+        return realmStreams;
+    }
+
+    protected RealmStreams load(RealmModel realm, long version, List<StreamConfiguration> realmStreams) {
+
+        loads.incrementAndGet();
+
+        Map<String, StreamConfiguration> streamsById = new HashMap<>();
+        for (StreamConfiguration stream : realmStreams) {
+            if (realm.getId().equals(stream.getRealmId())) {
+                streamsById.put(stream.getStreamId(), stream.copy());
+            }
+        }
+
+        log.debugf("Loaded stream configurations. realm=%s version=%s streams=%s", realm.getName(), version, streamsById.size());
+
+        return new RealmStreams(version, Map.copyOf(streamsById), List.copyOf(streamsById.values()));
+    }
+
+    /**
+     * Drops the cached streams of the given realm on this node.
+     *
+     * @param realmId
+     */
+    public void remove(String realmId) {
+        streamsByRealm.remove(realmId);
+    }
+
+    public void clear() {
+        streamsByRealm.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * Ratio of lookups which were served from the cache.
+     *
+     * @return
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0d : (double) hitCount / total;
+    }
+
+    public void registerMetrics(SsfMetrics metrics) {
+        metrics.counter("stream.cache.hits", "Stream lookups served from the stream configuration cache", this, StreamConfigurationCache::getHits);
+        metrics.counter("stream.cache.misses", "Stream lookups which loaded the streams from the stream store", this, StreamConfigurationCache::getMisses);
+        metrics.counter("stream.cache.loads", "Loads of the streams of a realm from the stream store", this, StreamConfigurationCache::getLoads);
+        metrics.gauge("stream.cache.hit.rate", "Ratio of stream lookups served from the stream configuration cache", this, StreamConfigurationCache::getHitRate);
+    }
+
+    @Override
+    public String toString() {
+        return "StreamConfigurationCache{" +
+               "realms=" + streamsByRealm.size() +
+               ", hits=" + hits.get() +
+               ", misses=" + misses.get() +
+               ", loads=" + loads.get() +
+               ", hitRate=" + String.format("%.3f", getHitRate()) +
+               '}';
+    }
+
+    protected record RealmStreams(long version, Map<String, StreamConfiguration> streamsById, List<StreamConfiguration> streams) {
+    }
+}
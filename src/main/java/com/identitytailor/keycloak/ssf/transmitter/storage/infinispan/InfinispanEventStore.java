@@ -0,0 +1,441 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.infinispan;
+
+import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfEventStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.memory.EventEvictionPolicy;
+import lombok.extern.jbosslog.JBossLog;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster wide storage for SSF events on a distributed Infinispan cache.
+ * <p>
+ * Every stream is an ordered log of sequence numbers which are assigned and consumed with atomic compare-and-set operations,
+ * so any node can append to and poll from any stream without a database round trip. Only strings and longs are stored,
+ * which do not need custom marshallers. The log of a stream consists of the following entries:
+ * <ul>
+ *     <li>{@code tail:<stream>} the next sequence number to assign</li>
+ *     <li>{@code head:<stream>} the next sequence number to poll</li>
+ *     <li>{@code low:<stream>} the lowest sequence number that may still be unacknowledged</li>
+ *     <li>{@code seq:<stream>:<n>} the jti of the event with sequence number n</li>
+ *     <li>{@code gap:<stream>:<n>} the time a poll first found sequence number n reserved but not yet written</li>
+ *     <li>{@code evt:<stream>:<jti>} the serialized event, expires after the maximum event age</li>
+ *     <li>{@code lease:<stream>:<jti>} the lease of a polled event, expires after the lease time</li>
+ * </ul>
+ * Events between {@code low} and {@code head} whose lease expired without an acknowledgement are leased again on the next poll.
+ * Entries are read in batches of {@link #READ_BATCH_SIZE} sequence numbers, so a poll needs a few remote reads instead of one per event.
+ * <p>
+ * If the backlog of a stream is full, the {@link EventEvictionPolicy} either drops the oldest event or rejects the new one.
+ * The policy is applied per stream, since memory based eviction of the cache would also evict the counters of the streams.
+ * <p>
+ * Appending reserves a sequence number on {@code tail} first and writes its {@code seq} entry afterward, so polls only claim
+ * sequence numbers up to the first one which is not written yet. A reserved sequence number that stays unwritten for longer than
+ * the slot write timeout, e.g. because the appending node crashed, is skipped with a tombstone. An append that loses this race
+ * reserves another sequence number.
+ */
+@JBossLog
+public class InfinispanEventStore implements SsfEventStore {
+
+    public static final String CACHE_NAME = "ssf-events";
+
+    public static final int DEFAULT_OWNERS = 2;
+
+    /**
+     * Time after which a reserved but unwritten sequence number is skipped by polls.
+     */
+    public static final long SLOT_WRITE_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Maximum number of sequence numbers read with a single {@link Cache#getAll(Set)}.
+     */
+    public static final int READ_BATCH_SIZE = 100;
+
+    /**
+     * Value of a skipped sequence number.
+     */
+    protected static final String SKIPPED_SLOT = "";
+
+    private final Cache<String, Object> cache;
+
+    private final long leaseMillis;
+
+    private final long maxEventAgeMillis;
+
+    private final int maxEventsPerStream;
+
+    private final EventEvictionPolicy evictionPolicy;
+
+    public InfinispanEventStore(Cache<String, Object> cache, long leaseMillis, long maxEventAgeMillis, int maxEventsPerStream, EventEvictionPolicy evictionPolicy) {
+        this.cache = cache;
+        this.leaseMillis = leaseMillis;
+        this.maxEventAgeMillis = maxEventAgeMillis;
+        this.maxEventsPerStream = maxEventsPerStream;
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Defines the event cache if it does not exist yet. Clustered cache managers get a distributed cache with the given number of owners.
+     *
+     * @param cacheManager
+     * @param owners
+     * @return
+     */
+    public static Cache<String, Object> getOrCreateCache(EmbeddedCacheManager cacheManager, int owners) {
+
+        if (!cacheManager.cacheExists(CACHE_NAME) && cacheManager.getCacheConfiguration(CACHE_NAME) == null) {
+            ConfigurationBuilder builder = new ConfigurationBuilder();
+            if (cacheManager.getCacheManagerConfiguration().isClustered()) {
+                builder.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(owners);
+            } else {
+                builder.clustering().cacheMode(CacheMode.LOCAL);
+            }
+            builder.expiration().wakeUpInterval(1, TimeUnit.SECONDS);
+            cacheManager.defineConfiguration(CACHE_NAME, builder.build());
+        }
+
+        return cacheManager.getCache(CACHE_NAME);
+    }
+
+    @Override
+    public void storeEvent(String streamId, SecurityEventToken event) {
+
+        String jti = event.getJti();
+        String serializedEvent;
+        try {
+            serializedEvent = JsonSerialization.writeValueAsString(event);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not serialize event " + jti, e);
+        }
+
+        if (cache.putIfAbsent(eventKey(streamId, jti), serializedEvent, maxEventAgeMillis, TimeUnit.MILLISECONDS) != null) {
+            // already stored
+            return;
+        }
+
+        long low = getCounter(lowKey(streamId));
+        while (true) {
+            long tail = getCounter(tailKey(streamId));
+            if (tail - low >= maxEventsPerStream) {
+                if (evictionPolicy == EventEvictionPolicy.DROP_OLDEST && dropOldest(streamId)) {
+                    low = getCounter(lowKey(streamId));
+                    continue;
+                }
+                cache.remove(eventKey(streamId, jti));
+                log.warnf("Backlog of stream %s is full. Rejecting event %s", streamId, jti);
+                return;
+            }
+            if (!compareAndSetCounter(tailKey(streamId), tail, tail + 1)) {
+                continue;
+            }
+            // the reserved sequence number only becomes pollable once its entry is written
+            if (cache.putIfAbsent(sequenceKey(streamId, tail), jti, maxEventAgeMillis, TimeUnit.MILLISECONDS) == null) {
+                return;
+            }
+            log.debugf("Reserved sequence number %s of stream %s was skipped. Reserving another one for event %s", tail, streamId, jti);
+        }
+    }
+
+    @Override
+    public List<SecurityEventToken> getEvents(String streamId, int maxEvents) {
+
+        List<SecurityEventToken> result = new ArrayList<>();
+
+        // lease events again whose lease expired without an acknowledgement
+        long head = getCounter(headKey(streamId));
+        long low = advanceLow(streamId, head);
+        leaseEvents(streamId, low, head, maxEvents, result);
+
+        // claim new events
+        while (result.size() < maxEvents) {
+            head = getCounter(headKey(streamId));
+            long tail = getCounter(tailKey(streamId));
+            if (head >= tail) {
+                break;
+            }
+            long claimUntil = getWrittenUntil(streamId, head, Math.min(tail, head + (maxEvents - result.size())));
+            if (claimUntil == head) {
+                // the next event is still being written
+                break;
+            }
+            if (!compareAndSetCounter(headKey(streamId), head, claimUntil)) {
+                continue;
+            }
+            leaseEvents(streamId, head, claimUntil, maxEvents, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Evicts the oldest event of the stream to make room for a new event. An oldest event which was not polled yet is claimed
+     * away from the polls first.
+     *
+     * @param streamId
+     * @return true if the low watermark could be advanced, false if the oldest event is still being written
+     */
+    protected boolean dropOldest(String streamId) {
+
+        long low = getCounter(lowKey(streamId));
+        long head = getCounter(headKey(streamId));
+        if (low == head) {
+            if (getWrittenUntil(streamId, head, head + 1) == head || !compareAndSetCounter(headKey(streamId), head, head + 1)) {
+                return false;
+            }
+            head++;
+        }
+
+        String jti = (String) cache.get(sequenceKey(streamId, low));
+        if (jti != null && !SKIPPED_SLOT.equals(jti) && cache.remove(eventKey(streamId, jti)) != null) {
+            cache.remove(leaseKey(streamId, jti));
+            log.warnf("Backlog of stream %s is full. Evicted oldest event %s", streamId, jti);
+        }
+        return advanceLow(streamId, head) > low;
+    }
+
+    /**
+     * Reads the entries of the given range of sequence numbers with a single remote read.
+     *
+     * @param streamId
+     * @param from
+     * @param until
+     * @return the jti or {@link #SKIPPED_SLOT} of every written sequence number
+     */
+    protected Map<Long, String> getSequences(String streamId, long from, long until) {
+
+        Map<String, Long> sequenceKeys = new HashMap<>();
+        for (long sequence = from; sequence < until; sequence++) {
+            sequenceKeys.put(sequenceKey(streamId, sequence), sequence);
+        }
+
+        Map<Long, String> sequences = new HashMap<>();
+        for (Map.Entry<String, Object> entry : cache.getAll(sequenceKeys.keySet()).entrySet()) {
+            if (entry.getValue() instanceof String jti) {
+                sequences.put(sequenceKeys.get(entry.getKey()), jti);
+            }
+        }
+        return sequences;
+    }
+
+    /**
+     * Returns the first sequence number from the given range whose entry is not written yet, or the end of the range.
+     * Sequence numbers which stay unwritten for longer than the slot write timeout are skipped.
+     *
+     * @param streamId
+     * @param from
+     * @param until
+     * @return
+     */
+    protected long getWrittenUntil(String streamId, long from, long until) {
+
+        Map<Long, String> sequences = Map.of();
+        for (long sequence = from; sequence < until; sequence++) {
+            if ((sequence - from) % READ_BATCH_SIZE == 0) {
+                sequences = getSequences(streamId, sequence, Math.min(until, sequence + READ_BATCH_SIZE));
+            }
+            if (sequences.containsKey(sequence)) {
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+            Object firstSeen = cache.putIfAbsent(gapKey(streamId, sequence), now, 2 * SLOT_WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (firstSeen == null || now - (Long) firstSeen < SLOT_WRITE_TIMEOUT_MILLIS) {
+                return sequence;
+            }
+
+            // the appending node did not write the entry in time, a late append reserves another sequence number
+            Object jti = cache.putIfAbsent(sequenceKey(streamId, sequence), SKIPPED_SLOT, maxEventAgeMillis, TimeUnit.MILLISECONDS);
+            if (jti == null) {
+                log.warnf("Skipping unwritten sequence number %s of stream %s", sequence, streamId);
+            }
+            cache.remove(gapKey(streamId, sequence));
+        }
+        return until;
+    }
+
+    /**
+     * Leases the events of the given range of sequence numbers which are neither acknowledged nor leased, in sequence order.
+     *
+     * @param streamId
+     * @param from
+     * @param until
+     * @param maxEvents
+     * @param result
+     */
+    protected void leaseEvents(String streamId, long from, long until, int maxEvents, List<SecurityEventToken> result) {
+
+        for (long batchFrom = from; batchFrom < until && result.size() < maxEvents; batchFrom += READ_BATCH_SIZE) {
+            long batchUntil = Math.min(until, batchFrom + READ_BATCH_SIZE);
+            Map<Long, String> sequences = getSequences(streamId, batchFrom, batchUntil);
+
+            Set<String> keys = new HashSet<>();
+            for (String jti : sequences.values()) {
+                if (!SKIPPED_SLOT.equals(jti)) {
+                    keys.add(eventKey(streamId, jti));
+                    keys.add(leaseKey(streamId, jti));
+                }
+            }
+            Map<String, Object> entries = keys.isEmpty() ? Map.of() : cache.getAll(keys);
+
+            for (long sequence = batchFrom; sequence < batchUntil && result.size() < maxEvents; sequence++) {
+                String jti = sequences.get(sequence);
+                if (jti == null || SKIPPED_SLOT.equals(jti) || entries.containsKey(leaseKey(streamId, jti))) {
+                    continue;
+                }
+                if (!(entries.get(eventKey(streamId, jti)) instanceof String serializedEvent)) {
+                    // acknowledged or expired
+                    continue;
+                }
+                leaseEvent(streamId, jti, serializedEvent, result);
+            }
+        }
+    }
+
+    protected void leaseEvent(String streamId, String jti, String serializedEvent, List<SecurityEventToken> result) {
+
+        long deadline = System.currentTimeMillis() + leaseMillis;
+        if (cache.putIfAbsent(leaseKey(streamId, jti), deadline, leaseMillis, TimeUnit.MILLISECONDS) != null) {
+            // leased by another poll request
+            return;
+        }
+
+        try {
+            result.add(JsonSerialization.readValue(serializedEvent, SecurityEventToken.class));
+        } catch (IOException e) {
+            log.errorf(e, "Could not read event %s of stream %s. Discarding event", jti, streamId);
+            cache.remove(eventKey(streamId, jti));
+        }
+    }
+
+    /**
+     * Moves the low watermark of the stream over the sequence numbers whose events were acknowledged, expired or skipped.
+     * Sequence numbers below {@code head} are always written, since polls only claim written sequence numbers.
+     *
+     * @param streamId
+     * @param head
+     * @return the new low watermark
+     */
+    protected long advanceLow(String streamId, long head) {
+
+        long low = getCounter(lowKey(streamId));
+        long newLow = low;
+        scan:
+        while (newLow < head) {
+            long batchUntil = Math.min(head, newLow + READ_BATCH_SIZE);
+            Map<Long, String> sequences = getSequences(streamId, newLow, batchUntil);
+
+            Set<String> eventKeys = new HashSet<>();
+            for (String jti : sequences.values()) {
+                if (!SKIPPED_SLOT.equals(jti)) {
+                    eventKeys.add(eventKey(streamId, jti));
+                }
+            }
+            Set<String> retainedEventKeys = eventKeys.isEmpty() ? Set.of() : cache.getAll(eventKeys).keySet();
+
+            for (; newLow < batchUntil; newLow++) {
+                String jti = sequences.get(newLow);
+                if (jti != null && !SKIPPED_SLOT.equals(jti) && retainedEventKeys.contains(eventKey(streamId, jti))) {
+                    break scan;
+                }
+            }
+        }
+
+        if (newLow > low && compareAndSetCounter(lowKey(streamId), low, newLow)) {
+            for (long sequence = low; sequence < newLow; sequence++) {
+                cache.remove(sequenceKey(streamId, sequence));
+            }
+        }
+        return newLow;
+    }
+
+    @Override
+    public void acknowledgeEvent(String streamId, String eventId) {
+        cache.remove(eventKey(streamId, eventId));
+        cache.remove(leaseKey(streamId, eventId));
+    }
+
+    @Override
+    public void failedEvent(String streamId, String eventId) {
+        acknowledgeEvent(streamId, eventId);
+        log.debugf("Receiver reported error for event %s of stream %s", eventId, streamId);
+    }
+
+    @Override
+    public void deleteEvents(String streamId) {
+
+        long low = getCounter(lowKey(streamId));
+        long tail = getCounter(tailKey(streamId));
+
+        Set<String> sequenceKeys = new HashSet<>();
+        for (long sequence = low; sequence < tail; sequence++) {
+            sequenceKeys.add(sequenceKey(streamId, sequence));
+        }
+
+        for (Map.Entry<String, Object> entry : cache.getAll(sequenceKeys).entrySet()) {
+            String jti = (String) entry.getValue();
+            cache.remove(eventKey(streamId, jti));
+            cache.remove(leaseKey(streamId, jti));
+            cache.remove(entry.getKey());
+        }
+
+        cache.remove(lowKey(streamId));
+        cache.remove(headKey(streamId));
+        cache.remove(tailKey(streamId));
+    }
+
+    @Override
+    public boolean hasMoreEvents(String streamId) {
+        return getCounter(headKey(streamId)) < getCounter(tailKey(streamId));
+    }
+
+    protected long getCounter(String key) {
+        Object value = cache.get(key);
+        return value == null ? 0L : (Long) value;
+    }
+
+    protected boolean compareAndSetCounter(String key, long expected, long update) {
+        if (expected == 0L && cache.putIfAbsent(key, update) == null) {
+            return true;
+        }
+        return cache.replace(key, expected, update);
+    }
+
+    protected String tailKey(String streamId) {
+        return "tail:" + streamId;
+    }
+
+    protected String headKey(String streamId) {
+        return "head:" + streamId;
+    }
+
+    protected String lowKey(String streamId) {
+        return "low:" + streamId;
+    }
+
+    protected String sequenceKey(String streamId, long sequence) {
+        return "seq:" + streamId + ":" + sequence;
+    }
+
+    protected String gapKey(String streamId, long sequence) {
+        return "gap:" + streamId + ":" + sequence;
+    }
+
+    protected String eventKey(String streamId, String jti) {
+        return "evt:" + streamId + ":" + jti;
+    }
+
+    protected String leaseKey(String streamId, String jti) {
+        return "lease:" + streamId + ":" + jti;
+    }
+}
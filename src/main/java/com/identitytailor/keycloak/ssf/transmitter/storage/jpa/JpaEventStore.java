@@ -3,72 +3,218 @@ package com.identitytailor.keycloak.ssf.transmitter.storage.jpa;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
-import com.identitytailor.keycloak.ssf.transmitter.storage.SsfEventStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfEncodedEventStore;
 import jakarta.persistence.EntityManager;
-import jakarta.persistence.Query;
+import jakarta.persistence.LockModeType;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.utils.KeycloakModelUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
 
 /**
  * JPA implementation of EventStore that stores events in a relational database.
  */
 @JBossLog
-public class JpaEventStore implements SsfEventStore {
+public class JpaEventStore implements SsfEncodedEventStore {
+
+    /**
+     * Maximum number of ids per IN clause, well below the bind parameter limits of the supported databases.
+     */
+    public static final int UPDATE_CHUNK_SIZE = 500;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /**
+     * Time after which delivered but unacknowledged events are delivered again.
+     */
+    public static final long DEFAULT_LEASE_MILLIS = 30_000;
 
     private final KeycloakSession session;
     private final EntityManager em;
-    private final ObjectMapper objectMapper;
+    private final long leaseMillis;
+    private final boolean storeEncodedEvents;
+    private final boolean auditEventData;
+
+    /**
+     * Events stored in the current transaction which did not get a sequence number yet, sorted by stream id.
+     */
+    private final SortedMap<String, List<SsfEventEntity>> pendingEvents = new TreeMap<>();
 
     public JpaEventStore(KeycloakSession session) {
+        this(session, DEFAULT_LEASE_MILLIS, false, true);
+    }
+
+    /**
+     * @param session
+     * @param leaseMillis        Time after which unacknowledged events are delivered again
+     * @param storeEncodedEvents Whether the signed SET should be stored, so polls return it without re-signing
+     * @param auditEventData     Whether the event JSON should be kept alongside the signed SET
+     */
+    public JpaEventStore(KeycloakSession session, long leaseMillis, boolean storeEncodedEvents, boolean auditEventData) {
         this.session = session;
         this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
-        this.objectMapper = new ObjectMapper();
+        this.leaseMillis = leaseMillis;
+        this.storeEncodedEvents = storeEncodedEvents;
+        this.auditEventData = auditEventData;
+    }
+
+    @Override
+    public boolean isStoringEncodedEvents() {
+        return storeEncodedEvents;
     }
 
     @Override
     public void storeEvent(String streamId, SecurityEventToken event) {
+        storeEncodedEvent(streamId, event, null);
+    }
+
+    @Override
+    public void storeEncodedEvent(String streamId, SecurityEventToken event, String encodedEvent) {
         try {
             SsfEventEntity entity = new SsfEventEntity();
-            entity.setId(event.getJti());
+            entity.setId(KeycloakModelUtils.generateId());
+            entity.setJti(event.getJti());
+            entity.setRealmId(session.getContext().getRealm() == null ? null : session.getContext().getRealm().getId());
             entity.setStreamId(streamId);
-            entity.setEventData(objectMapper.writeValueAsString(event));
+            entity.setEncodedEvent(encodedEvent);
+            if (encodedEvent == null || auditEventData) {
+                entity.setEventData(OBJECT_MAPPER.writeValueAsString(event));
+            }
             entity.setCreatedAt(System.currentTimeMillis() / 1000);
             entity.setAcknowledged(false);
+            entity.setFailed(false);
 
-            em.persist(entity);
-            em.flush();
+            KeycloakTransactionManager transactionManager = session.getTransactionManager();
+            if (!transactionManager.isActive()) {
+                persistEvents(streamId, List.of(entity));
+                return;
+            }
+
+            if (pendingEvents.isEmpty()) {
+                // the sequence lock is only taken right before the commit, so it is not held during the rest of the request
+                transactionManager.enlistPrepare(new AbstractKeycloakTransaction() {
+                    @Override
+                    protected void commitImpl() {
+                        persistPendingEvents();
+                    }
+
+                    @Override
+                    protected void rollbackImpl() {
+                        pendingEvents.clear();
+                    }
+                });
+            }
+            pendingEvents.computeIfAbsent(streamId, id -> new ArrayList<>()).add(entity);
         } catch (JsonProcessingException e) {
             log.error("Error storing event", e);
             throw new RuntimeException("Error storing event", e);
         }
     }
 
+    /**
+     * Persists the events stored in the current transaction.
+     * <p>
+     * The sequences are locked in the order of the stream ids, so transactions storing events for several streams
+     * cannot deadlock each other.
+     */
+    protected void persistPendingEvents() {
+        try {
+            pendingEvents.forEach(this::persistEvents);
+        } finally {
+            pendingEvents.clear();
+        }
+    }
+
+    /**
+     * Assigns the next sequence numbers of the given stream to the events and persists them.
+     *
+     * @param streamId
+     * @param entities
+     */
+    protected void persistEvents(String streamId, List<SsfEventEntity> entities) {
+
+        SsfEventSequenceEntity sequence = lockSequence(streamId);
+        for (SsfEventEntity entity : entities) {
+            entity.setSequenceOrder(sequence.getNextSequence());
+            sequence.setNextSequence(sequence.getNextSequence() + 1);
+            em.persist(entity);
+        }
+        em.flush();
+    }
+
+    /**
+     * Loads the sequence of the given stream with a row lock, creating it if necessary.
+     * <p>
+     * The lock is held until the end of the transaction, so events of a stream become visible in sequence order
+     * and concurrent polls of a stream do not hand out the same events.
+     *
+     * @param streamId
+     * @return
+     */
+    protected SsfEventSequenceEntity lockSequence(String streamId) {
+
+        SsfEventSequenceEntity sequence = em.find(SsfEventSequenceEntity.class, streamId, LockModeType.PESSIMISTIC_WRITE);
+        if (sequence != null) {
+            return sequence;
+        }
+
+        // a missing row cannot be locked, so it is created in its own transaction and locked afterward
+        createSequence(streamId);
+
+        sequence = em.find(SsfEventSequenceEntity.class, streamId, LockModeType.PESSIMISTIC_WRITE);
+        if (sequence == null) {
+            throw new IllegalStateException("Could not create event sequence of stream " + streamId);
+        }
+        return sequence;
+    }
+
+    /**
+     * Creates the sequence of the given stream in a separate transaction, unless it exists already.
+     * A sequence created concurrently by another transaction makes the insert fail, which is ignored.
+     *
+     * @param streamId
+     */
+    protected void createSequence(String streamId) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), sequenceSession -> {
+                EntityManager sequenceEm = sequenceSession.getProvider(JpaConnectionProvider.class).getEntityManager();
+                if (sequenceEm.find(SsfEventSequenceEntity.class, streamId) != null) {
+                    return;
+                }
+                SsfEventSequenceEntity sequence = new SsfEventSequenceEntity();
+                sequence.setStreamId(streamId);
+                sequence.setNextSequence(1L);
+                sequence.setDeliveredSequence(0L);
+                sequenceEm.persist(sequence);
+            });
+        } catch (Exception e) {
+            log.debugf(e, "Event sequence of stream %s was created concurrently", streamId);
+        }
+    }
+
     @Override
     public List<SecurityEventToken> getEvents(String streamId, int maxEvents) {
         try {
-            var query = em.createQuery("""
-                            SELECT e 
-                            FROM SsfEventEntity e 
-                            WHERE e.streamId = :streamId 
-                            and e.acknowledged = false 
-                            and e.failed = false
-                            ORDER BY e.createdAt ASC
-                            """, SsfEventEntity.class) //
-                    .setParameter("streamId", streamId);
-            query.setMaxResults(maxEvents);
-
-            List<SsfEventEntity> entities = query.getResultList();
-            List<SecurityEventToken> events = new ArrayList<>();
-
+            List<SsfEventEntity> entities = claimPendingEvents(streamId, maxEvents);
+            List<SecurityEventToken> events = new ArrayList<>(entities.size());
             for (SsfEventEntity entity : entities) {
-                SecurityEventToken event = objectMapper.readValue(entity.getEventData(), SecurityEventToken.class);
-                events.add(event);
+                if (entity.getEventData() == null) {
+                    log.warnf("Event %s of stream %s was stored without event data. Skipping event", entity.getJti(), streamId);
+                    continue;
+                }
+                events.add(OBJECT_MAPPER.readValue(entity.getEventData(), SecurityEventToken.class));
             }
-
             return events;
         } catch (Exception e) {
             log.error("Error getting events", e);
@@ -76,12 +222,128 @@ public class JpaEventStore implements SsfEventStore {
         }
     }
 
+    @Override
+    public Map<String, String> getEncodedEvents(String streamId, int maxEvents, Function<SecurityEventToken, String> encoder) {
+        try {
+            List<SsfEventEntity> entities = claimPendingEvents(streamId, maxEvents);
+            Map<String, String> encodedEvents = new LinkedHashMap<>(entities.size());
+            for (SsfEventEntity entity : entities) {
+                if (entity.getEncodedEvent() != null) {
+                    encodedEvents.put(entity.getJti(), entity.getEncodedEvent());
+                } else if (entity.getEventData() != null) {
+                    // stored before signed SETs were kept
+                    SecurityEventToken event = OBJECT_MAPPER.readValue(entity.getEventData(), SecurityEventToken.class);
+                    encodedEvents.put(entity.getJti(), encoder.apply(event));
+                }
+            }
+            return encodedEvents;
+        } catch (Exception e) {
+            log.error("Error getting events", e);
+            return new LinkedHashMap<>();
+        }
+    }
+
+    /**
+     * Reads the events whose lease expired without an acknowledgement, followed by the next pending events after the
+     * delivery cursor of the stream, and advances the cursor.
+     *
+     * @param streamId
+     * @param maxEvents
+     * @return
+     */
+    protected List<SsfEventEntity> claimPendingEvents(String streamId, int maxEvents) {
+
+        SsfEventSequenceEntity sequence = lockSequence(streamId);
+        List<SsfEventEntity> entities = new ArrayList<>(claimExpiredDeliveries(sequence, maxEvents));
+
+        if (entities.size() < maxEvents) {
+            // keyset pagination from the last delivered sequence
+            List<SsfEventEntity> pending = em.createQuery("""
+                            SELECT e
+                            FROM SsfEventEntity e
+                            WHERE e.streamId = :streamId
+                            AND e.acknowledged = false
+                            AND e.failed = false
+                            AND e.sequenceOrder > :deliveredSequence
+                            ORDER BY e.sequenceOrder ASC
+                            """, SsfEventEntity.class)
+                    .setParameter("streamId", streamId)
+                    .setParameter("deliveredSequence", sequence.getDeliveredSequence())
+                    .setMaxResults(maxEvents - entities.size())
+                    .getResultList();
+            if (!pending.isEmpty()) {
+                sequence.setDeliveredSequence(pending.get(pending.size() - 1).getSequenceOrder());
+                entities.addAll(pending);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (SsfEventEntity entity : entities) {
+            entity.setDeliveredAt(now);
+        }
+
+        return entities;
+    }
+
+    /**
+     * Returns the events before the delivery cursor which were delivered but not acknowledged within the lease time.
+     * Events whose lease is still valid are not handed out again.
+     *
+     * @param sequence
+     * @param maxEvents
+     * @return
+     */
+    protected List<SsfEventEntity> claimExpiredDeliveries(SsfEventSequenceEntity sequence, int maxEvents) {
+
+        if (sequence.getDeliveredSequence() == 0L) {
+            return List.of();
+        }
+
+        List<SsfEventEntity> expired = em.createQuery("""
+                        SELECT e
+                        FROM SsfEventEntity e
+                        WHERE e.streamId = :streamId
+                        AND e.acknowledged = false
+                        AND e.failed = false
+                        AND e.sequenceOrder <= :deliveredSequence
+                        AND e.deliveredAt < :leaseExpiredBefore
+                        ORDER BY e.sequenceOrder ASC
+                        """, SsfEventEntity.class)
+                .setParameter("streamId", sequence.getStreamId())
+                .setParameter("deliveredSequence", sequence.getDeliveredSequence())
+                .setParameter("leaseExpiredBefore", System.currentTimeMillis() - leaseMillis)
+                .setMaxResults(maxEvents)
+                .getResultList();
+
+        if (!expired.isEmpty()) {
+            log.debugf("Redelivering %s events of stream %s with expired lease", expired.size(), sequence.getStreamId());
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the event with the given jti in the given stream.
+     *
+     * @param streamId
+     * @param jti
+     * @return the event, or {@literal null} if it does not exist
+     */
+    protected SsfEventEntity findEvent(String streamId, String jti) {
+        return em.createQuery("SELECT e FROM SsfEventEntity e WHERE e.streamId = :streamId AND e.jti = :jti", SsfEventEntity.class)
+                .setParameter("streamId", streamId)
+                .setParameter("jti", jti)
+                .getResultStream()
+                .findFirst()
+                .orElse(null);
+    }
+
     @Override
     public void acknowledgeEvent(String streamId, String eventId) {
         try {
-            SsfEventEntity entity = em.find(SsfEventEntity.class, eventId);
-            if (entity != null && streamId.equals(entity.getStreamId())) {
+            SsfEventEntity entity = findEvent(streamId, eventId);
+            if (entity != null) {
                 entity.setAcknowledged(true);
+                entity.setCompletedAt(System.currentTimeMillis());
                 em.merge(entity);
                 em.flush();
             }
@@ -94,10 +356,11 @@ public class JpaEventStore implements SsfEventStore {
     @Override
     public void failedEvent(String streamId, String eventId) {
         try {
-            SsfEventEntity entity = em.find(SsfEventEntity.class, eventId);
-            if (entity != null && streamId.equals(entity.getStreamId())) {
+            SsfEventEntity entity = findEvent(streamId, eventId);
+            if (entity != null) {
                 entity.setAcknowledged(false);
                 entity.setFailed(true);
+                entity.setCompletedAt(System.currentTimeMillis());
                 em.merge(entity);
                 em.flush();
             }
@@ -107,16 +370,157 @@ public class JpaEventStore implements SsfEventStore {
         }
     }
 
+    @Override
+    public void acknowledgeEvents(String streamId, Set<String> eventIds) {
+        try {
+            int updated = updateEvents(streamId, eventIds, """
+                    UPDATE SsfEventEntity e
+                    SET e.acknowledged = true, e.completedAt = :completedAt
+                    WHERE e.streamId = :streamId AND e.jti IN :ids
+                    """);
+            log.debugf("Acknowledged %s of %s events for stream %s", updated, eventIds.size(), streamId);
+        } catch (Exception e) {
+            log.error("Error acknowledging events", e);
+            throw new RuntimeException("Error acknowledging events", e);
+        }
+    }
+
+    @Override
+    public void failEvents(String streamId, Set<String> eventIds) {
+        try {
+            int updated = updateEvents(streamId, eventIds, """
+                    UPDATE SsfEventEntity e
+                    SET e.acknowledged = false, e.failed = true, e.completedAt = :completedAt
+                    WHERE e.streamId = :streamId AND e.jti IN :ids
+                    """);
+            log.debugf("Marked %s of %s events as failed for stream %s", updated, eventIds.size(), streamId);
+        } catch (Exception e) {
+            log.error("Error marking events as failed", e);
+            throw new RuntimeException("Error marking events as failed", e);
+        }
+    }
+
+    /**
+     * Runs the given bulk update for the event ids in chunks of {@link #UPDATE_CHUNK_SIZE}.
+     *
+     * @param streamId
+     * @param eventIds
+     * @param jpql     update statement with the {@code streamId}, {@code ids} and {@code completedAt} parameters
+     * @return the number of updated events
+     */
+    protected int updateEvents(String streamId, Set<String> eventIds, String jpql) {
+
+        if (eventIds.isEmpty()) {
+            return 0;
+        }
+
+        // pending changes must reach the database before the bulk update bypasses the persistence context
+        em.flush();
+
+        List<String> ids = new ArrayList<>(eventIds);
+        long completedAt = System.currentTimeMillis();
+        int updated = 0;
+        for (int from = 0; from < ids.size(); from += UPDATE_CHUNK_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + UPDATE_CHUNK_SIZE, ids.size()));
+            updated += em.createQuery(jpql)
+                    .setParameter("streamId", streamId)
+                    .setParameter("ids", chunk)
+                    .setParameter("completedAt", completedAt)
+                    .executeUpdate();
+        }
+        return updated;
+    }
+
+    @Override
+    public void deleteEvents(String streamId) {
+        try {
+            em.createQuery("DELETE FROM SsfEventEntity e WHERE e.streamId = :streamId")
+                    .setParameter("streamId", streamId)
+                    .executeUpdate();
+            em.createQuery("DELETE FROM SsfEventSequenceEntity s WHERE s.streamId = :streamId")
+                    .setParameter("streamId", streamId)
+                    .executeUpdate();
+        } catch (Exception e) {
+            log.error("Error deleting events", e);
+            throw new RuntimeException("Error deleting events", e);
+        }
+    }
+
+    /**
+     * Deletes up to {@code batchSize} acknowledged or failed events which were completed before the given time.
+     * <p>
+     * Callers should run every batch in its own transaction, so that row locks are only held for a single batch.
+     *
+     * @param acknowledged      Whether acknowledged or failed events should be purged
+     * @param completedBefore   Time in millis before which the events must have been completed
+     * @param batchSize
+     * @return the number of deleted events
+     */
+    public int purgeCompletedEvents(boolean acknowledged, long completedBefore, int batchSize) {
+
+        List<String> ids = em.createQuery("""
+                        SELECT e.id
+                        FROM SsfEventEntity e
+                        WHERE e.completedAt < :completedBefore
+                        AND e.acknowledged = :acknowledged
+                        AND e.failed = :failed
+                        """, String.class)
+                .setParameter("completedBefore", completedBefore)
+                .setParameter("acknowledged", acknowledged)
+                .setParameter("failed", !acknowledged)
+                .setMaxResults(batchSize)
+                .getResultList();
+
+        int deleted = 0;
+        for (int from = 0; from < ids.size(); from += UPDATE_CHUNK_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + UPDATE_CHUNK_SIZE, ids.size()));
+            deleted += em.createQuery("DELETE FROM SsfEventEntity e WHERE e.id IN :ids")
+                    .setParameter("ids", chunk)
+                    .executeUpdate();
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes all events and delivery cursors of the streams in the given realm.
+     *
+     * @param realmId
+     * @return the number of deleted events
+     */
+    public int deleteRealmEvents(String realmId) {
+
+        em.createQuery("""
+                        DELETE FROM SsfEventSequenceEntity s
+                        WHERE s.streamId IN (SELECT DISTINCT e.streamId FROM SsfEventEntity e WHERE e.realmId = :realmId)
+                        """)
+                .setParameter("realmId", realmId)
+                .executeUpdate();
+
+        return em.createQuery("DELETE FROM SsfEventEntity e WHERE e.realmId = :realmId")
+                .setParameter("realmId", realmId)
+                .executeUpdate();
+    }
+
     @Override
     public boolean hasMoreEvents(String streamId) {
         try {
-            Query query = em.createQuery("""
-                    SELECT COUNT(e) 
-                    FROM SsfEventEntity e 
-                    WHERE e.streamId = :streamId AND e.acknowledged = false
-                    """).setParameter("streamId", streamId);
-            Long count = (Long) query.getSingleResult();
-            return count > 0;
+            SsfEventSequenceEntity sequence = em.find(SsfEventSequenceEntity.class, streamId);
+            long deliveredSequence = sequence == null ? 0L : sequence.getDeliveredSequence();
+
+            // probe for a single pending event instead of counting all of them
+            List<String> pending = em.createQuery("""
+                            SELECT e.id
+                            FROM SsfEventEntity e
+                            WHERE e.streamId = :streamId
+                            AND e.acknowledged = false
+                            AND e.failed = false
+                            AND e.sequenceOrder > :deliveredSequence
+                            """, String.class)
+                    .setParameter("streamId", streamId)
+                    .setParameter("deliveredSequence", deliveredSequence)
+                    .setMaxResults(1)
+                    .getResultList();
+            return !pending.isEmpty();
         } catch (Exception e) {
             log.error("Error checking for more events", e);
             return false;
@@ -0,0 +1,263 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.jpa;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.IntToLongFunction;
+
+/**
+ * JPA backed outbox for SETs which have to be delivered to PUSH streams.
+ * <p>
+ * Rows are written in the transaction which produced the SET and removed once the receiver accepted the SET.
+ * Due rows are claimed in bulk with a claim token, so that concurrent schedulers on different nodes never deliver the same row twice.
+ * A queued row is claimed again right before its delivery, and the outcome of a failed delivery is only recorded by the current owner of the claim.
+ */
+public class JpaPushOutboxStore {
+
+    private final EntityManager em;
+
+    public JpaPushOutboxStore(KeycloakSession session) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /**
+     * Adds a SET to the outbox.
+     *
+     * @param realmId
+     * @param streamId
+     * @param eventId
+     * @param encodedEvent
+     * @param nextAttemptAt time in millis after which the SET may be picked up by the retry scheduler
+     * @return the id of the outbox entry
+     */
+    public String add(String realmId, String streamId, String eventId, String encodedEvent, long nextAttemptAt) {
+
+        SsfPushOutboxEntity entity = new SsfPushOutboxEntity();
+        entity.setId(KeycloakModelUtils.generateId());
+        entity.setRealmId(realmId);
+        entity.setStreamId(streamId);
+        entity.setEventId(eventId);
+        entity.setEncodedEvent(encodedEvent);
+        entity.setStatus(SsfPushOutboxEntity.STATUS_PENDING);
+        entity.setAttempts(0);
+        entity.setNextAttemptAt(nextAttemptAt);
+        entity.setCreatedAt(System.currentTimeMillis());
+
+        em.persist(entity);
+        return entity.getId();
+    }
+
+    /**
+     * Claims up to {@code maxResults} pending entries which are due at {@code now}, ordered by their next attempt.
+     *
+     * @param now         current time in millis
+     * @param leaseUntil  time in millis until the claimed entries are hidden from other schedulers
+     * @param maxResults
+     * @return the claimed entries
+     */
+    public List<SsfPushOutboxEntity> claimDue(long now, long leaseUntil, int maxResults) {
+
+        List<String> dueIds = em.createQuery("""
+                        SELECT o.id
+                        FROM SsfPushOutboxEntity o
+                        WHERE o.status = :status
+                        AND o.nextAttemptAt <= :now
+                        ORDER BY o.nextAttemptAt ASC
+                        """, String.class)
+                .setParameter("status", SsfPushOutboxEntity.STATUS_PENDING)
+                .setParameter("now", now)
+                .setMaxResults(maxResults)
+                .getResultList();
+
+        if (dueIds.isEmpty()) {
+            return List.of();
+        }
+
+        String claimToken = KeycloakModelUtils.generateId();
+        int claimed = em.createQuery("""
+                        UPDATE SsfPushOutboxEntity o
+                        SET o.claimToken = :claimToken, o.nextAttemptAt = :leaseUntil
+                        WHERE o.id IN :ids
+                        AND o.status = :status
+                        AND o.nextAttemptAt <= :now
+                        """)
+                .setParameter("claimToken", claimToken)
+                .setParameter("leaseUntil", leaseUntil)
+                .setParameter("ids", dueIds)
+                .setParameter("status", SsfPushOutboxEntity.STATUS_PENDING)
+                .setParameter("now", now)
+                .executeUpdate();
+
+        if (claimed == 0) {
+            return List.of();
+        }
+
+        return em.createQuery("""
+                        SELECT o
+                        FROM SsfPushOutboxEntity o
+                        WHERE o.claimToken = :claimToken
+                        ORDER BY o.nextAttemptAt ASC
+                        """, SsfPushOutboxEntity.class)
+                .setParameter("claimToken", claimToken)
+                .getResultList();
+    }
+
+    /**
+     * Takes over the claim of a pending entry, if it is still held with the given claim token.
+     *
+     * @param id
+     * @param claimToken the claim token the entry is expected to have, or {@literal null} if it is expected to be unclaimed
+     * @param leaseUntil time in millis until the entry is hidden from the schedulers
+     * @return the new claim token, or {@literal null} if the entry was claimed by someone else, completed or removed
+     */
+    public String claim(String id, String claimToken, long leaseUntil) {
+
+        String newClaimToken = KeycloakModelUtils.generateId();
+        int claimed = em.createQuery("""
+                        UPDATE SsfPushOutboxEntity o
+                        SET o.claimToken = :newClaimToken, o.nextAttemptAt = :leaseUntil
+                        WHERE o.id = :id
+                        AND o.status = :status
+                        AND COALESCE(o.claimToken, '') = :claimToken
+                        """)
+                .setParameter("newClaimToken", newClaimToken)
+                .setParameter("leaseUntil", leaseUntil)
+                .setParameter("id", id)
+                .setParameter("status", SsfPushOutboxEntity.STATUS_PENDING)
+                .setParameter("claimToken", claimToken == null ? "" : claimToken)
+                .executeUpdate();
+
+        return claimed == 0 ? null : newClaimToken;
+    }
+
+    /**
+     * Removes a delivered entry.
+     *
+     * @param id
+     */
+    public void remove(String id) {
+        em.createQuery("DELETE FROM SsfPushOutboxEntity o WHERE o.id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
+    }
+
+    /**
+     * Removes all entries of the given stream.
+     *
+     * @param streamId
+     * @return the number of removed entries
+     */
+    public int removeStream(String streamId) {
+        return em.createQuery("DELETE FROM SsfPushOutboxEntity o WHERE o.streamId = :streamId")
+                .setParameter("streamId", streamId)
+                .executeUpdate();
+    }
+
+    /**
+     * Removes all entries of the given realm.
+     *
+     * @param realmId
+     * @return the number of removed entries
+     */
+    public int removeRealm(String realmId) {
+        return em.createQuery("DELETE FROM SsfPushOutboxEntity o WHERE o.realmId = :realmId")
+                .setParameter("realmId", realmId)
+                .executeUpdate();
+    }
+
+    /**
+     * Removes up to {@code maxResults} failed entries whose last attempt was scheduled before the given time.
+     *
+     * @param failedBefore time in millis
+     * @param maxResults
+     * @return the number of removed entries
+     */
+    public int purgeFailed(long failedBefore, int maxResults) {
+
+        List<String> ids = em.createQuery("""
+                        SELECT o.id
+                        FROM SsfPushOutboxEntity o
+                        WHERE o.status = :status
+                        AND o.nextAttemptAt < :failedBefore
+                        """, String.class)
+                .setParameter("status", SsfPushOutboxEntity.STATUS_FAILED)
+                .setParameter("failedBefore", failedBefore)
+                .setMaxResults(maxResults)
+                .getResultList();
+
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        return em.createQuery("DELETE FROM SsfPushOutboxEntity o WHERE o.id IN :ids")
+                .setParameter("ids", ids)
+                .executeUpdate();
+    }
+
+    /**
+     * Releases the claim of an entry and schedules its next attempt without counting an attempt.
+     *
+     * @param id
+     * @param claimToken    the claim token of the caller
+     * @param nextAttemptAt time in millis
+     */
+    public void postpone(String id, String claimToken, long nextAttemptAt) {
+
+        SsfPushOutboxEntity entity = findClaimed(id, claimToken);
+        if (entity == null) {
+            return;
+        }
+
+        entity.setClaimToken(null);
+        entity.setNextAttemptAt(nextAttemptAt);
+    }
+
+    /**
+     * Records a failed delivery attempt.
+     *
+     * @param id
+     * @param claimToken    the claim token of the caller
+     * @param maxAttempts   number of attempts after which the entry is marked as failed
+     * @param nextAttemptAt computes the time in millis of the next attempt from the number of attempts made so far
+     * @param error
+     * @return the number of attempts made so far, or -1 if the entry does not exist or is claimed by someone else
+     */
+    public int recordFailedAttempt(String id, String claimToken, int maxAttempts, IntToLongFunction nextAttemptAt, String error) {
+
+        SsfPushOutboxEntity entity = findClaimed(id, claimToken);
+        if (entity == null) {
+            return -1;
+        }
+
+        int attempts = entity.getAttempts() + 1;
+        entity.setAttempts(attempts);
+        entity.setClaimToken(null);
+        entity.setNextAttemptAt(nextAttemptAt.applyAsLong(attempts));
+        entity.setLastError(error == null || error.length() <= 1024 ? error : error.substring(0, 1024));
+        if (attempts >= maxAttempts) {
+            entity.setStatus(SsfPushOutboxEntity.STATUS_FAILED);
+        }
+        return attempts;
+    }
+
+    /**
+     * Loads an entry with a row lock, if it is still claimed with the given claim token.
+     *
+     * @param id
+     * @param claimToken
+     * @return the entry, or {@literal null} if it does not exist or is claimed by someone else
+     */
+    protected SsfPushOutboxEntity findClaimed(String id, String claimToken) {
+
+        SsfPushOutboxEntity entity = em.find(SsfPushOutboxEntity.class, id, LockModeType.PESSIMISTIC_WRITE);
+        if (entity == null || !Objects.equals(entity.getClaimToken(), claimToken)) {
+            return null;
+        }
+        return entity;
+    }
+}
@@ -57,9 +57,9 @@ public class JpaStreamStore implements SsfStreamStore {
     }
 
     @Override
-    public StreamStatus updateStreamStatus(String streamId, StreamStatus streamStatus) {
+    public StreamStatus updateStreamStatus(String realmId, String streamId, StreamStatus streamStatus) {
 
-        SsfStreamEntity stream = em.find(SsfStreamEntity.class, streamId);
+        SsfStreamEntity stream = findStream(realmId, streamId);
         if (stream == null) {
             return null;
         }
@@ -72,8 +72,11 @@ public class JpaStreamStore implements SsfStreamStore {
     }
 
     @Override
-    public StreamStatus getStreamStatus(String streamId) {
-        SsfStreamEntity entity = em.find(SsfStreamEntity.class, streamId);
+    public StreamStatus getStreamStatus(String realmId, String streamId) {
+        SsfStreamEntity entity = findStream(realmId, streamId);
+        if (entity == null) {
+            return null;
+        }
         StreamStatus streamStatus = new StreamStatus();
         streamStatus.setStreamId(streamId);
         streamStatus.setStatus(entity.getStatus());
@@ -82,9 +85,9 @@ public class JpaStreamStore implements SsfStreamStore {
     }
 
     @Override
-    public StreamConfiguration getStream(String streamId) {
+    public StreamConfiguration getStream(String realmId, String streamId) {
         try {
-            SsfStreamEntity entity = em.find(SsfStreamEntity.class, streamId);
+            SsfStreamEntity entity = findStream(realmId, streamId);
             
             if (entity == null) {
                 return null;
@@ -113,9 +116,31 @@ public class JpaStreamStore implements SsfStreamStore {
     }
 
     @Override
-    public void deleteStream(String streamId) {
+    public List<StreamConfiguration> getStreams(String realmId) {
         try {
-            SsfStreamEntity entity = em.find(SsfStreamEntity.class, streamId);
+            return em.createQuery("SELECT s FROM SsfStreamEntity s WHERE s.realmId = :realmId", SsfStreamEntity.class)
+                    .setParameter("realmId", realmId)
+                    .getResultList()
+                    .stream()
+                    .map(this::toModel)
+                    .collect(Collectors.toList());
+        } catch (Exception e) {
+            logger.error("Error getting stream configurations of realm", e);
+            return new ArrayList<>();
+        }
+    }
+
+    @Override
+    public void deleteStreams(String realmId) {
+        em.createQuery("DELETE FROM SsfStreamEntity s WHERE s.realmId = :realmId")
+                .setParameter("realmId", realmId)
+                .executeUpdate();
+    }
+
+    @Override
+    public void deleteStream(String realmId, String streamId) {
+        try {
+            SsfStreamEntity entity = findStream(realmId, streamId);
             
             if (entity != null) {
                 em.remove(entity);
@@ -127,6 +152,21 @@ public class JpaStreamStore implements SsfStreamStore {
         }
     }
 
+    /**
+     * Loads the stream with the given ID, unless it belongs to another realm.
+     *
+     * @param realmId
+     * @param streamId
+     * @return
+     */
+    protected SsfStreamEntity findStream(String realmId, String streamId) {
+        if (realmId == null || streamId == null) {
+            return null;
+        }
+        SsfStreamEntity entity = em.find(SsfStreamEntity.class, streamId);
+        return entity != null && realmId.equals(entity.getRealmId()) ? entity : null;
+    }
+
     /**
      * Converts a StreamConfiguration model to a StreamEntity.
      *
@@ -137,6 +177,7 @@ public class JpaStreamStore implements SsfStreamStore {
         try {
             SsfStreamEntity entity = new SsfStreamEntity();
             entity.setId(model.getStreamId());
+            entity.setRealmId(model.getRealmId());
             entity.setDescription(model.getDescription());
             entity.setStatus(model.getStatus());
             entity.setCreatedAt(model.getCreatedAt());
@@ -176,6 +217,7 @@ public class JpaStreamStore implements SsfStreamStore {
         try {
             StreamConfiguration model = new StreamConfiguration();
             model.setStreamId(entity.getId());
+            model.setRealmId(entity.getRealmId());
             model.setDescription(entity.getDescription());
             model.setStatus(entity.getStatus());
             model.setStatusReason(entity.getStatusReason());
@@ -0,0 +1,77 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.jpa;
+
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfSubjectStore;
+import jakarta.persistence.EntityManager;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * JPA implementation of {@link SsfSubjectStore} backed by the {@code SSF_STREAM_SUBJECT} table.
+ */
+public class JpaSubjectStore implements SsfSubjectStore {
+
+    private final EntityManager em;
+
+    public JpaSubjectStore(KeycloakSession session) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    @Override
+    public boolean addSubject(String realmId, String streamId, String userId) {
+
+        if (findSubject(streamId, userId) != null) {
+            return false;
+        }
+
+        SsfStreamSubjectEntity entity = new SsfStreamSubjectEntity();
+        entity.setId(KeycloakModelUtils.generateId());
+        entity.setRealmId(realmId);
+        entity.setStreamId(streamId);
+        entity.setUserId(userId);
+        entity.setCreatedAt(System.currentTimeMillis());
+        em.persist(entity);
+        return true;
+    }
+
+    @Override
+    public boolean removeSubject(String streamId, String userId) {
+        return em.createQuery("DELETE FROM SsfStreamSubjectEntity s WHERE s.streamId = :streamId AND s.userId = :userId")
+                       .setParameter("streamId", streamId)
+                       .setParameter("userId", userId)
+                       .executeUpdate() > 0;
+    }
+
+    @Override
+    public Set<String> getSubjects(String streamId) {
+        return new HashSet<>(em.createQuery("SELECT s.userId FROM SsfStreamSubjectEntity s WHERE s.streamId = :streamId", String.class)
+                .setParameter("streamId", streamId)
+                .getResultList());
+    }
+
+    protected SsfStreamSubjectEntity findSubject(String streamId, String userId) {
+        return em.createQuery("SELECT s FROM SsfStreamSubjectEntity s WHERE s.streamId = :streamId AND s.userId = :userId", SsfStreamSubjectEntity.class)
+                .setParameter("streamId", streamId)
+                .setParameter("userId", userId)
+                .getResultStream()
+                .findFirst()
+                .orElse(null);
+    }
+
+    @Override
+    public void deleteSubjects(String streamId) {
+        em.createQuery("DELETE FROM SsfStreamSubjectEntity s WHERE s.streamId = :streamId")
+                .setParameter("streamId", streamId)
+                .executeUpdate();
+    }
+
+    @Override
+    public void deleteRealmSubjects(String realmId) {
+        em.createQuery("DELETE FROM SsfStreamSubjectEntity s WHERE s.realmId = :realmId")
+                .setParameter("realmId", realmId)
+                .executeUpdate();
+    }
+}
@@ -3,38 +3,70 @@ package com.identitytailor.keycloak.ssf.transmitter.storage.jpa;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
 import lombok.Data;
 
 /**
  * JPA entity for storing SSF events in a relational database.
  */
 @Entity
-@Table(name = "SSF_EVENT")
+@Table(name = "SSF_EVENT", uniqueConstraints = {
+        @UniqueConstraint(name = "UK_SSF_EVENT_STREAM_JTI", columnNames = {"STREAM_ID", "JTI"})
+}, indexes = {
+        @Index(name = "IDX_SSF_EVENT_STREAM_PENDING", columnList = "STREAM_ID, ACKNOWLEDGED, FAILED, SEQUENCE_ORDER"),
+        @Index(name = "IDX_SSF_EVENT_COMPLETED", columnList = "COMPLETED_AT"),
+        @Index(name = "IDX_SSF_EVENT_REALM", columnList = "REALM_ID, STREAM_ID")
+})
 @Data
 public class SsfEventEntity {
     
     @Id
     private String id;
 
+    /**
+     * The jti of the SET, unique per stream since a SET is stored once for every stream it is delivered to.
+     */
+    @Column(name = "JTI", nullable = false)
+    private String jti;
+
     @Column(name = "REALM_ID")
     private String realmId;
     
     @Column(name = "STREAM_ID")
     private String streamId;
     
-    @Column(name = "EVENT_DATA", nullable = false, columnDefinition = "TEXT")
+    /**
+     * The event as JSON, only kept for audits if the signed SET is stored.
+     */
+    @Column(name = "EVENT_DATA", columnDefinition = "TEXT")
     private String eventData;
+
+    /**
+     * The signed SET as returned to the receiver.
+     */
+    @Column(name = "ENCODED_EVENT", columnDefinition = "TEXT")
+    private String encodedEvent;
     
     @Column(name = "CREATED_AT", nullable = false)
     private Long createdAt;
     
-    @Column(nullable = false)
+    @Column(name = "ACKNOWLEDGED", nullable = false)
     private Boolean acknowledged = false;
 
-    @Column
+    @Column(name = "FAILED")
     private Boolean failed = false;
     
     @Column(name = "SEQUENCE_ORDER", nullable = false)
     private Long sequenceOrder;
+
+    @Column(name = "DELIVERED_AT")
+    private Long deliveredAt;
+
+    /**
+     * Time in millis at which the event was acknowledged or marked as failed, used for retention.
+     */
+    @Column(name = "COMPLETED_AT")
+    private Long completedAt;
 }
@@ -0,0 +1,197 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.jpa;
+
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
+import lombok.extern.jbosslog.JBossLog;
+import org.infinispan.Cache;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically deletes acknowledged and failed events from the {@code SSF_EVENT} table once their retention expired.
+ * <p>
+ * Every node schedules the purge, but only one node per interval runs it. {@link ClusterProvider#executeIfNotExecuted} keeps nodes
+ * from purging concurrently, and the start of the last run is recorded in the replicated work cache for one interval, so that
+ * nodes whose schedule fires later within the same interval skip the purge.
+ * Events are deleted in batches with a transaction per batch, so that no long running lock is held on the table.
+ */
+@JBossLog
+public class SsfEventPurgeScheduler {
+
+    public static final String TASK_KEY = "ssf-event-purge";
+
+    public static final String LAST_RUN_CACHE_KEY = "ssf-event-purge::last-run";
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 15 * 60 * 1000L;
+
+    public static final long DEFAULT_ACKNOWLEDGED_RETENTION_MILLIS = 24 * 60 * 60 * 1000L;
+
+    public static final long DEFAULT_FAILED_RETENTION_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    private final long intervalMillis;
+
+    private final long acknowledgedRetentionMillis;
+
+    private final long failedRetentionMillis;
+
+    private final int batchSize;
+
+    private final AtomicLong purgeRuns = new AtomicLong();
+
+    private final AtomicLong purgedAcknowledgedEvents = new AtomicLong();
+
+    private final AtomicLong purgedFailedEvents = new AtomicLong();
+
+    private final AtomicLong purgeTimeMillis = new AtomicLong();
+
+    private final AtomicLong lastPurgeTimeMillis = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+    public SsfEventPurgeScheduler(KeycloakSessionFactory sessionFactory, long intervalMillis, long acknowledgedRetentionMillis, long failedRetentionMillis, int batchSize) {
+        this.sessionFactory = sessionFactory;
+        this.intervalMillis = intervalMillis;
+        this.acknowledgedRetentionMillis = acknowledgedRetentionMillis;
+        this.failedRetentionMillis = failedRetentionMillis;
+        this.batchSize = batchSize;
+    }
+
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("ssf-event-purge").factory());
+        executor.scheduleWithFixedDelay(this::run, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.debugf("Started event purge scheduler. interval=%sms acknowledgedRetention=%sms failedRetention=%sms batchSize=%s",
+                intervalMillis, acknowledgedRetentionMillis, failedRetentionMillis, batchSize);
+    }
+
+    protected void run() {
+        try {
+            // the task timeout only bounds a purge of a node which died while purging
+            int taskTimeoutSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(intervalMillis));
+            ExecutionResult<Boolean> result = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+                    session.getProvider(ClusterProvider.class).executeIfNotExecuted(TASK_KEY, taskTimeoutSeconds, () -> {
+                        if (!markRun(session)) {
+                            return false;
+                        }
+                        purge();
+                        return true;
+                    }));
+            if (!result.isExecuted() || !Boolean.TRUE.equals(result.getResult())) {
+                log.tracef("Event purge already executed by another node");
+            }
+        } catch (Exception e) {
+            log.warn("Error purging events", e);
+        }
+    }
+
+    /**
+     * Records the start of a purge run in the work cache, unless a run started within the last interval.
+     *
+     * @param session
+     * @return true if the purge should run, false if another node purged within the last interval
+     */
+    protected boolean markRun(KeycloakSession session) {
+
+        InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+        if (infinispan == null) {
+            return true;
+        }
+
+        Cache<String, Object> workCache = infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+        Object lastRun = workCache.putIfAbsent(LAST_RUN_CACHE_KEY, Long.toString(System.currentTimeMillis()), intervalMillis, TimeUnit.MILLISECONDS);
+        if (lastRun != null) {
+            log.tracef("Skipping event purge. Last run started at %s", lastRun);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Purges all acknowledged and failed events whose retention expired.
+     */
+    public void purge() {
+
+        long start = System.currentTimeMillis();
+
+        long acknowledged = purge(true, start - acknowledgedRetentionMillis);
+        long failed = purge(false, start - failedRetentionMillis);
+
+        long duration = System.currentTimeMillis() - start;
+        purgeRuns.incrementAndGet();
+        purgedAcknowledgedEvents.addAndGet(acknowledged);
+        purgedFailedEvents.addAndGet(failed);
+        purgeTimeMillis.addAndGet(duration);
+        lastPurgeTimeMillis.set(duration);
+
+        log.debugf("Purged events. acknowledged=%s failed=%s duration=%sms", acknowledged, failed, duration);
+    }
+
+    protected long purge(boolean acknowledged, long completedBefore) {
+
+        long purged = 0;
+        int deleted;
+        do {
+            // a transaction per batch keeps row locks short
+            deleted = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+                    new JpaEventStore(session).purgeCompletedEvents(acknowledged, completedBefore, batchSize));
+            purged += deleted;
+        } while (deleted == batchSize && !Thread.currentThread().isInterrupted());
+        return purged;
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public long getPurgeRuns() {
+        return purgeRuns.get();
+    }
+
+    public long getPurgedAcknowledgedEvents() {
+        return purgedAcknowledgedEvents.get();
+    }
+
+    public long getPurgedFailedEvents() {
+        return purgedFailedEvents.get();
+    }
+
+    public long getPurgeTimeMillis() {
+        return purgeTimeMillis.get();
+    }
+
+    public long getLastPurgeTimeMillis() {
+        return lastPurgeTimeMillis.get();
+    }
+
+    public void registerMetrics(SsfMetrics metrics) {
+        metrics.timer("event.purge", "Event purge runs on this node and the time spent in them", this, SsfEventPurgeScheduler::getPurgeRuns, SsfEventPurgeScheduler::getPurgeTimeMillis);
+        metrics.counter("event.purge.acknowledged", "Acknowledged events purged on this node", this, SsfEventPurgeScheduler::getPurgedAcknowledgedEvents);
+        metrics.counter("event.purge.failed", "Failed events purged on this node", this, SsfEventPurgeScheduler::getPurgedFailedEvents);
+        metrics.gauge("event.purge.last.duration.millis", "Duration of the last event purge run on this node", this, SsfEventPurgeScheduler::getLastPurgeTimeMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "SsfEventPurgeScheduler{" +
+               "purgeRuns=" + purgeRuns.get() +
+               ", purgedAcknowledgedEvents=" + purgedAcknowledgedEvents.get() +
+               ", purgedFailedEvents=" + purgedFailedEvents.get() +
+               ", purgeTimeMillis=" + purgeTimeMillis.get() +
+               ", lastPurgeTimeMillis=" + lastPurgeTimeMillis.get() +
+               '}';
+    }
+}
@@ -0,0 +1,32 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Data;
+
+/**
+ * JPA entity for the event sequence and delivery cursor of a POLL stream.
+ */
+@Entity
+@Table(name = "SSF_EVENT_SEQUENCE")
+@Data
+public class SsfEventSequenceEntity {
+
+    @Id
+    @Column(name = "STREAM_ID")
+    private String streamId;
+
+    /**
+     * The sequence number of the next stored event.
+     */
+    @Column(name = "NEXT_SEQUENCE", nullable = false)
+    private Long nextSequence;
+
+    /**
+     * The highest sequence number handed out to the receiver.
+     */
+    @Column(name = "DELIVERED_SEQUENCE", nullable = false)
+    private Long deliveredSequence;
+}
@@ -0,0 +1,70 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.jpa;
+
+import com.google.auto.service.AutoService;
+import com.identitytailor.keycloak.ssf.storage.jpa.SsfReceiverAckEntity;
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.List;
+
+/**
+ * Registers the SSF JPA entities and their Liquibase changelog.
+ */
+public class SsfJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(SsfStreamEntity.class, SsfEventEntity.class, SsfEventSequenceEntity.class, SsfPushOutboxEntity.class, SsfStreamSubjectEntity.class, SsfReceiverAckEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/ssf-changelog-master.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return Factory.ID;
+    }
+
+    @Override
+    public void close() {
+        // NOOP
+    }
+
+    @AutoService(JpaEntityProviderFactory.class)
+    public static class Factory implements JpaEntityProviderFactory {
+
+        public static final String ID = "ssf-entities";
+
+        private static final SsfJpaEntityProvider INSTANCE = new SsfJpaEntityProvider();
+
+        @Override
+        public JpaEntityProvider create(KeycloakSession session) {
+            return INSTANCE;
+        }
+
+        @Override
+        public void init(Config.Scope config) {
+            // NOOP
+        }
+
+        @Override
+        public void postInit(KeycloakSessionFactory factory) {
+            // NOOP
+        }
+
+        @Override
+        public void close() {
+            // NOOP
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+}
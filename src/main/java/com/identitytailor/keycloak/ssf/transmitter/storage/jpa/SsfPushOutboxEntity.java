@@ -0,0 +1,53 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Data;
+
+/**
+ * JPA entity for SETs waiting to be delivered to a PUSH stream.
+ */
+@Entity
+@Table(name = "SSF_PUSH_OUTBOX")
+@Data
+public class SsfPushOutboxEntity {
+
+    public static final String STATUS_PENDING = "PENDING";
+
+    public static final String STATUS_FAILED = "FAILED";
+
+    @Id
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "STREAM_ID", nullable = false)
+    private String streamId;
+
+    @Column(name = "EVENT_ID", nullable = false)
+    private String eventId;
+
+    @Column(name = "ENCODED_EVENT", nullable = false, columnDefinition = "TEXT")
+    private String encodedEvent;
+
+    @Column(name = "STATUS", nullable = false)
+    private String status;
+
+    @Column(name = "ATTEMPTS", nullable = false)
+    private Integer attempts;
+
+    @Column(name = "NEXT_ATTEMPT_AT", nullable = false)
+    private Long nextAttemptAt;
+
+    @Column(name = "CLAIM_TOKEN")
+    private String claimToken;
+
+    @Column(name = "LAST_ERROR", length = 1024)
+    private String lastError;
+
+    @Column(name = "CREATED_AT", nullable = false)
+    private Long createdAt;
+}
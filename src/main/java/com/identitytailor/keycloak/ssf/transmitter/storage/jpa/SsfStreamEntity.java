@@ -3,6 +3,7 @@ package com.identitytailor.keycloak.ssf.transmitter.storage.jpa;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
 import lombok.Data;
 
@@ -10,22 +11,25 @@ import lombok.Data;
  * JPA entity for storing SSF stream configurations in a relational database.
  */
 @Entity
-@Table(name = "SSF_STREAM")
+@Table(name = "SSF_STREAM", indexes = {
+        @Index(name = "IDX_SSF_STREAM_REALM", columnList = "REALM_ID, ID")
+})
 @Data
 public class SsfStreamEntity {
     
     @Id
     private String id;
 
-    @Column(name = "REALM_ID")
+    @Column(name = "REALM_ID", nullable = false)
     private String realmId;
 
+    @Column(name = "DESCRIPTION")
     private String description;
     
-    @Column(nullable = false)
+    @Column(name = "STATUS", nullable = false)
     private String status;
 
-    @Column(nullable = false)
+    @Column(name = "STATUS_REASON")
     private String statusReason;
     
     @Column(name = "CREATED_AT", nullable = false)
@@ -0,0 +1,37 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import lombok.Data;
+
+/**
+ * JPA entity for a subject which was added to an SSF stream.
+ */
+@Entity
+@Table(name = "SSF_STREAM_SUBJECT", uniqueConstraints = {
+        @UniqueConstraint(name = "UK_SSF_STREAM_SUBJECT", columnNames = {"STREAM_ID", "USER_ID"})
+}, indexes = {
+        @Index(name = "IDX_SSF_STREAM_SUBJECT_REALM", columnList = "REALM_ID, STREAM_ID")
+})
+@Data
+public class SsfStreamSubjectEntity {
+
+    @Id
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "STREAM_ID", nullable = false)
+    private String streamId;
+
+    @Column(name = "USER_ID", nullable = false)
+    private String userId;
+
+    @Column(name = "CREATED_AT", nullable = false)
+    private Long createdAt;
+}
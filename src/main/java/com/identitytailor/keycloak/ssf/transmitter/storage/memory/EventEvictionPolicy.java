@@ -0,0 +1,17 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.memory;
+
+/**
+ * Policy applied when the backlog of a stream reached its quota.
+ */
+public enum EventEvictionPolicy {
+
+    /**
+     * Evict the oldest events of the stream to make room for the new event.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Reject the new event and keep the backlog.
+     */
+    REJECT_NEW
+}
@@ -0,0 +1,493 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.memory;
+
+import com.identitytailor.keycloak.ssf.metrics.SsfMetrics;
+import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Node local event log with a sequenced log per stream.
+ * <p>
+ * Polled events are not removed but leased to the receiver. Acknowledged or failed events are removed by their jti,
+ * events whose lease expired without an acknowledgement are delivered again in their original order.
+ * <p>
+ * The backlog of every stream is bounded by the {@link Limits}: events older than the maximum age are expired and
+ * a stream exceeding its event count or byte quota either evicts its oldest events or rejects new events. Every evicted,
+ * expired or rejected event is logged and counted.
+ */
+@JBossLog
+public class InMemoryEventLog {
+
+    public static final long DEFAULT_LEASE_MILLIS = 30_000;
+
+    public static final long DEFAULT_REDELIVERY_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Size assumed for the JSON structure of an event and for claim values of unknown types.
+     */
+    protected static final int EVENT_OVERHEAD_SIZE = 64;
+
+    protected static final int VALUE_OVERHEAD_SIZE = 16;
+
+    private final ConcurrentMap<String, StreamLog> streamLogs = new ConcurrentHashMap<>();
+
+    private final long leaseMillis;
+
+    private final Limits limits;
+
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    private final AtomicLong retainedEvents = new AtomicLong();
+
+    private final AtomicLong evictedEvents = new AtomicLong();
+
+    private final AtomicLong expiredEvents = new AtomicLong();
+
+    private final AtomicLong rejectedEvents = new AtomicLong();
+
+    private ScheduledExecutorService redeliveryExecutor;
+
+    public InMemoryEventLog(long leaseMillis, Limits limits) {
+        this.leaseMillis = leaseMillis;
+        this.limits = limits;
+    }
+
+    /**
+     * Starts the timer which makes events with expired leases available again.
+     *
+     * @param intervalMillis
+     * @param onRedelivery   called with the id of every stream with redelivered events
+     */
+    public void startRedelivery(long intervalMillis, Consumer<String> onRedelivery) {
+        redeliveryExecutor = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("ssf-poll-redelivery").factory());
+        redeliveryExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                long now = System.currentTimeMillis();
+                streamLogs.forEach((streamId, streamLog) -> {
+                    streamLog.expire(now);
+                    int redelivered = streamLog.releaseExpiredLeases(now);
+                    if (redelivered > 0) {
+                        log.debugf("Lease of %s events expired. Redelivering events for stream %s", redelivered, streamId);
+                        onRedelivery.accept(streamId);
+                    }
+                });
+            } catch (Exception e) {
+                log.warn("Error redelivering events with expired leases", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public StreamLog getStreamLog(String streamId) {
+        return streamLogs.computeIfAbsent(streamId, StreamLog::new);
+    }
+
+    public StreamLog findStreamLog(String streamId) {
+        return streamLogs.get(streamId);
+    }
+
+    /**
+     * Removes all events of the given stream.
+     *
+     * @param streamId
+     */
+    public void removeStreamLog(String streamId) {
+        StreamLog streamLog = streamLogs.remove(streamId);
+        if (streamLog != null) {
+            streamLog.clear();
+        }
+    }
+
+    /**
+     * Estimated heap retained by the events of all streams.
+     *
+     * @return
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    public long getRetainedEvents() {
+        return retainedEvents.get();
+    }
+
+    /**
+     * Number of events which were dropped because their stream exceeded its quota with the {@link EventEvictionPolicy#DROP_OLDEST} policy.
+     *
+     * @return
+     */
+    public long getEvictedEvents() {
+        return evictedEvents.get();
+    }
+
+    /**
+     * Number of events which were dropped because they exceeded the maximum age.
+     *
+     * @return
+     */
+    public long getExpiredEvents() {
+        return expiredEvents.get();
+    }
+
+    public long getRejectedEvents() {
+        return rejectedEvents.get();
+    }
+
+    public void registerMetrics(SsfMetrics metrics) {
+        metrics.gauge("event.log.retained.events", "Events retained by the in-memory event log", this, InMemoryEventLog::getRetainedEvents);
+        metrics.gauge("event.log.retained.bytes", "Estimated size of the events retained by the in-memory event log", this, InMemoryEventLog::getRetainedBytes);
+        metrics.counter("event.log.evicted", "Events dropped because their stream exceeded its quota", this, InMemoryEventLog::getEvictedEvents);
+        metrics.counter("event.log.expired", "Events dropped because they exceeded the maximum age", this, InMemoryEventLog::getExpiredEvents);
+        metrics.counter("event.log.rejected", "Events rejected because their stream exceeded its quota", this, InMemoryEventLog::getRejectedEvents);
+    }
+
+    /**
+     * Estimates the JSON size of the given event from the length of its claims without serializing it.
+     *
+     * @param event
+     * @return
+     */
+    protected int estimateSize(SecurityEventToken event) {
+        int size = EVENT_OVERHEAD_SIZE
+                   + estimateValueSize(event.getJti())
+                   + estimateValueSize(event.getIss())
+                   + estimateValueSize(event.getTxn())
+                   + estimateValueSize(event.getSubId())
+                   + estimateValueSize(event.getEvents());
+        if (event.getAud() != null) {
+            for (String aud : event.getAud()) {
+                size += estimateValueSize(aud);
+            }
+        }
+        return size;
+    }
+
+    protected int estimateValueSize(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof CharSequence string) {
+            return string.length() + 2;
+        }
+        if (value instanceof Map<?, ?> map) {
+            int size = 2;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                size += String.valueOf(entry.getKey()).length() + 4 + estimateValueSize(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof Collection<?> collection) {
+            int size = 2;
+            for (Object element : collection) {
+                size += estimateValueSize(element) + 1;
+            }
+            return size;
+        }
+        return VALUE_OVERHEAD_SIZE;
+    }
+
+    public void close() {
+        if (redeliveryExecutor != null) {
+            redeliveryExecutor.shutdownNow();
+            redeliveryExecutor = null;
+        }
+        streamLogs.values().forEach(StreamLog::clear);
+        streamLogs.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryEventLog{" +
+               "streams=" + streamLogs.size() +
+               ", retainedEvents=" + retainedEvents.get() +
+               ", retainedBytes=" + retainedBytes.get() +
+               ", evictedEvents=" + evictedEvents.get() +
+               ", expiredEvents=" + expiredEvents.get() +
+               ", rejectedEvents=" + rejectedEvents.get() +
+               '}';
+    }
+
+    /**
+     * The events of a single stream.
+     */
+    public class StreamLog {
+
+        private final String streamId;
+
+        private long nextSequence;
+
+        /**
+         * Events waiting to be polled by sequence.
+         */
+        private final TreeMap<Long, Entry> ready = new TreeMap<>();
+
+        /**
+         * Polled events by lease deadline. Since all leases have the same duration, the deadlines are in insertion order.
+         * Acknowledged entries are skipped lazily.
+         */
+        private final ArrayDeque<Entry> leased = new ArrayDeque<>();
+
+        /**
+         * Ready and leased events by jti.
+         */
+        private final Map<String, Entry> entries = new HashMap<>();
+
+        /**
+         * Ready and leased events by sequence, used to evict the oldest events.
+         */
+        private final TreeMap<Long, Entry> retained = new TreeMap<>();
+
+        private long streamRetainedBytes;
+
+        StreamLog(String streamId) {
+            this.streamId = streamId;
+        }
+
+        /**
+         * Appends the given event, evicting the oldest events if the stream exceeds its quota with the {@link EventEvictionPolicy#DROP_OLDEST} policy.
+         *
+         * @param event
+         * @return false if the event was rejected
+         */
+        public boolean append(SecurityEventToken event) {
+            // estimated before taking the stream lock
+            return append(event, estimateSize(event));
+        }
+
+        protected synchronized boolean append(SecurityEventToken event, int size) {
+
+            if (entries.containsKey(event.getJti())) {
+                return true;
+            }
+
+            long now = System.currentTimeMillis();
+            expire(now);
+
+            if (exceedsQuota(1, size)) {
+                if (limits.evictionPolicy() == EventEvictionPolicy.REJECT_NEW) {
+                    rejectedEvents.incrementAndGet();
+                    return false;
+                }
+                while (!retained.isEmpty() && exceedsQuota(1, size)) {
+                    Entry oldest = retained.firstEntry().getValue();
+                    remove(oldest);
+                    evictedEvents.incrementAndGet();
+                    log.warnf("Backlog of stream %s is full. Dropped oldest event %s", streamId, oldest.event.getJti());
+                }
+            }
+
+            Entry entry = new Entry(nextSequence++, event, now, size);
+            entries.put(event.getJti(), entry);
+            retained.put(entry.sequence, entry);
+            ready.put(entry.sequence, entry);
+            streamRetainedBytes += size;
+            retainedBytes.addAndGet(size);
+            retainedEvents.incrementAndGet();
+            return true;
+        }
+
+        protected boolean exceedsQuota(int additionalEvents, long additionalBytes) {
+            return entries.size() + additionalEvents > limits.maxEventsPerStream()
+                   || streamRetainedBytes + additionalBytes > limits.maxBytesPerStream();
+        }
+
+        /**
+         * Removes events which exceeded the maximum age.
+         *
+         * @param now
+         */
+        synchronized void expire(long now) {
+            long oldestCreatedAt = now - limits.maxEventAgeMillis();
+            Map.Entry<Long, Entry> oldest;
+            int expired = 0;
+            while ((oldest = retained.firstEntry()) != null && oldest.getValue().createdAt < oldestCreatedAt) {
+                remove(oldest.getValue());
+                expired++;
+            }
+            if (expired > 0) {
+                expiredEvents.addAndGet(expired);
+                log.warnf("Dropped %s events of stream %s which exceeded the maximum age", expired, streamId);
+            }
+        }
+
+        protected void remove(Entry entry) {
+            entries.remove(entry.event.getJti());
+            retained.remove(entry.sequence);
+            if (entry.leaseDeadline == 0) {
+                ready.remove(entry.sequence);
+            }
+            entry.removed = true;
+            streamRetainedBytes -= entry.size;
+            retainedBytes.addAndGet(-entry.size);
+            retainedEvents.decrementAndGet();
+        }
+
+        synchronized void clear() {
+            retainedBytes.addAndGet(-streamRetainedBytes);
+            retainedEvents.addAndGet(-entries.size());
+            streamRetainedBytes = 0;
+            entries.clear();
+            retained.clear();
+            ready.clear();
+            leased.clear();
+        }
+
+        /**
+         * Estimated heap retained by the events of this stream.
+         *
+         * @return
+         */
+        public synchronized long getRetainedBytes() {
+            return streamRetainedBytes;
+        }
+
+        /**
+         * Leases up to {@code maxEvents} events in sequence order.
+         *
+         * @param maxEvents
+         * @return
+         */
+        public synchronized List<SecurityEventToken> lease(int maxEvents) {
+
+            long now = System.currentTimeMillis();
+            expire(now);
+            releaseExpiredLeases(now);
+
+            List<SecurityEventToken> result = new ArrayList<>(Math.min(maxEvents, ready.size()));
+            while (result.size() < maxEvents) {
+                Map.Entry<Long, Entry> next = ready.pollFirstEntry();
+                if (next == null) {
+                    break;
+                }
+                Entry entry = next.getValue();
+                entry.leaseDeadline = now + leaseMillis;
+                leased.addLast(entry);
+                result.add(entry.event);
+            }
+            return result;
+        }
+
+        /**
+         * Removes the given event from the log.
+         *
+         * @param eventId
+         * @return true if the event was pending
+         */
+        public synchronized boolean acknowledge(String eventId) {
+            Entry entry = entries.get(eventId);
+            if (entry == null) {
+                return false;
+            }
+            remove(entry);
+            return true;
+        }
+
+        /**
+         * Removes the given events from the log while holding the stream lock once.
+         *
+         * @param eventIds
+         */
+        public synchronized void acknowledgeAll(Collection<String> eventIds) {
+            for (String eventId : eventIds) {
+                acknowledge(eventId);
+            }
+        }
+
+        public synchronized void failAll(Collection<String> eventIds) {
+            for (String eventId : eventIds) {
+                fail(eventId);
+            }
+        }
+
+        public synchronized boolean fail(String eventId) {
+            boolean pending = acknowledge(eventId);
+            if (pending) {
+                log.debugf("Receiver reported error for event %s of stream %s", eventId, streamId);
+            }
+            return pending;
+        }
+
+        /**
+         * Moves events with expired leases back to the ready events.
+         *
+         * @param now
+         * @return the number of events which became ready again
+         */
+        synchronized int releaseExpiredLeases(long now) {
+            int released = 0;
+            Entry entry;
+            while ((entry = leased.peekFirst()) != null && (entry.removed || entry.leaseDeadline <= now)) {
+                leased.pollFirst();
+                if (!entry.removed) {
+                    entry.leaseDeadline = 0;
+                    ready.put(entry.sequence, entry);
+                    released++;
+                }
+            }
+            return released;
+        }
+
+        public synchronized boolean hasReadyEvents() {
+            return !ready.isEmpty();
+        }
+
+        public String getStreamId() {
+            return streamId;
+        }
+    }
+
+    protected static class Entry {
+
+        private final long sequence;
+
+        private final SecurityEventToken event;
+
+        /**
+         * Deadline of the current lease, 0 if the event is not leased.
+         */
+        private long leaseDeadline;
+
+        private final long createdAt;
+
+        private final int size;
+
+        private boolean removed;
+
+        Entry(long sequence, SecurityEventToken event, long createdAt, int size) {
+            this.sequence = sequence;
+            this.event = event;
+            this.createdAt = createdAt;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Quotas for the backlog of a stream.
+     *
+     * @param maxEventsPerStream Maximum number of retained events per stream
+     * @param maxBytesPerStream  Maximum estimated size of the retained events per stream
+     * @param maxEventAgeMillis  Time after which events are expired even if they were not acknowledged
+     * @param evictionPolicy     Policy applied when a stream exceeds its quota
+     */
+    public record Limits(int maxEventsPerStream, long maxBytesPerStream, long maxEventAgeMillis, EventEvictionPolicy evictionPolicy) {
+
+        public static final int DEFAULT_MAX_EVENTS_PER_STREAM = 10_000;
+
+        public static final long DEFAULT_MAX_BYTES_PER_STREAM = 10 * 1024 * 1024;
+
+        public static final long DEFAULT_MAX_EVENT_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    }
+}
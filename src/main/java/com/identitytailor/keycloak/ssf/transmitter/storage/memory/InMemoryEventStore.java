@@ -5,32 +5,22 @@ import com.identitytailor.keycloak.ssf.transmitter.storage.SsfEventStore;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.models.KeycloakSession;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.LinkedBlockingDeque;
 
 /**
- * Storage for SSF events.
+ * Storage for SSF events backed by the node local {@link InMemoryEventLog}.
  */
 @JBossLog
 public class InMemoryEventStore implements SsfEventStore {
 
-    private static final Map<String, SecurityEventToken> events = new ConcurrentHashMap<>();
-    private static final ConcurrentMap<String, Queue<String>> eventQueues = new ConcurrentHashMap<>();
-
-    private static final ConcurrentMap<String, Set<String>> pendingAcks = new ConcurrentHashMap<>();
-    private static final ConcurrentMap<String, Set<String>> failedEvents = new ConcurrentHashMap<>();
-
     private final KeycloakSession session;
 
-    public InMemoryEventStore(KeycloakSession session) {
+    private final InMemoryEventLog eventLog;
+
+    public InMemoryEventStore(KeycloakSession session, InMemoryEventLog eventLog) {
         this.session = session;
+        this.eventLog = eventLog;
     }
 
     /**
@@ -39,48 +29,25 @@ public class InMemoryEventStore implements SsfEventStore {
      * @param event The event to store
      */
     public void storeEvent(String streamId, SecurityEventToken event) {
-        String eventId = event.getJti();
-        events.put(eventId, event);
-        Set<String> pendingAcksForStream = getPendingAcks(pendingAcks, streamId);
-        Queue<String> eventQueue = getEventQueue(streamId);
-        if (eventQueue != null) {
-            pendingAcksForStream.add(eventId);
-            eventQueue.add(eventId);
+        if (!eventLog.getStreamLog(streamId).append(event)) {
+            log.warnf("Backlog of stream %s is full. Rejecting event %s", streamId, event.getJti());
         }
     }
 
-    protected Queue<String> getEventQueue(String streamId) {
-        return eventQueues.computeIfAbsent(streamId, sid -> new LinkedBlockingDeque<>());
-    }
-
     /**
-     * Gets events for polling.
+     * Gets events for polling. The returned events are leased and delivered again if they are not acknowledged within the lease time.
      *
      * @param maxEvents The maximum number of events to return
      * @return A list of events
      */
     public List<SecurityEventToken> getEvents(String streamId, int maxEvents) {
 
-        Queue<String> eventQueue = getEventQueue(streamId);
-        if (eventQueue == null) {
+        InMemoryEventLog.StreamLog streamLog = eventLog.findStreamLog(streamId);
+        if (streamLog == null) {
             return List.of();
         }
 
-        int count = 0;
-        List<SecurityEventToken> result = new ArrayList<>();
-        String eventId;
-        do {
-            eventId = eventQueue.poll();
-
-            if (eventId != null) {
-                SecurityEventToken event = events.get(eventId);
-                result.add(event);
-                events.remove(eventId); // consume the event
-                count++;
-            }
-        } while (eventId != null && count < maxEvents);
-
-        return result;
+        return streamLog.lease(maxEvents);
     }
 
     /**
@@ -90,34 +57,36 @@ public class InMemoryEventStore implements SsfEventStore {
      * @param eventId  The ID of the event to acknowledge
      */
     public void acknowledgeEvent(String streamId, String eventId) {
-        events.remove(eventId);
-        Queue<String> eventQueue = getEventQueue(streamId);
-        Set<String> pendingAcksForStream = getPendingAcks(pendingAcks, streamId);
-        if (eventQueue != null) {
-            pendingAcksForStream.remove(eventId);
-            eventQueue.remove(eventId);
+        InMemoryEventLog.StreamLog streamLog = eventLog.findStreamLog(streamId);
+        if (streamLog != null) {
+            streamLog.acknowledge(eventId);
         }
     }
 
     @Override
     public void failedEvent(String streamId, String eventId) {
-        events.remove(eventId);
-        Queue<String> eventQueue = getEventQueue(streamId);
-        Set<String> pendingAcksForStream = getPendingAcks(pendingAcks, streamId);
-        Set<String> failedSets = getFailedSets(failedEvents, streamId);
-        if (eventQueue != null) {
-            eventQueue.remove(eventId);
-            pendingAcksForStream.remove(eventId);
-            failedSets.add(eventId);
+        eventLog.getStreamLog(streamId).fail(eventId);
+    }
+
+    @Override
+    public void acknowledgeEvents(String streamId, Set<String> eventIds) {
+        InMemoryEventLog.StreamLog streamLog = eventLog.findStreamLog(streamId);
+        if (streamLog != null) {
+            streamLog.acknowledgeAll(eventIds);
         }
     }
 
-    protected Set<String> getPendingAcks(ConcurrentMap<String, Set<String>> pendingAcks, String streamId) {
-        return pendingAcks.computeIfAbsent(streamId, sid -> new ConcurrentSkipListSet<>());
+    @Override
+    public void failEvents(String streamId, Set<String> eventIds) {
+        InMemoryEventLog.StreamLog streamLog = eventLog.findStreamLog(streamId);
+        if (streamLog != null) {
+            streamLog.failAll(eventIds);
+        }
     }
 
-    protected Set<String> getFailedSets(ConcurrentMap<String, Set<String>> failedEvents, String streamId) {
-        return failedEvents.computeIfAbsent(streamId, sid -> new ConcurrentSkipListSet<>());
+    @Override
+    public void deleteEvents(String streamId) {
+        eventLog.removeStreamLog(streamId);
     }
 
     /**
@@ -126,10 +95,7 @@ public class InMemoryEventStore implements SsfEventStore {
      * @return true if there are more events available, false otherwise
      */
     public boolean hasMoreEvents(String streamId) {
-        Queue<String> eventQueue = getEventQueue(streamId);
-        if (eventQueue != null) {
-            return !eventQueue.isEmpty();
-        }
-        return false;
+        InMemoryEventLog.StreamLog streamLog = eventLog.findStreamLog(streamId);
+        return streamLog != null && streamLog.hasReadyEvents();
     }
 }
@@ -12,12 +12,14 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Storage for SSF streams.
+ * Storage for SSF streams, partitioned by realm.
+ * <p>
+ * The store is shared by all sessions of this node, so it keeps copies of the saved streams and hands out copies.
  */
 @JBossLog
 public class InMemoryStreamStore implements SsfStreamStore {
 
-    private static final Map<String, StreamConfiguration> streams = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, StreamConfiguration>> streamsByRealm = new ConcurrentHashMap<>();
 
     public InMemoryStreamStore() {
     }
@@ -28,13 +30,16 @@ public class InMemoryStreamStore implements SsfStreamStore {
      * @param streamConfiguration The stream configuration to save
      */
     public void saveStream(StreamConfiguration streamConfiguration) {
-        streams.put(streamConfiguration.getStreamId(), streamConfiguration);
+        if (streamConfiguration.getRealmId() == null) {
+            throw new IllegalArgumentException("Stream " + streamConfiguration.getStreamId() + " is not bound to a realm");
+        }
+        streamsByRealm.computeIfAbsent(streamConfiguration.getRealmId(), key -> new ConcurrentHashMap<>()).put(streamConfiguration.getStreamId(), streamConfiguration.copy());
     }
 
     @Override
-    public StreamStatus updateStreamStatus(String streamId, StreamStatus streamStatus) {
+    public StreamStatus updateStreamStatus(String realmId, String streamId, StreamStatus streamStatus) {
 
-        StreamConfiguration stream = getStream(streamId);
+        StreamConfiguration stream = getStream(realmId, streamId);
         if (stream == null) {
             return null;
         }
@@ -42,14 +47,15 @@ public class InMemoryStreamStore implements SsfStreamStore {
         stream.setUpdatedAt(Time.currentTime());
         stream.setStatus(streamStatus.getStatus());
         stream.setStatusReason(streamStatus.getReason());
+        saveStream(stream);
 
         return streamStatus;
     }
 
     @Override
-    public StreamStatus getStreamStatus(String streamId) {
+    public StreamStatus getStreamStatus(String realmId, String streamId) {
 
-        StreamConfiguration stream = getStream(streamId);
+        StreamConfiguration stream = getStream(realmId, streamId);
         if (stream == null) {
             return null;
         }
@@ -62,14 +68,14 @@ public class InMemoryStreamStore implements SsfStreamStore {
         return streamStatus;
     }
 
-    /**
-     * Gets a stream configuration by ID.
-     *
-     * @param streamId The stream ID
-     * @return The stream configuration, or null if not found
-     */
-    public StreamConfiguration getStream(String streamId) {
-        return streams.get(streamId);
+    @Override
+    public StreamConfiguration getStream(String realmId, String streamId) {
+        if (realmId == null || streamId == null) {
+            return null;
+        }
+        Map<String, StreamConfiguration> streams = streamsByRealm.get(realmId);
+        StreamConfiguration stream = streams == null ? null : streams.get(streamId);
+        return stream == null ? null : stream.copy();
     }
 
     /**
@@ -78,15 +84,34 @@ public class InMemoryStreamStore implements SsfStreamStore {
      * @return A list of all stream configurations
      */
     public List<StreamConfiguration> getAllStreams() {
-        return new ArrayList<>(streams.values());
+        List<StreamConfiguration> allStreams = new ArrayList<>();
+        streamsByRealm.values().forEach(streams -> streams.values().forEach(stream -> allStreams.add(stream.copy())));
+        return allStreams;
     }
 
-    /**
-     * Deletes a stream configuration.
-     *
-     * @param streamId The stream ID
-     */
-    public void deleteStream(String streamId) {
-        streams.remove(streamId);
+    @Override
+    public List<StreamConfiguration> getStreams(String realmId) {
+
+        Map<String, StreamConfiguration> realmStreams = streamsByRealm.get(realmId);
+        if (realmStreams == null) {
+            return List.of();
+        }
+
+        List<StreamConfiguration> streams = new ArrayList<>(realmStreams.size());
+        realmStreams.values().forEach(stream -> streams.add(stream.copy()));
+        return streams;
+    }
+
+    @Override
+    public void deleteStream(String realmId, String streamId) {
+        streamsByRealm.computeIfPresent(realmId, (key, streams) -> {
+            streams.remove(streamId);
+            return streams.isEmpty() ? null : streams;
+        });
+    }
+
+    @Override
+    public void deleteStreams(String realmId) {
+        streamsByRealm.remove(realmId);
     }
 }
@@ -0,0 +1,69 @@
+package com.identitytailor.keycloak.ssf.transmitter.storage.memory;
+
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfSubjectStore;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage for the subjects of SSF streams, partitioned by realm.
+ */
+public class InMemorySubjectStore implements SsfSubjectStore {
+
+    private static final Map<String, Map<String, Set<String>>> subjectsByRealm = new ConcurrentHashMap<>();
+
+    private static final Map<String, String> realmByStream = new ConcurrentHashMap<>();
+
+    public InMemorySubjectStore() {
+    }
+
+    @Override
+    public boolean addSubject(String realmId, String streamId, String userId) {
+        realmByStream.put(streamId, realmId);
+        return subjectsByRealm.computeIfAbsent(realmId, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(streamId, key -> ConcurrentHashMap.newKeySet())
+                .add(userId);
+    }
+
+    @Override
+    public boolean removeSubject(String streamId, String userId) {
+        Set<String> subjects = findSubjects(streamId);
+        return subjects != null && subjects.remove(userId);
+    }
+
+    @Override
+    public Set<String> getSubjects(String streamId) {
+        Set<String> subjects = findSubjects(streamId);
+        return subjects == null ? Set.of() : Set.copyOf(subjects);
+    }
+
+    protected Set<String> findSubjects(String streamId) {
+        String realmId = realmByStream.get(streamId);
+        if (realmId == null) {
+            return null;
+        }
+        Map<String, Set<String>> subjectsByStream = subjectsByRealm.get(realmId);
+        return subjectsByStream == null ? null : subjectsByStream.get(streamId);
+    }
+
+    @Override
+    public void deleteSubjects(String streamId) {
+        String realmId = realmByStream.remove(streamId);
+        if (realmId == null) {
+            return;
+        }
+        subjectsByRealm.computeIfPresent(realmId, (key, subjectsByStream) -> {
+            subjectsByStream.remove(streamId);
+            return subjectsByStream.isEmpty() ? null : subjectsByStream;
+        });
+    }
+
+    @Override
+    public void deleteRealmSubjects(String realmId) {
+        Map<String, Set<String>> subjectsByStream = subjectsByRealm.remove(realmId);
+        if (subjectsByStream != null) {
+            subjectsByStream.keySet().forEach(realmByStream::remove);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.identitytailor.keycloak.ssf.transmitter.streams;
+
+import com.identitytailor.keycloak.ssf.transmitter.delivery.StreamSubjectIndex;
+import lombok.extern.jbosslog.JBossLog;
+import org.infinispan.Cache;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.event.CacheEntryCreatedEvent;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Propagates stream changes to the node local caches of every node in the cluster.
+ * <p>
+ * A change is applied to the {@link StreamConfigurationVersion} of this node once the transaction which made the change committed,
+ * and published as a short-lived entry of the replicated work cache, whose cache listener applies it on the other nodes.
+ * The entry value is the change encoded as string, so no custom marshalling is required.
+ */
+@JBossLog
+public class StreamChangeNotifier {
+
+    public static final String CACHE_KEY_PREFIX = "ssf-stream-changed::";
+
+    /**
+     * Lifespan of the work cache entries, which only need to live until they were replicated.
+     */
+    public static final long CACHE_ENTRY_LIFESPAN_MILLIS = 60_000;
+
+    private final StreamConfigurationVersion versions;
+
+    private final StreamSubjectIndex subjectIndex;
+
+    private final List<Consumer<StreamChangedEvent>> listeners = new CopyOnWriteArrayList<>();
+
+    private final WorkCacheListener workCacheListener = new WorkCacheListener();
+
+    private Cache<String, Object> workCache;
+
+    public StreamChangeNotifier(StreamConfigurationVersion versions, StreamSubjectIndex subjectIndex) {
+        this.versions = versions;
+        this.subjectIndex = subjectIndex;
+    }
+
+    /**
+     * Adds a listener which is called on every node after a stream change was applied to the node local versions.
+     *
+     * @param listener
+     */
+    public void addListener(Consumer<StreamChangedEvent> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Subscribes to the stream changes of other nodes.
+     *
+     * @param keycloakSessionFactory
+     */
+    public void start(KeycloakSessionFactory keycloakSessionFactory) {
+        KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+            InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+            if (infinispan == null) {
+                return;
+            }
+            workCache = infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+            workCache.addListener(workCacheListener);
+        });
+    }
+
+    public void stop() {
+        if (workCache != null) {
+            workCache.removeListener(workCacheListener);
+            workCache = null;
+        }
+    }
+
+    /**
+     * Marks the streams of the given realm as changed on every node once the transaction of the given session committed.
+     *
+     * @param session
+     * @param realmId
+     */
+    public void streamsChangedAfterCommit(KeycloakSession session, String realmId) {
+        publishAfterCommit(session, new StreamChangedEvent(StreamChangedEvent.Type.STREAMS, realmId, null));
+    }
+
+    /**
+     * Marks the streams of the given realm as changed and drops the subjects of the given deleted stream on every node once the
+     * transaction of the given session committed.
+     *
+     * @param session
+     * @param realmId
+     * @param streamId
+     */
+    public void streamDeletedAfterCommit(KeycloakSession session, String realmId, String streamId) {
+        publishAfterCommit(session, new StreamChangedEvent(StreamChangedEvent.Type.STREAM_DELETED, realmId, streamId));
+    }
+
+    /**
+     * Marks the subjects of the given stream as changed on every node once the transaction of the given session committed.
+     *
+     * @param session
+     * @param realmId
+     * @param streamId
+     */
+    public void subjectsChangedAfterCommit(KeycloakSession session, String realmId, String streamId) {
+        publishAfterCommit(session, new StreamChangedEvent(StreamChangedEvent.Type.SUBJECTS, realmId, streamId));
+    }
+
+    protected void publishAfterCommit(KeycloakSession session, StreamChangedEvent event) {
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                apply(event);
+                publish(event);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                // NOOP
+            }
+        });
+    }
+
+    protected void publish(StreamChangedEvent event) {
+
+        Cache<String, Object> cache = workCache;
+        if (cache == null) {
+            return;
+        }
+
+        try {
+            cache.put(CACHE_KEY_PREFIX + UUID.randomUUID(), event.toCacheValue(), CACHE_ENTRY_LIFESPAN_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warnf(e, "Could not publish stream change. %s", event);
+        }
+    }
+
+    protected void apply(StreamChangedEvent event) {
+
+        log.tracef("Applying stream change. %s", event);
+
+        switch (event.getType()) {
+            case STREAMS -> versions.next(event.getRealmId());
+            case SUBJECTS -> versions.nextSubjects(event.getRealmId(), event.getStreamId());
+            case STREAM_DELETED -> {
+                versions.next(event.getRealmId());
+                versions.removeSubjects(event.getRealmId(), event.getStreamId());
+                subjectIndex.remove(event.getRealmId(), event.getStreamId());
+            }
+        }
+
+        for (Consumer<StreamChangedEvent> listener : listeners) {
+            try {
+                listener.accept(event);
+            } catch (Exception e) {
+                log.warnf(e, "Error applying stream change. %s", event);
+            }
+        }
+    }
+
+    /**
+     * Applies the stream changes published by other nodes. Changes of this node were already applied on commit.
+     */
+    @Listener
+    public class WorkCacheListener {
+
+        @CacheEntryCreated
+        public void onStreamChanged(CacheEntryCreatedEvent<String, Object> event) {
+            if (event.isPre() || event.isOriginLocal() || !(event.getKey() instanceof String key) || !key.startsWith(CACHE_KEY_PREFIX)
+                || !(event.getValue() instanceof String value)) {
+                return;
+            }
+
+            StreamChangedEvent streamChangedEvent = StreamChangedEvent.fromCacheValue(value);
+            if (streamChangedEvent == null) {
+                log.warnf("Ignoring invalid stream change. key=%s", key);
+                return;
+            }
+            apply(streamChangedEvent);
+        }
+    }
+}
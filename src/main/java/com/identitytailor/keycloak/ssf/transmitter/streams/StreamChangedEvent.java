@@ -0,0 +1,85 @@
+package com.identitytailor.keycloak.ssf.transmitter.streams;
+
+/**
+ * Tells the other nodes that the streams of a realm or the subjects of a stream changed, or that a stream was deleted.
+ * <p>
+ * The change is replicated as a plain string value of the work cache, see {@link #toCacheValue()}, so that it needs no
+ * custom marshalling.
+ */
+public class StreamChangedEvent {
+
+    private static final char SEPARATOR = '\n';
+
+    public enum Type {
+        STREAMS,
+        SUBJECTS,
+        STREAM_DELETED
+    }
+
+    private final Type type;
+
+    private final String realmId;
+
+    private final String streamId;
+
+    public StreamChangedEvent(Type type, String realmId, String streamId) {
+        this.type = type;
+        this.realmId = realmId;
+        this.streamId = streamId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    /**
+     * The changed or deleted stream, {@literal null} if any stream of the realm may have changed.
+     *
+     * @return
+     */
+    public String getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Encodes the change as work cache value.
+     *
+     * @return
+     */
+    public String toCacheValue() {
+        return type.name() + SEPARATOR + realmId + SEPARATOR + (streamId == null ? "" : streamId);
+    }
+
+    /**
+     * Decodes a change encoded by {@link #toCacheValue()}.
+     *
+     * @param value
+     * @return the change or {@literal null} if the value is not a valid change
+     */
+    public static StreamChangedEvent fromCacheValue(String value) {
+
+        String[] parts = value.split(String.valueOf(SEPARATOR), -1);
+        if (parts.length != 3) {
+            return null;
+        }
+
+        try {
+            return new StreamChangedEvent(Type.valueOf(parts[0]), parts[1], parts[2].isEmpty() ? null : parts[2]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StreamChangedEvent{" +
+               "type=" + type +
+               ", realmId='" + realmId + '\'' +
+               ", streamId='" + streamId + '\'' +
+               '}';
+    }
+}
@@ -5,6 +5,7 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -93,6 +94,9 @@ public class StreamConfiguration {
     @JsonProperty("inactivity_timeout")
     private Integer inactivityTimeout;
 
+    @JsonIgnore
+    private String realmId;
+
     @JsonIgnore
     private String status;
 
@@ -104,4 +108,33 @@ public class StreamConfiguration {
 
     @JsonIgnore
     private Integer updatedAt;
+
+    /**
+     * Creates a copy of this stream configuration which shares no mutable state with it.
+     *
+     * @return
+     */
+    public StreamConfiguration copy() {
+        StreamConfiguration copy = new StreamConfiguration();
+        copy.setStreamId(streamId);
+        copy.setIssuer(issuer);
+        copy.setAudience(copyOf(audience));
+        copy.setEventsSupported(copyOf(eventsSupported));
+        copy.setEventsRequested(copyOf(eventsRequested));
+        copy.setEventsDelivered(copyOf(eventsDelivered));
+        copy.setDelivery(delivery == null ? null : delivery.copy());
+        copy.setMinVerificationInterval(minVerificationInterval);
+        copy.setDescription(description);
+        copy.setInactivityTimeout(inactivityTimeout);
+        copy.setRealmId(realmId);
+        copy.setStatus(status);
+        copy.setStatusReason(statusReason);
+        copy.setCreatedAt(createdAt);
+        copy.setUpdatedAt(updatedAt);
+        return copy;
+    }
+
+    private static Set<String> copyOf(Set<String> values) {
+        return values == null ? null : new HashSet<>(values);
+    }
 }
@@ -0,0 +1,88 @@
+package com.identitytailor.keycloak.ssf.transmitter.streams;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node local version counters of the stream configurations of each realm and of the subjects of each stream.
+ * <p>
+ * Node local caches derived from the stream configurations remember the version they were built for and rebuild once the
+ * version advanced. The versions are advanced on every node in the cluster by the {@link StreamChangeNotifier} after a stream
+ * change committed, so stream changes never write to the realm.
+ */
+public class StreamConfigurationVersion {
+
+    private final ConcurrentMap<String, AtomicLong> streamVersions = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> subjectVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the current version of the stream configurations in the given realm.
+     *
+     * @param realmId
+     * @return
+     */
+    public long current(String realmId) {
+        AtomicLong version = streamVersions.get(realmId);
+        return version == null ? 0L : version.get();
+    }
+
+    /**
+     * Marks the stream configurations of the given realm as changed on this node.
+     *
+     * @param realmId
+     */
+    public void next(String realmId) {
+        streamVersions.computeIfAbsent(realmId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Returns the current version of the subjects of the given stream.
+     *
+     * @param realmId
+     * @param streamId
+     * @return
+     */
+    public long currentSubjects(String realmId, String streamId) {
+        ConcurrentMap<String, AtomicLong> streamVersions = subjectVersions.get(realmId);
+        AtomicLong version = streamVersions == null ? null : streamVersions.get(streamId);
+        return version == null ? 0L : version.get();
+    }
+
+    /**
+     * Marks the subjects of the given stream as changed on this node, without invalidating the derived stream routes.
+     *
+     * @param realmId
+     * @param streamId
+     */
+    public void nextSubjects(String realmId, String streamId) {
+        subjectVersions.computeIfAbsent(realmId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(streamId, id -> new AtomicLong())
+                .incrementAndGet();
+    }
+
+    /**
+     * Drops the subjects version of a deleted stream.
+     *
+     * @param realmId
+     * @param streamId
+     */
+    public void removeSubjects(String realmId, String streamId) {
+        subjectVersions.computeIfPresent(realmId, (id, streamVersions) -> {
+            streamVersions.remove(streamId);
+            return streamVersions.isEmpty() ? null : streamVersions;
+        });
+    }
+
+    /**
+     * Advances the streams version of a removed realm, so that routes which were built concurrently to the removal are never
+     * reused, and drops the subjects versions of its streams.
+     *
+     * @param realmId
+     */
+    public void remove(String realmId) {
+        next(realmId);
+        subjectVersions.remove(realmId);
+    }
+}
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -24,4 +25,13 @@ public class StreamDeliveryConfiguration {
 
     @JsonProperty("additional_parameters")
     private Map<String, Object> additionalParameters;
+
+    public StreamDeliveryConfiguration copy() {
+        StreamDeliveryConfiguration copy = new StreamDeliveryConfiguration();
+        copy.setMethod(method);
+        copy.setEndpointUrl(endpointUrl);
+        copy.setAuthorizationHeader(authorizationHeader);
+        copy.setAdditionalParameters(additionalParameters == null ? null : new HashMap<>(additionalParameters));
+        return copy;
+    }
 }
@@ -1,11 +1,14 @@
 package com.identitytailor.keycloak.ssf.transmitter.streams;
 
+import com.identitytailor.keycloak.ssf.streams.model.AddSubjectRequest;
+import com.identitytailor.keycloak.ssf.streams.model.RemoveSubjectRequest;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.PATCH;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PUT;
+import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
@@ -23,8 +26,11 @@ public class StreamManagementEndpoint {
 
     private final StreamService streamService;
 
-    public StreamManagementEndpoint(StreamService streamService) {
+    private final StreamSubjectService streamSubjectService;
+
+    public StreamManagementEndpoint(StreamService streamService, StreamSubjectService streamSubjectService) {
         this.streamService = streamService;
+        this.streamSubjectService = streamSubjectService;
     }
 
     /**
@@ -170,4 +176,63 @@ public class StreamManagementEndpoint {
             return Response.serverError().build();
         }
     }
+
+    /**
+     * Adds a subject to a stream.
+     *
+     * @param addSubjectRequest The subject to add
+     * @return A response indicating success or failure
+     */
+    @POST
+    @NoCache
+    @Path("/subjects:add")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response addSubject(AddSubjectRequest addSubjectRequest) {
+
+        if (addSubjectRequest == null || addSubjectRequest.getStreamId() == null || addSubjectRequest.getSubject() == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("Stream ID and subject are required").build();
+        }
+
+        try {
+            StreamSubjectService.Result result = streamSubjectService.addSubject(addSubjectRequest);
+            return toSubjectResponse(result, Response.Status.OK);
+        } catch (Exception e) {
+            log.error("Error adding subject", e);
+            return Response.serverError().build();
+        }
+    }
+
+    /**
+     * Removes a subject from a stream.
+     *
+     * @param removeSubjectRequest The subject to remove
+     * @return A response indicating success or failure
+     */
+    @POST
+    @NoCache
+    @Path("/subjects:remove")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response removeSubject(RemoveSubjectRequest removeSubjectRequest) {
+
+        if (removeSubjectRequest == null || removeSubjectRequest.getStreamId() == null || removeSubjectRequest.getSubject() == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("Stream ID and subject are required").build();
+        }
+
+        try {
+            StreamSubjectService.Result result = streamSubjectService.removeSubject(removeSubjectRequest);
+            return toSubjectResponse(result, Response.Status.NO_CONTENT);
+        } catch (Exception e) {
+            log.error("Error removing subject", e);
+            return Response.serverError().build();
+        }
+    }
+
+    protected Response toSubjectResponse(StreamSubjectService.Result result, Response.Status successStatus) {
+        return switch (result) {
+            // unknown subjects are not reported to avoid disclosing which users exist
+            case UPDATED, UNKNOWN_SUBJECT -> Response.status(successStatus).build();
+            case STREAM_NOT_FOUND -> Response.status(Response.Status.NOT_FOUND).build();
+            case INVALID_SUBJECT -> Response.status(Response.Status.BAD_REQUEST).entity("Unsupported subject").build();
+        };
+    }
 }
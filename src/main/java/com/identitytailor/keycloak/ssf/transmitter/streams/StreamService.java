@@ -1,7 +1,12 @@
 package com.identitytailor.keycloak.ssf.transmitter.streams;
 
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushCircuitBreaker;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushCircuitBreakerRegistry;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushOutboxService;
 import com.identitytailor.keycloak.ssf.transmitter.metadata.TransmitterService;
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfEventStore;
 import com.identitytailor.keycloak.ssf.transmitter.storage.SsfStreamStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfSubjectStore;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.common.util.Time;
 import org.keycloak.models.KeycloakSession;
@@ -20,12 +25,22 @@ public class StreamService {
 
     private final KeycloakSession session;
     private final SsfStreamStore streamStore;
+    private final SsfEventStore eventStore;
     private final TransmitterService transmitterService;
+    private final StreamChangeNotifier streamChangeNotifier;
+    private final PushCircuitBreakerRegistry circuitBreakers;
+    private final SsfSubjectStore subjectStore;
+    private final PushOutboxService pushOutboxService;
 
-    public StreamService(KeycloakSession session, SsfStreamStore streamStore, TransmitterService transmitterService) {
+    public StreamService(KeycloakSession session, SsfStreamStore streamStore, SsfEventStore eventStore, TransmitterService transmitterService, StreamChangeNotifier streamChangeNotifier, PushCircuitBreakerRegistry circuitBreakers, SsfSubjectStore subjectStore, PushOutboxService pushOutboxService) {
         this.session = session;
         this.streamStore = streamStore;
+        this.eventStore = eventStore;
         this.transmitterService = transmitterService;
+        this.streamChangeNotifier = streamChangeNotifier;
+        this.circuitBreakers = circuitBreakers;
+        this.subjectStore = subjectStore;
+        this.pushOutboxService = pushOutboxService;
     }
 
     /**
@@ -45,6 +60,9 @@ public class StreamService {
             streamConfiguration.setStatus("enabled");
         }
 
+        // bind stream to current realm
+        streamConfiguration.setRealmId(session.getContext().getRealm().getId());
+
         // set issuer
         String iss = transmitterService.getTransmitterMetadata().getIssuer();
         streamConfiguration.setIssuer(iss);
@@ -70,27 +88,32 @@ public class StreamService {
         
         // Store the stream configuration
         streamStore.saveStream(streamConfiguration);
+        onStreamChanged();
         
         return streamConfiguration;
     }
 
     /**
-     * Gets a stream by ID.
+     * Gets a stream of the current realm by ID.
      *
      * @param streamId The stream ID
-     * @return The stream configuration, or null if not found
+     * @return The stream configuration, or null if the current realm has no such stream
      */
     public StreamConfiguration getStream(String streamId) {
-        return streamStore.getStream(streamId);
+        return streamStore.getStream(getRealmId(), streamId);
+    }
+
+    protected String getRealmId() {
+        return session.getContext().getRealm().getId();
     }
 
     /**
-     * Gets all streams.
+     * Gets all streams of the current realm.
      *
-     * @return A list of all stream configurations
+     * @return A list of all stream configurations of the current realm
      */
     public List<StreamConfiguration> getAllStreams() {
-        return streamStore.getAllStreams();
+        return streamStore.getStreams(getRealmId());
     }
 
     /**
@@ -101,60 +124,68 @@ public class StreamService {
      */
     public StreamConfiguration updateStream(StreamConfiguration streamConfiguration) {
         String streamId = streamConfiguration.getStreamId();
-        StreamConfiguration existingStream = streamStore.getStream(streamId);
+        StreamConfiguration existingStream = getStream(streamId);
         
         if (existingStream == null) {
             return null;
         }
+
+        // work on a copy, the existing stream must stay untouched if the update fails
+        StreamConfiguration updatedStream = existingStream.copy();
         
         // Update timestamp
-        existingStream.setUpdatedAt(Time.currentTime());
-        existingStream.setDescription(streamConfiguration.getDescription());
+        updatedStream.setUpdatedAt(Time.currentTime());
+        updatedStream.setDescription(streamConfiguration.getDescription());
 
         // set events requested
         Set<String> eventsRequested = streamConfiguration.getEventsRequested();
-        existingStream.setEventsRequested(eventsRequested);
+        updatedStream.setEventsRequested(eventsRequested);
 
         // set events delivered
         Set<String> eventsDelivered = new HashSet<>(eventsRequested);
         eventsDelivered.retainAll(transmitterService.getSupportedEvents());
-        existingStream.setEventsDelivered(eventsDelivered);
+        updatedStream.setEventsDelivered(eventsDelivered);
 
         
         // Store the updated stream configuration
-        streamStore.saveStream(existingStream);
+        streamStore.saveStream(updatedStream);
+        onStreamChanged();
         
-        return existingStream;
+        return updatedStream;
     }
 
 
     public StreamConfiguration replaceStream(StreamConfiguration streamConfiguration) {
 
         String streamId = streamConfiguration.getStreamId();
-        StreamConfiguration existingStream = streamStore.getStream(streamId);
+        StreamConfiguration existingStream = getStream(streamId);
 
         if (existingStream == null) {
             return null;
         }
 
+        // work on a copy, the existing stream must stay untouched if the update fails
+        StreamConfiguration updatedStream = existingStream.copy();
+
         // Update timestamp
-        existingStream.setUpdatedAt(Time.currentTime());
-        existingStream.setDescription(streamConfiguration.getDescription());
+        updatedStream.setUpdatedAt(Time.currentTime());
+        updatedStream.setDescription(streamConfiguration.getDescription());
 
         // set events requested
         Set<String> eventsRequested = streamConfiguration.getEventsRequested();
-        existingStream.setEventsRequested(eventsRequested);
+        updatedStream.setEventsRequested(eventsRequested);
 
         // set events delivered
         Set<String> eventsDelivered = new HashSet<>(eventsRequested);
         eventsDelivered.retainAll(transmitterService.getSupportedEvents());
-        existingStream.setEventsDelivered(eventsDelivered);
+        updatedStream.setEventsDelivered(eventsDelivered);
 
 
         // Store the updated stream configuration
-        streamStore.saveStream(existingStream);
+        streamStore.saveStream(updatedStream);
+        onStreamChanged();
 
-        return existingStream;
+        return updatedStream;
     }
 
     /**
@@ -164,16 +195,31 @@ public class StreamService {
      * @return true if the stream was deleted, false if not found
      */
     public boolean deleteStream(String streamId) {
-        StreamConfiguration existingStream = streamStore.getStream(streamId);
+        StreamConfiguration existingStream = getStream(streamId);
         
         if (existingStream == null) {
             return false;
         }
         
-        streamStore.deleteStream(streamId);
+        streamStore.deleteStream(getRealmId(), streamId);
+        // drop the backlog of the stream, nobody can poll it anymore
+        eventStore.deleteEvents(streamId);
+        if (pushOutboxService != null) {
+            // pending PUSH deliveries have no receiver anymore
+            pushOutboxService.removeStream(streamId);
+        }
+        subjectStore.deleteSubjects(streamId);
+        streamChangeNotifier.streamDeletedAfterCommit(session, getRealmId(), streamId);
         return true;
     }
 
+    /**
+     * Invalidates the cached streams and derived stream routes of the current realm on all nodes once the change committed.
+     */
+    protected void onStreamChanged() {
+        streamChangeNotifier.streamsChangedAfterCommit(session, getRealmId());
+    }
+
     /**
      * Gets the status of a stream.
      *
@@ -181,7 +227,7 @@ public class StreamService {
      * @return The stream status, or null if not found
      */
     public StreamStatus getStreamStatus(String streamId) {
-        StreamConfiguration stream = streamStore.getStream(streamId);
+        StreamConfiguration stream = getStream(streamId);
 
         if (stream == null) {
             return null;
@@ -192,6 +238,13 @@ public class StreamService {
         status.setStatus(stream.getStatus());
         status.setReason(stream.getStatusReason());
 
+        if (circuitBreakers != null && stream.getDelivery() != null) {
+            PushCircuitBreaker circuitBreaker = circuitBreakers.findCircuitBreaker(stream.getDelivery().getEndpointUrl());
+            if (circuitBreaker != null) {
+                status.setCircuitBreaker(circuitBreaker.snapshot());
+            }
+        }
+
         return status;
     }
 
@@ -212,12 +265,12 @@ public class StreamService {
             return null;
         }
 
-        StreamConfiguration stream = streamStore.getStream(streamId);
+        StreamConfiguration stream = getStream(streamId);
         if (stream == null) {
             return null;
         }
 
-        StreamStatus currentStreamStatus = streamStore.getStreamStatus(streamId);
+        StreamStatus currentStreamStatus = streamStore.getStreamStatus(getRealmId(), streamId);
         if (Objects.equals(currentStreamStatus.getStatus(), newStreamStatus.getStatus())) {
             // return current stream status
             return currentStreamStatus;
@@ -226,10 +279,9 @@ public class StreamService {
         // TODO check if new status is allowed
 
         // Update the stream status
-        streamStore.updateStreamStatus(streamId, newStreamStatus);
-        stream.setUpdatedAt(Time.currentTime());
+        StreamStatus updatedStreamStatus = streamStore.updateStreamStatus(getRealmId(), streamId, newStreamStatus);
+        onStreamChanged();
 
-        // Update stream status
-        return streamStore.updateStreamStatus(streamId, newStreamStatus);
+        return updatedStreamStatus;
     }
 }
@@ -2,6 +2,7 @@ package com.identitytailor.keycloak.ssf.transmitter.streams;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.push.PushCircuitBreaker;
 import lombok.Data;
 
 /**
@@ -19,4 +20,10 @@ public class StreamStatus {
 
     @JsonProperty("reason")
     private String reason;
+
+    /**
+     * State of the circuit breaker of the receiver endpoint for PUSH streams.
+     */
+    @JsonProperty("circuit_breaker")
+    private PushCircuitBreaker.Snapshot circuitBreaker;
 }
@@ -0,0 +1,240 @@
+package com.identitytailor.keycloak.ssf.transmitter.streams;
+
+import com.identitytailor.keycloak.ssf.event.subjects.EmailSubjectId;
+import com.identitytailor.keycloak.ssf.event.subjects.IssuerSubjectId;
+import com.identitytailor.keycloak.ssf.event.subjects.OpaqueSubjectId;
+import com.identitytailor.keycloak.ssf.event.subjects.SubjectId;
+import com.identitytailor.keycloak.ssf.streams.model.AddSubjectRequest;
+import com.identitytailor.keycloak.ssf.streams.model.RemoveSubjectRequest;
+import com.identitytailor.keycloak.ssf.transmitter.SecurityEventToken;
+import com.identitytailor.keycloak.ssf.transmitter.delivery.StreamSubjectIndex;
+import com.identitytailor.keycloak.ssf.transmitter.metadata.TransmitterService;
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfStreamStore;
+import com.identitytailor.keycloak.ssf.transmitter.storage.SsfSubjectStore;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.Map;
+
+/**
+ * Service for managing the subjects of SSF streams.
+ * <p>
+ * Subjects are resolved to Keycloak users when they are added, so that events can be matched by user id.
+ * With {@link DefaultSubjects#ALL}, streams without subjects receive the events of every user and streams with subjects
+ * only receive the events of their subjects. With {@link DefaultSubjects#NONE}, streams only receive the events of their subjects.
+ */
+@JBossLog
+public class StreamSubjectService {
+
+    /**
+     * Subjects a stream receives events for if no subject was added, see {@code default_subjects} in the transmitter metadata.
+     */
+    public enum DefaultSubjects {
+        ALL,
+        NONE
+    }
+
+    public enum Result {
+        UPDATED,
+        STREAM_NOT_FOUND,
+        INVALID_SUBJECT,
+        UNKNOWN_SUBJECT
+    }
+
+    private final KeycloakSession session;
+
+    private final SsfStreamStore streamStore;
+
+    private final SsfSubjectStore subjectStore;
+
+    private final StreamSubjectIndex subjectIndex;
+
+    private final StreamChangeNotifier streamChangeNotifier;
+
+    private final TransmitterService transmitterService;
+
+    private final DefaultSubjects defaultSubjects;
+
+    public StreamSubjectService(KeycloakSession session,
+                                SsfStreamStore streamStore,
+                                SsfSubjectStore subjectStore,
+                                StreamSubjectIndex subjectIndex,
+                                StreamChangeNotifier streamChangeNotifier,
+                                TransmitterService transmitterService,
+                                DefaultSubjects defaultSubjects) {
+        this.session = session;
+        this.streamStore = streamStore;
+        this.subjectStore = subjectStore;
+        this.subjectIndex = subjectIndex;
+        this.streamChangeNotifier = streamChangeNotifier;
+        this.transmitterService = transmitterService;
+        this.defaultSubjects = defaultSubjects;
+    }
+
+    public DefaultSubjects getDefaultSubjects() {
+        return defaultSubjects;
+    }
+
+    /**
+     * Adds a subject to a stream.
+     *
+     * @param request
+     * @return
+     */
+    public Result addSubject(AddSubjectRequest request) {
+
+        RealmModel realm = session.getContext().getRealm();
+        StreamConfiguration stream = getStream(realm, request.getStreamId());
+        if (stream == null) {
+            return Result.STREAM_NOT_FOUND;
+        }
+
+        if (!isSupportedSubject(request.getSubject())) {
+            return Result.INVALID_SUBJECT;
+        }
+
+        String userId = resolveUserId(realm, request.getSubject());
+        if (userId == null) {
+            return Result.UNKNOWN_SUBJECT;
+        }
+
+        if (subjectStore.addSubject(realm.getId(), stream.getStreamId(), userId)) {
+            streamChangeNotifier.subjectsChangedAfterCommit(session, realm.getId(), stream.getStreamId());
+            log.debugf("Added subject to stream. realm=%s stream=%s user=%s", realm.getName(), stream.getStreamId(), userId);
+        }
+        return Result.UPDATED;
+    }
+
+    /**
+     * Removes a subject from a stream.
+     *
+     * @param request
+     * @return
+     */
+    public Result removeSubject(RemoveSubjectRequest request) {
+
+        RealmModel realm = session.getContext().getRealm();
+        StreamConfiguration stream = getStream(realm, request.getStreamId());
+        if (stream == null) {
+            return Result.STREAM_NOT_FOUND;
+        }
+
+        if (!isSupportedSubject(request.getSubject())) {
+            return Result.INVALID_SUBJECT;
+        }
+
+        String userId = resolveUserId(realm, request.getSubject());
+        if (userId == null) {
+            return Result.UNKNOWN_SUBJECT;
+        }
+
+        if (subjectStore.removeSubject(stream.getStreamId(), userId)) {
+            streamChangeNotifier.subjectsChangedAfterCommit(session, realm.getId(), stream.getStreamId());
+            log.debugf("Removed subject from stream. realm=%s stream=%s user=%s", realm.getName(), stream.getStreamId(), userId);
+        }
+        return Result.UPDATED;
+    }
+
+    /**
+     * Checks whether the given subject can be resolved to a user of the current realm.
+     *
+     * @param subject
+     * @return
+     */
+    protected boolean isSupportedSubject(SubjectId subject) {
+        return switch (subject) {
+            case EmailSubjectId emailSubjectId -> emailSubjectId.getEmail() != null;
+            case OpaqueSubjectId opaqueSubjectId -> opaqueSubjectId.getId() != null;
+            case IssuerSubjectId issuerSubjectId -> issuerSubjectId.getSub() != null
+                                                    && transmitterService.getTransmitterMetadata().getIssuer().equals(issuerSubjectId.getIss());
+            case null, default -> false;
+        };
+    }
+
+    /**
+     * Resolves a supported subject to the ID of a user of the given realm.
+     *
+     * @param realm
+     * @param subject
+     * @return the user ID or {@literal null} if no such user exists
+     */
+    protected String resolveUserId(RealmModel realm, SubjectId subject) {
+
+        UserModel user = switch (subject) {
+            case EmailSubjectId emailSubjectId -> session.users().getUserByEmail(realm, emailSubjectId.getEmail());
+            case OpaqueSubjectId opaqueSubjectId -> session.users().getUserById(realm, opaqueSubjectId.getId());
+            case IssuerSubjectId issuerSubjectId -> session.users().getUserById(realm, issuerSubjectId.getSub());
+            default -> null;
+        };
+
+        return user == null ? null : user.getId();
+    }
+
+    protected StreamConfiguration getStream(RealmModel realm, String streamId) {
+
+        if (streamId == null) {
+            return null;
+        }
+
+        return streamStore.getStream(realm.getId(), streamId);
+    }
+
+    /**
+     * Checks whether the given stream should receive events about the given user.
+     *
+     * @param realm
+     * @param stream
+     * @param userId The ID of the user the event is about, {@literal null} if the event is not about a user
+     * @return
+     */
+    public boolean isSubjectOfStream(RealmModel realm, StreamConfiguration stream, String userId) {
+
+        if (userId == null) {
+            return true;
+        }
+
+        StreamSubjectIndex.StreamSubjects subjects = subjectIndex.getSubjects(realm, stream.getStreamId(), () -> subjectStore.getSubjects(stream.getStreamId()));
+        if (subjects.isEmpty()) {
+            return defaultSubjects == DefaultSubjects.ALL;
+        }
+        return subjects.contains(userId);
+    }
+
+    /**
+     * Extracts the ID of the user the given event is about from its {@code sub_id} claim.
+     *
+     * @param event
+     * @return the user ID or {@literal null} if the event is not about a user
+     */
+    public static String getUserId(SecurityEventToken event) {
+
+        Map<String, Object> subId = event.getSubId();
+        if (subId == null) {
+            return null;
+        }
+
+        Object format = subId.get("format");
+        if (IssuerSubjectId.TYPE.equals(format)) {
+            return asString(subId.get("sub"));
+        }
+        if ("complex".equals(format) && subId.get("user") instanceof Map<?, ?> user && IssuerSubjectId.TYPE.equals(user.get("format"))) {
+            return asString(user.get("sub"));
+        }
+        return null;
+    }
+
+    private static String asString(Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Removes the subjects of a deleted stream.
+     *
+     * @param streamId
+     */
+    public void deleteSubjects(String streamId) {
+        subjectStore.deleteSubjects(streamId);
+    }
+}
@@ -6,6 +6,8 @@ import com.identitytailor.keycloak.ssf.transmitter.event.SecurityEventTokenMappe
 import com.identitytailor.keycloak.ssf.transmitter.storage.SsfStreamStore;
 import com.identitytailor.keycloak.ssf.transmitter.streams.StreamConfiguration;
 import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
 
 /**
  * Service for handling SSF stream verification.
@@ -13,13 +15,16 @@ import lombok.extern.jbosslog.JBossLog;
 @JBossLog
 public class VerificationService {
 
+    private final KeycloakSession session;
     private final SsfStreamStore streamStore;
     private final SecurityEventTokenMapper securityEventTokenMapper;
     private final SecurityEventTokenDeliveryService securityEventTokenDeliveryService;
 
-    public VerificationService(SsfStreamStore streamStore,
+    public VerificationService(KeycloakSession session,
+                               SsfStreamStore streamStore,
                                SecurityEventTokenMapper securityEventTokenMapper,
                                SecurityEventTokenDeliveryService securityEventTokenDeliveryService) {
+        this.session = session;
         this.streamStore = streamStore;
         this.securityEventTokenMapper = securityEventTokenMapper;
         this.securityEventTokenDeliveryService = securityEventTokenDeliveryService;
@@ -33,16 +38,17 @@ public class VerificationService {
      */
     public boolean triggerVerification(VerificationRequest verificationRequest) {
         String streamId = verificationRequest.getStreamId();
-        StreamConfiguration stream = streamStore.getStream(streamId);
+        RealmModel realm = session.getContext().getRealm();
+        StreamConfiguration stream = streamStore.getStream(realm.getId(), streamId);
         
         if (stream == null) {
             log.warnf("Stream not found for verification. streamId=%s", streamId);
             return false;
         }
         
-        // Generate a verification event
+        // Generate a verification event and deliver it only to the stream which requested it
         SecurityEventToken verificationEventToken = securityEventTokenMapper.generateVerificationEvent(stream, verificationRequest.getState());
-        securityEventTokenDeliveryService.deliverEvent(verificationEventToken);
+        securityEventTokenDeliveryService.deliverToStream(stream.getStreamId(), verificationEventToken);
         
         return true;
     }